@@ -0,0 +1,448 @@
+package com.invisibi.audio;
+
+import com.googlecode.mp4parser.util.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write AAC frames with ADTS headers to a temporary file, which is converted to mp4 on close.
+ * Frames are assembled with their headers in one reused direct buffer, which goes to the file
+ * in a single {@link FileChannel#write(ByteBuffer)} whenever the {@link FlushPolicy} says so.
+ * With a {@link FinalizationQueue} the conversion runs on the queue, close either waits for it or returns right away.
+ * An {@link AdtsFrameIndex} of the written frames lets the file be finalized after a crash and speeds up
+ * the conversion, see {@link RecorderManager}. Loudness measured by a {@link LoudnessMeter} is tagged into the mp4 file,
+ * silent frames found by a {@link FrameEnergyIndex} are cut from its head and tail.
+ * The recording can also be appended to an existing mp4 file, see {@link #setAppend(long)}.
+ * The file offset of every frame is kept in memory so the file can be truncated back to any frame, and is published
+ * with the written frames as a {@link RecordingSnapshot} so the file can be read while recording.
+ */
+public class AdtsFileSink implements TruncatableFrameSink {
+
+    private static final Logger LOG = Logger.getLogger(AdtsFileSink.class);
+    private static final int ADTS_HEADER_SIZE = 7;
+    private static final int MAX_ADTS_FRAME_LENGTH = 0x1FFF; // 13 bits
+    private static final int INITIAL_FRAME_CAPACITY = 4096;
+
+    private final String mTmpFilePath;
+    private final String mOutputFilePath;
+    private final FileOutputStream mAudioOutputStream;
+    private final FileChannel mFileChannel;
+    private final ByteBuffer mWriteBuffer;
+    private final DirectBufferPool mBufferPool;
+    private final int mBufferSize;
+    private final int mMaxFrames;
+    private final long mMaxDelayNs;
+    private final long mCheckpointIntervalNs;
+    // first three header bytes never change within a stream
+    private final byte mHeader2;
+    private final int mChannelBits;
+    private final int mSampleRate;
+
+    private int mBufferedFrames;
+    private long mFirstBufferedTime;
+    private long mFlushCount;
+    private long mBytesWritten;
+    private long mFrameCount;
+    private long[] mFrameOffsets = new long[INITIAL_FRAME_CAPACITY];
+    private AdtsFrameIndex mFrameIndex;
+    private LoudnessMeter mLoudnessMeter;
+    private FrameEnergyIndex mEnergyIndex;
+    private double mSilenceThreshold;
+    private int mTrimPadding;
+    private FinalizeOptions.Trim mTrim;
+    private long mLastCheckpoint;
+    private long mAppendFrameCount = -1;
+    // written by the thread writing frames only, read by any thread
+    private volatile RecordingSnapshot mSnapshot;
+    private volatile int mGeneration;
+
+    private FinalizationQueue mFinalizationQueue;
+    private int mFinalizePriority;
+    private boolean mAwaitFinalization;
+    private FinalizationQueue.Listener mFinalizeListener;
+    private volatile FinalizationQueue.Job mFinalizeJob;
+
+    public AdtsFileSink(String tmpFilePath, String outputFilePath, int sampleRate, int channels) throws IOException {
+        this(tmpFilePath, outputFilePath, sampleRate, channels, new FlushPolicy());
+    }
+
+    public AdtsFileSink(String tmpFilePath, String outputFilePath, int sampleRate, int channels,
+                        FlushPolicy flushPolicy) throws IOException {
+        this(tmpFilePath, outputFilePath, sampleRate, channels, flushPolicy, null);
+    }
+
+    /**
+     * @param bufferPool where the write buffer is taken from and given back to on close, null to allocate it
+     */
+    public AdtsFileSink(String tmpFilePath, String outputFilePath, int sampleRate, int channels,
+                        FlushPolicy flushPolicy, DirectBufferPool bufferPool) throws IOException {
+        mTmpFilePath = tmpFilePath;
+        mOutputFilePath = outputFilePath;
+        mAudioOutputStream = new FileOutputStream(tmpFilePath);
+        mFileChannel = mAudioOutputStream.getChannel();
+        mBufferSize = Math.max(flushPolicy.getBufferSize(), MAX_ADTS_FRAME_LENGTH);
+        mBufferPool = bufferPool;
+        mWriteBuffer = bufferPool != null ? bufferPool.acquire(mBufferSize) : ByteBuffer.allocateDirect(mBufferSize);
+        // a pooled buffer may be larger, the flush policy still decides the write size
+        mWriteBuffer.limit(mBufferSize);
+        mMaxFrames = Math.max(1, flushPolicy.getMaxFrames());
+        mMaxDelayNs = TimeUnit.MILLISECONDS.toNanos(flushPolicy.getMaxDelay());
+        mCheckpointIntervalNs = TimeUnit.MILLISECONDS.toNanos(flushPolicy.getCheckpointInterval());
+        mLastCheckpoint = System.nanoTime();
+
+        int profile = 2;  //AAC LC
+        int freqIdx = getFrequencyIdx(sampleRate);
+        mHeader2 = (byte) (((profile - 1) << 6) + ((freqIdx & 0x0F) << 2) + (channels >> 2));
+        mChannelBits = (channels & 3) << 6;
+        mSampleRate = sampleRate;
+        publishSnapshot();
+    }
+
+    @Override
+    public void writeFrame(ByteBuffer frame, long presentationTimeUs) throws IOException {
+        int size = frame.remaining();
+        int outPacketSize = size + ADTS_HEADER_SIZE; //ProtectionAbsent = 1
+        if (outPacketSize > MAX_ADTS_FRAME_LENGTH) {
+            throw new IllegalArgumentException("aac frame of " + size + " bytes does not fit in an adts frame");
+        }
+        if (mWriteBuffer.remaining() < outPacketSize) {
+            flush();
+        }
+        if (mBufferedFrames == 0) {
+            mFirstBufferedTime = System.nanoTime();
+        }
+        if (mFrameCount == mFrameOffsets.length) {
+            mFrameOffsets = Arrays.copyOf(mFrameOffsets, mFrameOffsets.length * 2);
+        }
+        mFrameOffsets[(int) mFrameCount++] = mBytesWritten + mWriteBuffer.position();
+        addADTSToPacket(mWriteBuffer, outPacketSize);
+        int limit = frame.limit();
+        mWriteBuffer.put(frame);
+        frame.position(limit - size);
+        mBufferedFrames++;
+        if (mFrameIndex != null) {
+            mFrameIndex.add(outPacketSize);
+        }
+
+        if (mBufferedFrames >= mMaxFrames || System.nanoTime() - mFirstBufferedTime >= mMaxDelayNs) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the buffered frames to the file.
+     */
+    public void flush() throws IOException {
+        if (mBufferedFrames == 0) {
+            return;
+        }
+        mWriteBuffer.flip();
+        while (mWriteBuffer.hasRemaining()) {
+            mBytesWritten += mFileChannel.write(mWriteBuffer);
+        }
+        mWriteBuffer.clear().limit(mBufferSize);
+        mBufferedFrames = 0;
+        mFlushCount++;
+        publishSnapshot();
+        if (mFrameIndex != null) {
+            long now = System.nanoTime();
+            if (mCheckpointIntervalNs > 0 && now - mLastCheckpoint >= mCheckpointIntervalNs) {
+                mFrameIndex.checkpoint(mFileChannel);
+                mLastCheckpoint = now;
+            } else {
+                mFrameIndex.write();
+            }
+        }
+    }
+
+    @Override
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Drop the frames from {@code frameCount} on, whether they are still buffered or already in the file,
+     * the next frame is written in place of frame {@code frameCount}.
+     */
+    @Override
+    public void truncate(long frameCount) throws IOException {
+        if (frameCount < 0 || frameCount > mFrameCount) {
+            throw new IllegalArgumentException("cannot truncate " + mFrameCount + " frames to " + frameCount);
+        }
+        if (frameCount == mFrameCount) {
+            return;
+        }
+        long offset = mFrameOffsets[(int) frameCount];
+        int dropped = (int) (mFrameCount - frameCount);
+        mFrameCount = frameCount;
+        if (offset >= mBytesWritten) {
+            mWriteBuffer.position((int) (offset - mBytesWritten));
+            mBufferedFrames -= dropped;
+        } else {
+            // frames of published snapshots are overwritten from here on
+            mGeneration++;
+            mWriteBuffer.clear().limit(mBufferSize);
+            mBufferedFrames = 0;
+            mFileChannel.truncate(offset);
+            mFileChannel.position(offset);
+            mBytesWritten = offset;
+            publishSnapshot();
+        }
+        if (mFrameIndex != null) {
+            mFrameIndex.truncate((int) frameCount);
+        }
+    }
+
+    private void publishSnapshot() {
+        mSnapshot = new RecordingSnapshot(this, mTmpFilePath, mSampleRate, (int) (mFrameCount - mBufferedFrames),
+                mBytesWritten, mFrameOffsets, mGeneration);
+    }
+
+    /**
+     * @return the frames written to the file so far, any thread, without locking. Valid until the sink is closed,
+     * how far it lags behind is up to the {@link FlushPolicy}
+     */
+    public RecordingSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Index the written frames in {@link AdtsFrameIndex#getIndexPath(String)} of the temporary file,
+     * call before the first frame. The index is moved along with the temporary file when it is queued.
+     */
+    public void enableFrameIndex() throws IOException {
+        mFrameIndex = new AdtsFrameIndex(AdtsFrameIndex.getIndexPath(mTmpFilePath), mOutputFilePath,
+                mAppendFrameCount);
+    }
+
+    /**
+     * Append the recording to the existing mp4 file at the output path, call before {@link #enableFrameIndex()}.
+     *
+     * @param frameCount frames of the file, see {@link AdtsRemuxer#getAppendableFrameCount(String, int, int)},
+     *                   -1 to overwrite it
+     */
+    public void setAppend(long frameCount) {
+        mAppendFrameCount = frameCount;
+    }
+
+    /**
+     * @return frames of the mp4 file appended to, -1 if it is overwritten
+     */
+    public long getAppendFrameCount() {
+        return mAppendFrameCount;
+    }
+
+    /**
+     * @param loudnessMeter meter of the encoded audio, read on close once capturing stopped, null for no tags
+     */
+    public void setLoudnessMeter(LoudnessMeter loudnessMeter) {
+        mLoudnessMeter = loudnessMeter;
+    }
+
+    /**
+     * Cut silence at the head and tail of the mp4 file, whole frames are dropped while remuxing.
+     *
+     * @param energyIndex      levels of the encoded audio, read on close once capturing stopped, null to keep all
+     * @param silenceThreshold see {@link FrameEnergyIndex#findTrim(double, int)}
+     * @param padding          see {@link FrameEnergyIndex#findTrim(double, int)}, time unit is ms
+     */
+    public void setSilenceTrim(FrameEnergyIndex energyIndex, double silenceThreshold, int padding) {
+        mEnergyIndex = energyIndex;
+        mSilenceThreshold = silenceThreshold;
+        mTrimPadding = padding;
+    }
+
+    /**
+     * @return frames of the recording kept in the mp4 file, found on close, null if nothing is cut
+     */
+    public FinalizeOptions.Trim getTrim() {
+        return mTrim;
+    }
+
+    /**
+     * Convert on {@code queue} instead of on the thread closing the sink.
+     *
+     * @param priority           {@link FinalizationQueue#PRIORITY_USER_VISIBLE} or {@link FinalizationQueue#PRIORITY_BACKGROUND}
+     * @param awaitFinalization  true if close waits until the mp4 file is written, false to return once it is queued
+     * @param listener           progress and result of the conversion, null for none
+     */
+    public void setFinalizationQueue(FinalizationQueue queue, int priority, boolean awaitFinalization,
+                                     FinalizationQueue.Listener listener) {
+        mFinalizationQueue = queue;
+        mFinalizePriority = priority;
+        mAwaitFinalization = awaitFinalization;
+        mFinalizeListener = listener;
+    }
+
+    /**
+     * @return the queued conversion after close, null if converted on close or there is no queue
+     */
+    public FinalizationQueue.Job getFinalizeJob() {
+        return mFinalizeJob;
+    }
+
+    /**
+     * @return number of writes to the file so far
+     */
+    public long getFlushCount() {
+        return mFlushCount;
+    }
+
+    /**
+     * @return number of bytes written to the file so far, headers included
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Close the ADTS file, convert it to mp4 or queue the conversion, and delete it. If converting right away fails,
+     * the ADTS file and its index are moved into the failed directory of the finalization queue, or kept where they
+     * are without a queue.
+     */
+    @Override
+    public void close() throws IOException {
+        FinalizeOptions options = null;
+        boolean remuxFailed = false;
+        try {
+            try {
+                flush();
+            } finally {
+                mAudioOutputStream.close();
+                if (mBufferPool != null) {
+                    mBufferPool.release(mWriteBuffer);
+                }
+                if (mFrameIndex != null) {
+                    mFrameIndex.close();
+                }
+            }
+            options = new FinalizeOptions();
+            options.setAppendFrameCount(mAppendFrameCount);
+            if (mLoudnessMeter != null) {
+                options.setLoudness(mLoudnessMeter.getInfo());
+            }
+            if (mEnergyIndex != null) {
+                mTrim = mEnergyIndex.findTrim(mSilenceThreshold, mTrimPadding);
+                options.setTrim(mTrim);
+            }
+            if (mFinalizationQueue != null && submitFinalization(options)) {
+                if (mAwaitFinalization) {
+                    mFinalizeJob.get();
+                }
+                return;
+            }
+            AdtsRemuxer remuxer = new AdtsRemuxer(mTmpFilePath, mOutputFilePath);
+            if (mFrameIndex != null) {
+                remuxer.setIndexFilePath(AdtsFrameIndex.getIndexPath(mTmpFilePath));
+            }
+            options.applyTo(remuxer);
+            remuxFailed = true;
+            remuxer.remux();
+            remuxFailed = false;
+        } finally {
+            if (remuxFailed) {
+                keepFailedInput(options);
+            } else {
+                File tmpFile = new File(mTmpFilePath);
+                if (tmpFile.exists()) {
+                    tmpFile.delete();
+                }
+                File indexFile = new File(AdtsFrameIndex.getIndexPath(mTmpFilePath));
+                if (indexFile.exists()) {
+                    indexFile.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if the file could not be queued and has to be converted right away
+     */
+    private boolean submitFinalization(FinalizeOptions options) {
+        try {
+            mFinalizeJob = mFinalizationQueue.submit(mTmpFilePath, mOutputFilePath, options, mFinalizePriority,
+                    mFinalizeListener);
+            return true;
+        } catch (IOException e) {
+            LOG.logWarn("cannot queue finalizing " + mOutputFilePath + ", converting right away, reason = "
+                    + e.getMessage());
+            return false;
+        }
+    }
+
+    private void keepFailedInput(FinalizeOptions options) {
+        if (mFinalizationQueue == null) {
+            LOG.logError("converting " + mTmpFilePath + " failed, the file is kept");
+            return;
+        }
+        try {
+            mFinalizationQueue.keepFailed(mTmpFilePath, mOutputFilePath, options);
+        } catch (IOException e) {
+            LOG.logError("converting " + mTmpFilePath + " failed and it cannot be kept, reason = " + e.getMessage());
+        }
+    }
+
+    /*
+        ADTS format
+        AAAAAAAA AAAABCCD EEFFFFGH HHIJKLMM MMMMMMMM MMMOOOOO OOOOOOPP (QQQQQQQQ QQQQQQQQ)
+        Header consists of 7 or 9 bytes (without or with CRC).
+        Letter	Length (bits)	Description
+        A	        12	        syncword 0xFFF, all bits must be 1
+        B	        1	        MPEG Version: 0 for MPEG-4, 1 for MPEG-2
+        C	        2	        Layer: always 0
+        D	        1	        protection absent, Warning, set to 1 if there is no CRC and 0 if there is CRC
+        E	        2	        profile, the MPEG-4 Audio Object Type minus 1
+        F	        4	        MPEG-4 Sampling Frequency Index (15 is forbidden)
+        G	        1	        private stream, set to 0 when encoding, ignore when decoding
+        H	        3	        MPEG-4 Channel Configuration (in the case of 0, the channel configuration is sent via an inband PCE)
+        I	        1	        originality, set to 0 when encoding, ignore when decoding
+        J	        1	        home, set to 0 when encoding, ignore when decoding
+        K	        1	        copyrighted stream, set to 0 when encoding, ignore when decoding
+        L	        1	        copyright start, set to 0 when encoding, ignore when decoding
+        M	        13	        frame length, this value must include 7 or 9 bytes of header length: FrameLength = (ProtectionAbsent == 1 ? 7 : 9) + size(AACFrame)
+        O       	11	        Buffer fullness
+        P	        2	        Number of AAC frames (RDBs) in ADTS frame minus 1, for maximum compatibility always use 1 AAC frame per ADTS frame
+        Q	        16  	    CRC if protection absent is 0
+    */
+    private void addADTSToPacket(ByteBuffer packet, int length) {
+        packet.put((byte) 0xFF);
+        packet.put((byte) 0xF1); //layer = 0; Mpeg-4 version, Protection absent
+        packet.put(mHeader2);
+        packet.put((byte) (mChannelBits + (length >> 11)));
+        packet.put((byte) ((length & 0x7FF) >> 3));
+        packet.put((byte) (((length & 7) << 5) + 0x1F));
+        packet.put((byte) 0xFC);
+    }
+
+    private static int getFrequencyIdx(int sampleRate) {
+        int idx = 15;
+        switch (sampleRate) {
+            case 8000:
+                idx = 11;
+                break;
+            case 16000:
+                idx = 8;
+                break;
+            case 22050:
+                idx = 7;
+                break;
+            case 44100:
+                idx = 4;
+                break;
+            case 48000:
+                idx = 3;
+                break;
+        }
+        return idx;
+    }
+}
@@ -0,0 +1,232 @@
+package com.invisibi.audio;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Append-only index of the frames of an ADTS file, written next to it while recording so an interrupted recording
+ * can be finalized after a crash without scanning the stream again.
+ * The index starts with a header holding the mp4 file the recording was meant for and the number of frames of
+ * that file when the recording is appended to it, followed by the length of every
+ * ADTS frame as an unsigned short. Frames are back to back, the offset of a frame is the sum of the lengths before it.
+ * Records are appended only after their frames are written, {@link #checkpoint(FileChannel)} syncs the ADTS file
+ * and then the index, so a synced record never points past synced audio.
+ */
+public class AdtsFrameIndex {
+
+    public static final String EXTENSION = ".idx";
+
+    private static final int MAGIC = 0x41494458; // AIDX
+    private static final int VERSION = 2;
+    private static final int VERSION_WITHOUT_APPEND = 1;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final FileOutputStream mOutputStream;
+    private final FileChannel mChannel;
+    private final long mHeaderSize;
+    private ByteBuffer mPending = ByteBuffer.allocate(INITIAL_CAPACITY);
+    private int mFrameCount;
+    private long mCheckpointCount;
+
+    /**
+     * Create the index of a new ADTS file, an existing index is overwritten.
+     *
+     * @param outputFilePath mp4 file the ADTS file is finalized into, also after a crash
+     */
+    public AdtsFrameIndex(String indexFilePath, String outputFilePath) throws IOException {
+        this(indexFilePath, outputFilePath, -1);
+    }
+
+    /**
+     * @param appendFrameCount frames of the existing mp4 file the recording is appended to, -1 to overwrite it
+     */
+    public AdtsFrameIndex(String indexFilePath, String outputFilePath, long appendFrameCount) throws IOException {
+        mOutputStream = new FileOutputStream(indexFilePath);
+        mChannel = mOutputStream.getChannel();
+        try {
+            DataOutputStream header = new DataOutputStream(mOutputStream);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeUTF(outputFilePath);
+            header.writeLong(appendFrameCount);
+            header.flush();
+            mHeaderSize = mChannel.position();
+            // an index without its header cannot be recovered, sync it once up front
+            mChannel.force(false);
+        } catch (IOException e) {
+            mOutputStream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return path of the index of an ADTS file
+     */
+    public static String getIndexPath(String adtsFilePath) {
+        return adtsFilePath + EXTENSION;
+    }
+
+    /**
+     * Add a frame, kept in memory until {@link #write()}.
+     *
+     * @param frameLength length of the ADTS frame, header included
+     */
+    public void add(int frameLength) {
+        if (mPending.remaining() < 2) {
+            ByteBuffer grown = ByteBuffer.allocate(mPending.capacity() * 2);
+            mPending.flip();
+            grown.put(mPending);
+            mPending = grown;
+        }
+        mPending.putShort((short) frameLength);
+        mFrameCount++;
+    }
+
+    /**
+     * Append the added frames, call once they are written to the ADTS file.
+     */
+    public void write() throws IOException {
+        mPending.flip();
+        while (mPending.hasRemaining()) {
+            mChannel.write(mPending);
+        }
+        mPending.clear();
+    }
+
+    /**
+     * Append the added frames and make the ADTS file and the index durable, in that order.
+     *
+     * @param adtsChannel channel of the ADTS file, every added frame must be written to it
+     */
+    public void checkpoint(FileChannel adtsChannel) throws IOException {
+        adtsChannel.force(false);
+        write();
+        mChannel.force(false);
+        mCheckpointCount++;
+    }
+
+    /**
+     * Drop the frames from {@code frameCount} on, the ADTS file has to be truncated first.
+     */
+    public void truncate(int frameCount) throws IOException {
+        if (frameCount < 0 || frameCount > mFrameCount) {
+            throw new IllegalArgumentException("cannot truncate " + mFrameCount + " frames to " + frameCount);
+        }
+        int written = mFrameCount - mPending.position() / 2;
+        if (frameCount >= written) {
+            mPending.position((frameCount - written) * 2);
+        } else {
+            mPending.clear();
+            long size = mHeaderSize + 2L * frameCount;
+            mChannel.truncate(size);
+            mChannel.position(size);
+        }
+        mFrameCount = frameCount;
+    }
+
+    /**
+     * @return number of frames added so far
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return number of checkpoints so far
+     */
+    public long getCheckpointCount() {
+        return mCheckpointCount;
+    }
+
+    /**
+     * Append the added frames and close the index, it stays on disk.
+     */
+    public void close() throws IOException {
+        try {
+            write();
+        } finally {
+            mOutputStream.close();
+        }
+    }
+
+    /**
+     * @return the mp4 file the indexed recording was meant for
+     */
+    public static String readOutputPath(File indexFile) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(indexFile));
+        try {
+            readHeader(in, indexFile);
+            return in.readUTF();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return frames of the mp4 file the indexed recording is appended to, -1 if it overwrites the file
+     */
+    public static long readAppendFrameCount(File indexFile) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(indexFile));
+        try {
+            int version = readHeader(in, indexFile);
+            in.readUTF();
+            return version == VERSION_WITHOUT_APPEND ? -1 : in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read the frame lengths, a record cut in half by a crash is ignored.
+     *
+     * @return length of every indexed frame, header included
+     */
+    public static char[] readFrameLengths(File indexFile) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            int version = readHeader(in, indexFile);
+            in.readUTF();
+            if (version != VERSION_WITHOUT_APPEND) {
+                in.readLong();
+            }
+            // the file holds two bytes per frame after the header
+            char[] lengths = new char[(int) Math.min(Integer.MAX_VALUE - 8, indexFile.length() / 2)];
+            int count = 0;
+            while (count < lengths.length) {
+                char length;
+                try {
+                    length = in.readChar();
+                } catch (EOFException e) {
+                    break;
+                }
+                lengths[count++] = length;
+            }
+            return Arrays.copyOf(lengths, count);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return version of the index
+     */
+    private static int readHeader(DataInputStream in, File indexFile) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException(indexFile + " is not a frame index");
+        }
+        int version = in.readInt();
+        if (version != VERSION && version != VERSION_WITHOUT_APPEND) {
+            throw new IOException("unsupported frame index version " + version);
+        }
+        return version;
+    }
+}
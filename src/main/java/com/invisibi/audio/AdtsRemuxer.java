@@ -0,0 +1,784 @@
+package com.invisibi.audio;
+
+import com.googlecode.mp4parser.util.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Locale;
+
+/**
+ * Remux an ADTS file into an m4a file in two sequential passes without building a sample list.
+ * The first pass reads the ADTS headers into a char per frame, 'moov' is then written from it in front of
+ * 'mdat' so players can start without seeking to the end, and the second pass copies the frames in large blocks
+ * with their headers stripped. Memory is two bytes per frame plus the copy buffers, whatever the duration.
+ * A truncated last frame, e.g. after a crash, is dropped.
+ * With an {@link AdtsFrameIndex} of the input the first pass reads the index instead of the input.
+ * A {@link LoudnessInfo} is written as iTunes freeform ReplayGain and loudness tags in 'udta'.
+ * A {@link FinalizeOptions.Trim} drops whole frames at the head and tail, the copy then starts at the first kept
+ * frame, still in one pass without decoding.
+ * In append mode the frames are added to an existing m4a file instead, see {@link #setAppend(long)}.
+ */
+public class AdtsRemuxer {
+
+    private static final Logger LOG = Logger.getLogger(AdtsRemuxer.class);
+    private static final int SAMPLES_PER_AAC_FRAME = 1024;
+    private static final int ADTS_HEADER_SIZE = 7;
+    private static final int ADTS_CRC_SIZE = 2;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int TRACK_ID = 1;
+    // seconds between 1904, the mp4 epoch, and 1970
+    private static final long MP4_EPOCH_OFFSET = 2082844800L;
+    private static final int[] SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+    private static final int[] UNITY_MATRIX = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+    private static final String FREEFORM_MEAN = "com.apple.iTunes";
+
+    private final String mInputFilePath;
+    private final String mOutputFilePath;
+    private String mIndexFilePath;
+    private LoudnessInfo mLoudness;
+    private FinalizeOptions.Trim mTrim;
+    private long mInputOffset; // first byte of the first kept frame
+    private byte[] mUserData; // 'udta' of the last remux, null if there are no tags
+    private long mAppendFrameCount = -1;
+
+    // stream parameters from the first header
+    private int mProfile;
+    private int mFrequencyIndex;
+    private int mChannelConfig;
+    private int mSampleRate;
+
+    private char[] mFrameSizes = new char[0]; // payload only, an adts frame is at most 8191 bytes
+    private BitSet mCrcFrames; // frames with a 9 byte header, null if there are none
+    private int mFrameCount;
+    private long mPayloadSize;
+    private int mMaxFrameSize;
+
+    public AdtsRemuxer(String inputFilePath, String outputFilePath) {
+        mInputFilePath = inputFilePath;
+        mOutputFilePath = outputFilePath;
+    }
+
+    /**
+     * Take the frames from the index written while recording the input instead of scanning the input.
+     * The input is scanned anyway if the index does not match it.
+     */
+    public void setIndexFilePath(String indexFilePath) {
+        mIndexFilePath = indexFilePath;
+    }
+
+    /**
+     * Tag the m4a file with the loudness measured while recording, null for no tags.
+     */
+    public void setLoudness(LoudnessInfo loudness) {
+        mLoudness = loudness;
+    }
+
+    /**
+     * Keep only some frames, e.g. to cut silence, null to keep all. Frames beyond the end of the input are ignored.
+     */
+    public void setTrim(FinalizeOptions.Trim trim) {
+        mTrim = trim;
+    }
+
+    /**
+     * Append the frames to the m4a file at the output path instead of overwriting it. They go into a new 'mdat'
+     * at its end and only 'moov' is rewritten after them, the media data already in the file is not copied.
+     * The file has to hold {@code frameCount} frames, if it holds them plus the input it was appended to already,
+     * e.g. before a crash, and is left as it is. A missing file is written as usual.
+     * Loudness tags are neither kept nor written, they would only describe part of the file, other tags are kept.
+     *
+     * @param frameCount number of frames of the file before the append, see {@link #getAppendableFrameCount},
+     *                   -1 to overwrite the file
+     */
+    public void setAppend(long frameCount) {
+        mAppendFrameCount = frameCount;
+    }
+
+    /**
+     * Check that frames of the given format can be appended to an existing m4a file.
+     *
+     * @return number of frames of the file
+     * @throws IOException if the file cannot be read or appended to with this format
+     */
+    public static long getAppendableFrameCount(String m4aFilePath, int sampleRate, int channels)
+            throws IOException {
+        RandomAccessFile file = new RandomAccessFile(m4aFilePath, "r");
+        try {
+            M4aMovie movie = M4aMovie.read(file.getChannel());
+            if (movie.getAudioObjectType() != 2 || movie.getSampleRate() != sampleRate
+                    || movie.getChannelConfig() != channels) {
+                throw new IOException("cannot append " + sampleRate + "Hz " + channels + " channel aac lc to "
+                        + m4aFilePath);
+            }
+            return movie.getFrameCount();
+        } finally {
+            file.close();
+        }
+    }
+
+    public void remux() throws IOException {
+        remux(null);
+    }
+
+    /**
+     * @param listener receives the progress of the copy and may cancel, null for none
+     * @throws InterruptedIOException if the listener cancelled, the m4a file is incomplete then
+     */
+    public void remux(MP4FileConverter.ProgressListener listener) throws IOException {
+        long time = System.currentTimeMillis();
+        FileInputStream input = new FileInputStream(mInputFilePath);
+        RandomAccessFile output = null;
+        try {
+            FileChannel in = input.getChannel();
+            if (mIndexFilePath == null || !readIndex(in)) {
+                scan(in);
+            }
+            applyTrim();
+            if (mFrameCount == 0) {
+                throw new IOException("no aac frame in " + mInputFilePath);
+            }
+            if (mAppendFrameCount >= 0 && new File(mOutputFilePath).length() > 0) {
+                output = new RandomAccessFile(mOutputFilePath, "rw");
+                append(in, output.getChannel(), listener);
+                return;
+            }
+            mUserData = createUserData();
+            output = new RandomAccessFile(mOutputFilePath, "rw");
+            output.setLength(0);
+            FileChannel out = output.getChannel();
+            long mdatHeaderSize = mPayloadSize + 8 > 0xFFFFFFFFL ? 16 : 8;
+            // chunk offsets need 64 bits once 'mdat' ends beyond 4GB, which depends on the size of 'moov' itself
+            int headerSize = ftypSize() + moovSize(false);
+            boolean largeOffsets = headerSize + mdatHeaderSize + mPayloadSize > 0xFFFFFFFFL;
+            if (largeOffsets) {
+                headerSize = ftypSize() + moovSize(true);
+            }
+            writeHeader(out, headerSize + mdatHeaderSize, largeOffsets);
+            writeMediaDataHeader(out, mdatHeaderSize);
+            copyPayload(in, out, listener);
+        } finally {
+            input.close();
+            if (output != null) {
+                output.close();
+            }
+        }
+        LOG.logDebug("remuxed " + mFrameCount + " frames in " + (System.currentTimeMillis() - time) + "ms");
+    }
+
+    /**
+     * Add the frames in a new 'mdat' at the end of the output, then write the new 'moov' after it and free the
+     * old one. Until then the old 'moov' still describes the file, and a cut off append is truncated away.
+     */
+    private void append(FileChannel in, FileChannel out, MP4FileConverter.ProgressListener listener)
+            throws IOException {
+        M4aMovie movie = M4aMovie.read(out);
+        if (movie.getAudioObjectType() != mProfile + 1 || movie.getFrequencyIndex() != mFrequencyIndex
+                || movie.getChannelConfig() != mChannelConfig) {
+            throw new IOException("stream parameters of " + mInputFilePath + " do not match " + mOutputFilePath);
+        }
+        if (movie.getFrameCount() == mAppendFrameCount + mFrameCount) {
+            LOG.logWarn(mOutputFilePath + " has been appended to already");
+            movie.freeStaleMovieBoxes(out);
+            out.force(false);
+            return;
+        }
+        if (movie.getFrameCount() != mAppendFrameCount) {
+            throw new IOException(mOutputFilePath + " has " + movie.getFrameCount() + " frames, expected "
+                    + mAppendFrameCount);
+        }
+        long end = movie.getEnd();
+        long mdatHeaderSize = mPayloadSize + 8 > 0xFFFFFFFFL ? 16 : 8;
+        try {
+            out.truncate(end);
+            out.position(end);
+            writeMediaDataHeader(out, mdatHeaderSize);
+            copyPayload(in, out, listener);
+            byte[] moov = movie.createMovieBox(mFrameSizes, mFrameCount, mMaxFrameSize, end + mdatHeaderSize,
+                    framesPerChunk());
+            writeFully(out, ByteBuffer.wrap(moov));
+            out.force(false);
+        } catch (IOException e) {
+            out.truncate(end);
+            throw e;
+        }
+        movie.freeMovieBoxes(out);
+        out.force(false);
+        LOG.logDebug("appended " + mFrameCount + " frames to " + movie.getFrameCount() + " frames");
+    }
+
+    /**
+     * First pass, read every ADTS header and keep the payload size.
+     */
+    private void scan(FileChannel in) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        long fileSize = in.size();
+        long position = 0;
+        buffer.limit(0);
+        while (true) {
+            if (buffer.remaining() < ADTS_HEADER_SIZE) {
+                if (!fill(in, buffer)) {
+                    break;
+                }
+                if (buffer.remaining() < ADTS_HEADER_SIZE) {
+                    break; // truncated header at the end
+                }
+            }
+            int start = buffer.position();
+            int b1 = buffer.get(start + 1) & 0xFF;
+            if ((buffer.get(start) & 0xFF) != 0xFF || (b1 & 0xF0) != 0xF0) {
+                throw new IOException("no adts sync word at " + position);
+            }
+            int b2 = buffer.get(start + 2) & 0xFF;
+            int b3 = buffer.get(start + 3) & 0xFF;
+            int b4 = buffer.get(start + 4) & 0xFF;
+            int b5 = buffer.get(start + 5) & 0xFF;
+            int b6 = buffer.get(start + 6) & 0xFF;
+            boolean crc = (b1 & 0x01) == 0;
+            int profile = b2 >> 6;
+            int frequencyIndex = (b2 >> 2) & 0x0F;
+            int channelConfig = ((b2 & 0x01) << 2) | (b3 >> 6);
+            int frameLength = ((b3 & 0x03) << 11) | (b4 << 3) | (b5 >> 5);
+            int headerSize = crc ? ADTS_HEADER_SIZE + ADTS_CRC_SIZE : ADTS_HEADER_SIZE;
+            if ((b6 & 0x03) != 0) {
+                throw new IOException("adts frame with several raw data blocks at " + position);
+            }
+            if (frameLength <= headerSize) {
+                throw new IOException("invalid adts frame length " + frameLength + " at " + position);
+            }
+            if (mFrameCount == 0) {
+                if (frequencyIndex >= SAMPLE_RATES.length) {
+                    throw new IOException("invalid sampling frequency index " + frequencyIndex);
+                }
+                mProfile = profile;
+                mFrequencyIndex = frequencyIndex;
+                mChannelConfig = channelConfig;
+                mSampleRate = SAMPLE_RATES[frequencyIndex];
+                // sized from the first frame, grown if later frames are smaller
+                mFrameSizes = new char[(int) Math.min(Integer.MAX_VALUE - 8, fileSize / frameLength * 5 / 4 + 16)];
+            } else if (profile != mProfile || frequencyIndex != mFrequencyIndex || channelConfig != mChannelConfig) {
+                throw new IOException("adts stream parameters change at " + position);
+            }
+            if (position + frameLength > fileSize) {
+                LOG.logWarn("drop truncated adts frame at " + position);
+                break;
+            }
+            addFrame(frameLength - headerSize, crc);
+            position += frameLength;
+            // skip the frame, refilling as often as needed
+            int skip = frameLength;
+            while (skip > buffer.remaining()) {
+                skip -= buffer.remaining();
+                buffer.position(buffer.limit());
+                if (!fill(in, buffer)) {
+                    throw new IOException("unexpected end of " + mInputFilePath);
+                }
+            }
+            buffer.position(buffer.position() + skip);
+        }
+    }
+
+    /**
+     * First pass from the index, only the first header and the start of the last indexed frame are read from
+     * the input. Frames indexed beyond the end of the input, e.g. not written before a crash, are dropped.
+     *
+     * @return false if the index cannot be used, nothing is kept then
+     */
+    private boolean readIndex(FileChannel in) throws IOException {
+        char[] frameLengths;
+        try {
+            frameLengths = AdtsFrameIndex.readFrameLengths(new File(mIndexFilePath));
+        } catch (IOException e) {
+            LOG.logWarn("cannot read frame index " + mIndexFilePath + ", reason = " + e.getMessage());
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(ADTS_HEADER_SIZE);
+        in.read(header, 0);
+        if (header.position() < ADTS_HEADER_SIZE || (header.get(0) & 0xFF) != 0xFF
+                || (header.get(1) & 0xF1) != 0xF1) {
+            // the recorder writes every frame without crc, anything else was not indexed by it
+            LOG.logWarn("frame index " + mIndexFilePath + " does not match " + mInputFilePath);
+            return false;
+        }
+        int b2 = header.get(2) & 0xFF;
+        int frequencyIndex = (b2 >> 2) & 0x0F;
+        int channelConfig = ((b2 & 0x01) << 2) | ((header.get(3) & 0xFF) >> 6);
+        if (frequencyIndex >= SAMPLE_RATES.length) {
+            throw new IOException("invalid sampling frequency index " + frequencyIndex);
+        }
+        long fileSize = in.size();
+        long position = 0;
+        int count = 0;
+        while (count < frameLengths.length && frameLengths[count] > ADTS_HEADER_SIZE
+                && position + frameLengths[count] <= fileSize) {
+            position += frameLengths[count++];
+        }
+        if (count < frameLengths.length) {
+            LOG.logWarn("drop " + (frameLengths.length - count) + " indexed frames missing from " + mInputFilePath);
+        }
+        if (count > 0) {
+            // one read tells whether the index and the input agree up to the end
+            long last = position - frameLengths[count - 1];
+            header.clear();
+            in.read(header, last);
+            int lastLength = ((header.get(3) & 0x03) << 11) | ((header.get(4) & 0xFF) << 3) | ((header.get(5) & 0xFF) >> 5);
+            if (header.position() < ADTS_HEADER_SIZE || (header.get(0) & 0xFF) != 0xFF
+                    || lastLength != frameLengths[count - 1]) {
+                LOG.logWarn("frame index " + mIndexFilePath + " does not match " + mInputFilePath + " at " + last);
+                return false;
+            }
+        }
+        mProfile = b2 >> 6;
+        mFrequencyIndex = frequencyIndex;
+        mChannelConfig = channelConfig;
+        mSampleRate = SAMPLE_RATES[frequencyIndex];
+        mFrameSizes = new char[count];
+        for (int i = 0; i < count; i++) {
+            addFrame(frameLengths[i] - ADTS_HEADER_SIZE, false);
+        }
+        return true;
+    }
+
+    /**
+     * Drop the frames outside {@link #mTrim} from the frame table and find where the first kept frame starts.
+     */
+    private void applyTrim() {
+        mInputOffset = 0;
+        if (mTrim == null || mTrim.getStartFrame() >= mFrameCount) {
+            if (mTrim != null) {
+                LOG.logWarn("trim " + mTrim + " is beyond the " + mFrameCount + " frames, keep all");
+            }
+            return;
+        }
+        int start = mTrim.getStartFrame();
+        int end = (int) Math.min(mFrameCount, (long) mTrim.getEndFrame());
+        for (int i = 0; i < start; i++) {
+            mInputOffset += headerSize(i) + mFrameSizes[i];
+        }
+        char[] frameSizes = Arrays.copyOfRange(mFrameSizes, start, end);
+        BitSet crcFrames = mCrcFrames == null ? null : mCrcFrames.get(start, end);
+        mFrameSizes = new char[frameSizes.length];
+        mCrcFrames = null;
+        mFrameCount = 0;
+        mPayloadSize = 0;
+        mMaxFrameSize = 0;
+        for (int i = 0; i < frameSizes.length; i++) {
+            addFrame(frameSizes[i], crcFrames != null && crcFrames.get(i));
+        }
+        LOG.logDebug("trim to frames " + start + " - " + end);
+    }
+
+    private int headerSize(int frame) {
+        return mCrcFrames != null && mCrcFrames.get(frame) ? ADTS_HEADER_SIZE + ADTS_CRC_SIZE : ADTS_HEADER_SIZE;
+    }
+
+    private void addFrame(int payloadSize, boolean crc) {
+        if (mFrameCount == mFrameSizes.length) {
+            mFrameSizes = Arrays.copyOf(mFrameSizes, mFrameSizes.length + (mFrameSizes.length >> 1) + 16);
+        }
+        if (crc) {
+            if (mCrcFrames == null) {
+                mCrcFrames = new BitSet();
+            }
+            mCrcFrames.set(mFrameCount);
+        }
+        mFrameSizes[mFrameCount++] = (char) payloadSize;
+        mPayloadSize += payloadSize;
+        mMaxFrameSize = Math.max(mMaxFrameSize, payloadSize);
+    }
+
+    /**
+     * Keep the unread bytes and read more after them.
+     *
+     * @return false at the end of the file
+     */
+    private static boolean fill(FileChannel in, ByteBuffer buffer) throws IOException {
+        buffer.compact();
+        int read = in.read(buffer);
+        buffer.flip();
+        return read > 0;
+    }
+
+    /**
+     * Second pass, copy the payload of every frame back to back into 'mdat'.
+     */
+    private void copyPayload(FileChannel in, FileChannel out, MP4FileConverter.ProgressListener listener)
+            throws IOException {
+        ByteBuffer source = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        ByteBuffer target = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        in.position(mInputOffset);
+        source.limit(0);
+        long copied = 0;
+        long reported = 0;
+        for (int i = 0; i < mFrameCount; i++) {
+            int headerSize = headerSize(i);
+            int payloadSize = mFrameSizes[i];
+            if (source.remaining() < headerSize + payloadSize) {
+                fill(in, source);
+                if (source.remaining() < headerSize + payloadSize) {
+                    throw new IOException(mInputFilePath + " changed while remuxing");
+                }
+            }
+            if (target.remaining() < payloadSize) {
+                copied += drain(out, target);
+                if (listener != null && copied - reported >= BUFFER_SIZE * 4) {
+                    reported = copied;
+                    report(listener, (float) copied / mPayloadSize);
+                }
+            }
+            int limit = source.limit();
+            source.position(source.position() + headerSize);
+            source.limit(source.position() + payloadSize);
+            target.put(source);
+            source.limit(limit);
+        }
+        drain(out, target);
+        if (listener != null) {
+            report(listener, 1f);
+        }
+    }
+
+    private static int drain(FileChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        int size = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+        return size;
+    }
+
+    private static void report(MP4FileConverter.ProgressListener listener, float progress) throws InterruptedIOException {
+        if (!listener.onProgress(progress)) {
+            throw new InterruptedIOException("remux cancelled");
+        }
+    }
+
+    private int framesPerChunk() {
+        // about a second of audio per chunk
+        return Math.max(1, (mSampleRate + SAMPLES_PER_AAC_FRAME - 1) / SAMPLES_PER_AAC_FRAME);
+    }
+
+    private int chunkCount() {
+        return (mFrameCount + framesPerChunk() - 1) / framesPerChunk();
+    }
+
+    private long mediaDuration() {
+        return (long) mFrameCount * SAMPLES_PER_AAC_FRAME;
+    }
+
+    private long movieDuration() {
+        return mediaDuration() * MOVIE_TIMESCALE / mSampleRate;
+    }
+
+    private boolean longDurations() {
+        return mediaDuration() > 0xFFFFFFFFL;
+    }
+
+    private static int ftypSize() {
+        return 8 + 4 + 4 + 3 * 4;
+    }
+
+    private int moovSize(boolean largeOffsets) {
+        return 8 + mvhdSize() + trakSize(largeOffsets) + userDataSize();
+    }
+
+    private int userDataSize() {
+        return mUserData == null ? 0 : mUserData.length;
+    }
+
+    private int mvhdSize() {
+        return longDurations() ? 120 : 108;
+    }
+
+    private int trakSize(boolean largeOffsets) {
+        return 8 + tkhdSize() + mdiaSize(largeOffsets);
+    }
+
+    private int tkhdSize() {
+        return longDurations() ? 104 : 92;
+    }
+
+    private int mdiaSize(boolean largeOffsets) {
+        return 8 + mdhdSize() + hdlrSize() + minfSize(largeOffsets);
+    }
+
+    private int mdhdSize() {
+        return longDurations() ? 44 : 32;
+    }
+
+    private static int hdlrSize() {
+        return 8 + 4 + 4 + 4 + 12 + "SoundHandler".length() + 1;
+    }
+
+    private int minfSize(boolean largeOffsets) {
+        return 8 + 16 + dinfSize() + stblSize(largeOffsets);
+    }
+
+    private static int dinfSize() {
+        return 8 + 8 + 8 + 12;
+    }
+
+    private int stblSize(boolean largeOffsets) {
+        return 8 + stsdSize() + 24 + stscSize() + 20 + 4 * mFrameCount
+                + 16 + (largeOffsets ? 8 : 4) * chunkCount();
+    }
+
+    private int stscSize() {
+        boolean partialLastChunk = mFrameCount % framesPerChunk() != 0 && chunkCount() > 1;
+        return 16 + 12 * (partialLastChunk ? 2 : 1);
+    }
+
+    private int stsdSize() {
+        return 8 + 8 + mp4aSize();
+    }
+
+    private int mp4aSize() {
+        return 8 + 28 + esdsSize();
+    }
+
+    private static int esdsSize() {
+        // version/flags, ES_Descriptor 3 + 3, DecoderConfigDescriptor 2 + 13, DecoderSpecificInfo 2 + 2, SLConfig 2 + 1
+        return 8 + 4 + 2 + 3 + 2 + 13 + 2 + 2 + 2 + 1;
+    }
+
+    /**
+     * Write 'ftyp' and 'moov', the first payload byte lands at {@code dataOffset}.
+     */
+    private void writeHeader(FileChannel out, long dataOffset, boolean largeOffsets) throws IOException {
+        int framesPerChunk = framesPerChunk();
+        int chunkCount = chunkCount();
+        int offsetSize = largeOffsets ? 8 : 4;
+        // everything up to the sample sizes
+        ByteBuffer header = ByteBuffer.allocate(ftypSize() + moovSize(largeOffsets) - 4 * mFrameCount
+                - 16 - offsetSize * chunkCount - userDataSize());
+        long now = System.currentTimeMillis() / 1000 + MP4_EPOCH_OFFSET;
+        boolean longDurations = longDurations();
+
+        header.putInt(ftypSize()).put(fourCc("ftyp")).put(fourCc("M4A ")).putInt(0)
+                .put(fourCc("M4A ")).put(fourCc("mp42")).put(fourCc("isom"));
+
+        header.putInt(moovSize(largeOffsets)).put(fourCc("moov"));
+        header.putInt(mvhdSize()).put(fourCc("mvhd"));
+        putTimes(header, longDurations, now, MOVIE_TIMESCALE, movieDuration());
+        header.putInt(0x00010000).putShort((short) 0x0100).putShort((short) 0).putLong(0);
+        putMatrix(header);
+        header.put(new byte[24]).putInt(TRACK_ID + 1);
+
+        header.putInt(trakSize(largeOffsets)).put(fourCc("trak"));
+        header.putInt(tkhdSize()).put(fourCc("tkhd"));
+        header.putInt((longDurations ? 1 << 24 : 0) | 0x07); // enabled, in movie, in preview
+        if (longDurations) {
+            header.putLong(now).putLong(now).putInt(TRACK_ID).putInt(0).putLong(movieDuration());
+        } else {
+            header.putInt((int) now).putInt((int) now).putInt(TRACK_ID).putInt(0).putInt((int) movieDuration());
+        }
+        header.putLong(0).putShort((short) 0).putShort((short) 0).putShort((short) 0x0100).putShort((short) 0);
+        putMatrix(header);
+        header.putInt(0).putInt(0);
+
+        header.putInt(mdiaSize(largeOffsets)).put(fourCc("mdia"));
+        header.putInt(mdhdSize()).put(fourCc("mdhd"));
+        putTimes(header, longDurations, now, mSampleRate, mediaDuration());
+        header.putShort((short) 0x55C4).putShort((short) 0); // 'und'
+
+        header.putInt(hdlrSize()).put(fourCc("hdlr")).putInt(0).putInt(0).put(fourCc("soun")).put(new byte[12])
+                .put("SoundHandler".getBytes("US-ASCII")).put((byte) 0);
+
+        header.putInt(minfSize(largeOffsets)).put(fourCc("minf"));
+        header.putInt(16).put(fourCc("smhd")).putInt(0).putInt(0);
+        header.putInt(dinfSize()).put(fourCc("dinf"));
+        header.putInt(dinfSize() - 8).put(fourCc("dref")).putInt(0).putInt(1);
+        header.putInt(12).put(fourCc("url ")).putInt(1); // media is in this file
+
+        header.putInt(stblSize(largeOffsets)).put(fourCc("stbl"));
+        putSampleDescription(header);
+        header.putInt(24).put(fourCc("stts")).putInt(0).putInt(1).putInt(mFrameCount).putInt(SAMPLES_PER_AAC_FRAME);
+        header.putInt(stscSize()).put(fourCc("stsc")).putInt(0);
+        if (stscSize() > 28) {
+            header.putInt(2).putInt(1).putInt(framesPerChunk).putInt(1)
+                    .putInt(chunkCount).putInt(mFrameCount - (chunkCount - 1) * framesPerChunk).putInt(1);
+        } else {
+            header.putInt(1).putInt(1).putInt(Math.min(framesPerChunk, mFrameCount)).putInt(1);
+        }
+        header.putInt(20 + 4 * mFrameCount).put(fourCc("stsz")).putInt(0).putInt(0).putInt(mFrameCount);
+        header.flip();
+        writeFully(out, header);
+
+        // sample sizes and chunk offsets are streamed, they are most of 'moov'
+        ByteBuffer table = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        for (int i = 0; i < mFrameCount; i++) {
+            if (table.remaining() < 4) {
+                drain(out, table);
+            }
+            table.putInt(mFrameSizes[i]);
+        }
+        if (table.remaining() < 16) {
+            drain(out, table);
+        }
+        table.putInt(16 + offsetSize * chunkCount).put(fourCc(largeOffsets ? "co64" : "stco"))
+                .putInt(0).putInt(chunkCount);
+        long offset = dataOffset;
+        for (int i = 0; i < mFrameCount; i++) {
+            if (i % framesPerChunk == 0) {
+                if (table.remaining() < 8) {
+                    drain(out, table);
+                }
+                if (largeOffsets) {
+                    table.putLong(offset);
+                } else {
+                    table.putInt((int) offset);
+                }
+            }
+            offset += mFrameSizes[i];
+        }
+        drain(out, table);
+        if (mUserData != null) {
+            writeFully(out, ByteBuffer.wrap(mUserData));
+        }
+    }
+
+    /**
+     * 'udta' with an iTunes metadata list of freeform tags, which is where players look for ReplayGain in mp4.
+     *
+     * @return the whole box, null without loudness
+     */
+    private byte[] createUserData() throws IOException {
+        if (mLoudness == null) {
+            return null;
+        }
+        String[][] tags = {
+                {"replaygain_track_gain", mLoudness.formatReplayGain()},
+                {"replaygain_track_peak", mLoudness.formatReplayGainPeak()},
+                {"replaygain_reference_loudness",
+                        String.format(Locale.US, "%.2f LUFS", LoudnessInfo.REPLAY_GAIN_REFERENCE)},
+                {"loudness_integrated", String.format(Locale.US, "%.2f LUFS", mLoudness.getIntegratedLoudness())},
+                {"loudness_range", String.format(Locale.US, "%.2f LU", mLoudness.getLoudnessRange())},
+                {"loudness_true_peak", String.format(Locale.US, "%.2f dBTP", mLoudness.getTruePeakDb())},
+        };
+        byte[] mean = FREEFORM_MEAN.getBytes("US-ASCII");
+        int ilstSize = 8;
+        for (String[] tag : tags) {
+            ilstSize += freeformSize(mean.length, tag[0].length(), tag[1].length());
+        }
+        int hdlrSize = 8 + 4 + 4 + 4 + 12 + 1;
+        int metaSize = 8 + 4 + hdlrSize + ilstSize;
+        ByteBuffer box = ByteBuffer.allocate(8 + metaSize);
+        box.putInt(8 + metaSize).put(fourCc("udta"));
+        box.putInt(metaSize).put(fourCc("meta")).putInt(0);
+        box.putInt(hdlrSize).put(fourCc("hdlr")).putInt(0).putInt(0).put(fourCc("mdir")).put(fourCc("appl"))
+                .putInt(0).putInt(0).put((byte) 0);
+        box.putInt(ilstSize).put(fourCc("ilst"));
+        for (String[] tag : tags) {
+            byte[] name = tag[0].getBytes("US-ASCII");
+            byte[] value = tag[1].getBytes("UTF-8");
+            box.putInt(freeformSize(mean.length, name.length, value.length)).put(fourCc("----"));
+            box.putInt(12 + mean.length).put(fourCc("mean")).putInt(0).put(mean);
+            box.putInt(12 + name.length).put(fourCc("name")).putInt(0).put(name);
+            box.putInt(16 + value.length).put(fourCc("data")).putInt(1).putInt(0).put(value); // utf-8, no locale
+        }
+        return box.array();
+    }
+
+    private static int freeformSize(int meanLength, int nameLength, int valueLength) {
+        return 8 + 12 + meanLength + 12 + nameLength + 16 + valueLength;
+    }
+
+    private static void putTimes(ByteBuffer header, boolean longDurations, long now, int timescale, long duration) {
+        if (longDurations) {
+            header.putInt(1 << 24).putLong(now).putLong(now).putInt(timescale).putLong(duration);
+        } else {
+            header.putInt(0).putInt((int) now).putInt((int) now).putInt(timescale).putInt((int) duration);
+        }
+    }
+
+    private static void putMatrix(ByteBuffer header) {
+        for (int value : UNITY_MATRIX) {
+            header.putInt(value);
+        }
+    }
+
+    private void putSampleDescription(ByteBuffer header) {
+        int channels = mChannelConfig == 7 ? 8 : Math.max(1, mChannelConfig);
+        header.putInt(stsdSize()).put(fourCc("stsd")).putInt(0).putInt(1);
+        header.putInt(mp4aSize()).put(fourCc("mp4a")).put(new byte[6]).putShort((short) 1) // data reference index
+                .putLong(0).putShort((short) channels).putShort((short) 16).putInt(0)
+                .putInt(mSampleRate > 0xFFFF ? 0 : mSampleRate << 16);
+
+        long bitRate = mPayloadSize * 8 * mSampleRate / mediaDuration();
+        header.putInt(esdsSize()).put(fourCc("esds")).putInt(0);
+        header.put((byte) 0x03).put((byte) 25).putShort((short) 0).put((byte) 0); // ES_Descriptor, ES_ID 0
+        header.put((byte) 0x04).put((byte) 17).put((byte) 0x40).put((byte) 0x15); // AAC, audio stream
+        header.put((byte) (mMaxFrameSize >> 16)).putShort((short) mMaxFrameSize) // buffer size
+                .putInt((int) Math.min(Integer.MAX_VALUE, (long) mMaxFrameSize * 8 * mSampleRate / SAMPLES_PER_AAC_FRAME))
+                .putInt((int) bitRate);
+        // AudioSpecificConfig, the adts profile is the audio object type minus 1
+        int audioObjectType = mProfile + 1;
+        header.put((byte) 0x05).put((byte) 2)
+                .put((byte) ((audioObjectType << 3) | (mFrequencyIndex >> 1)))
+                .put((byte) (((mFrequencyIndex & 1) << 7) | (mChannelConfig << 3)));
+        header.put((byte) 0x06).put((byte) 1).put((byte) 2); // SLConfigDescriptor, predefined for mp4
+    }
+
+    private void writeMediaDataHeader(FileChannel out, long headerSize) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate((int) headerSize);
+        if (headerSize == 16) {
+            header.putInt(1).put(fourCc("mdat")).putLong(16 + mPayloadSize);
+        } else {
+            header.putInt((int) (8 + mPayloadSize)).put(fourCc("mdat"));
+        }
+        header.flip();
+        writeFully(out, header);
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static byte[] fourCc(String type) {
+        byte[] bytes = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            bytes[i] = (byte) type.charAt(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return number of frames of the last remux
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return duration of the last remux, time unit is ms
+     */
+    public long getDuration() {
+        return mSampleRate == 0 ? 0 : mediaDuration() * 1000 / mSampleRate;
+    }
+
+    /**
+     * @return true if {@code inputFile} starts with an ADTS header, e.g. a temporary file left behind
+     */
+    public static boolean isAdtsFile(File inputFile) throws IOException {
+        FileInputStream in = new FileInputStream(inputFile);
+        try {
+            int b0 = in.read();
+            int b1 = in.read();
+            return b0 == 0xFF && b1 >= 0 && (b1 & 0xF6) == 0xF0;
+        } finally {
+            in.close();
+        }
+    }
+}
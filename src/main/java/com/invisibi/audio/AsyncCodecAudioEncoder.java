@@ -0,0 +1,267 @@
+package com.invisibi.audio;
+
+import com.googlecode.mp4parser.util.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drive an AAC {@link AudioCodec} from two threads: {@link #encode(short[], int, int)} only queues input on the
+ * encoder thread, a drain thread blocks on the codec output and passes every frame to the sink as soon as it is ready.
+ * In-flight audio is bounded by the codec input buffers, when none frees up within the input timeout the rest of the
+ * frame is rejected. Input is stamped from the number of samples queued and output from the number of AAC frames
+ * emitted, so presentation times are sample accurate whatever the codec reports.
+ */
+public class AsyncCodecAudioEncoder implements AudioEncoder {
+
+    public static final int SAMPLES_PER_AAC_FRAME = 1024;
+    public static final int DEFAULT_INPUT_TIMEOUT = 100;
+
+    private static final Logger LOG = Logger.getLogger(AsyncCodecAudioEncoder.class);
+    private static final long OUTPUT_TIMEOUT_US = 10 * 1000;
+    private static final long END_OF_STREAM_TIMEOUT = 1000; // ms
+
+    private final AudioCodec mCodec;
+    private final int mSampleRate;
+    private final int mChannels;
+    private final long mInputTimeoutUs;
+    private final AudioCodec.BufferInfo mBufferInfo = new AudioCodec.BufferInfo();
+    private volatile EncodedFrameSink mSink;
+
+    private Thread mDrainThread;
+    private volatile boolean mDrainStopping;
+    private volatile boolean mAborted;
+    private final CountDownLatch mEndOfStream = new CountDownLatch(1);
+
+    // encoder thread only
+    private long mQueuedSamples; // per channel
+
+    private final AtomicLong mEmittedFrames = new AtomicLong();
+    private final AtomicLong mInputTimeouts = new AtomicLong();
+    private final AtomicLong mFormatChanges = new AtomicLong();
+
+    public AsyncCodecAudioEncoder(AudioCodec codec, int sampleRate, int channels) {
+        this(codec, sampleRate, channels, DEFAULT_INPUT_TIMEOUT);
+    }
+
+    /**
+     * @param codec        configured AAC codec, owned by the encoder from now on
+     * @param inputTimeout max time to wait for a free codec input buffer before the rest of the frame is rejected,
+     *                     time unit is ms
+     */
+    public AsyncCodecAudioEncoder(AudioCodec codec, int sampleRate, int channels, int inputTimeout) {
+        mCodec = codec;
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mInputTimeoutUs = TimeUnit.MILLISECONDS.toMicros(inputTimeout);
+    }
+
+    @Override
+    public void setSink(EncodedFrameSink sink) {
+        mSink = sink;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (mDrainThread != null) {
+            return; // resumed after pause
+        }
+        mCodec.start();
+        mDrainThread = new Thread("EncoderDrainThread") {
+            @Override
+            public void run() {
+                drainOutput();
+                LOG.logDebug("encoder drain thread stopped");
+            }
+        };
+        mDrainThread.start();
+    }
+
+    /**
+     * Queue the frame into as many codec input buffers as it needs. If no input buffer frees up within the input
+     * timeout, or the codec fails, after part of the frame was queued, that part is reported as taken.
+     */
+    @Override
+    public int encode(short[] pcm, int offset, int count) {
+        int taken = 0;
+        try {
+            while (taken < count) {
+                int index = mCodec.dequeueInputBuffer(mInputTimeoutUs);
+                if (index < 0) {
+                    mInputTimeouts.lazySet(mInputTimeouts.get() + 1);
+                    break;
+                }
+                ByteBuffer input = mCodec.getInputBuffer(index);
+                input.clear();
+                int samples = Math.min(count - taken, input.capacity() / 2);
+                samples -= samples % mChannels;
+                input.order(ByteOrder.nativeOrder()).asShortBuffer().put(pcm, offset + taken, samples);
+                mCodec.queueInputBuffer(index, 0, 2 * samples, mQueuedSamples * 1000000L / mSampleRate, 0);
+                mQueuedSamples += samples / mChannels;
+                taken += samples;
+            }
+        } catch (IllegalStateException e) {
+            if (taken == 0) {
+                throw e;
+            }
+            LOG.logError("encoder input failed, " + e.getMessage());
+        }
+        return taken;
+    }
+
+    private void drainOutput() {
+        try {
+            while (true) {
+                int index = mCodec.dequeueOutputBuffer(mBufferInfo, OUTPUT_TIMEOUT_US);
+                if (index == AudioCodec.INFO_TRY_AGAIN_LATER) {
+                    if (mDrainStopping) {
+                        return;
+                    }
+                    continue;
+                }
+                if (index == AudioCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    mFormatChanges.incrementAndGet();
+                    LOG.logDebug("encoder output format changed");
+                    continue;
+                }
+                if (index == AudioCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    LOG.logDebug("encoder output buffers changed");
+                    continue;
+                }
+                if (index < 0) {
+                    continue;
+                }
+
+                writeOutput(mCodec.getOutputBuffer(index));
+                mCodec.releaseOutputBuffer(index);
+                if ((mBufferInfo.flags & AudioCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        } catch (IllegalStateException e) {
+            LOG.logError("encoder output failed, " + e.getMessage());
+        } finally {
+            mEndOfStream.countDown();
+        }
+    }
+
+    private void writeOutput(ByteBuffer output) {
+        // AudioSpecificConfig is written by the sink itself
+        if (mBufferInfo.size == 0 || (mBufferInfo.flags & AudioCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        long frame = mEmittedFrames.get();
+        mEmittedFrames.lazySet(frame + 1);
+        EncodedFrameSink sink = mSink;
+        if (sink == null) {
+            return;
+        }
+        output.position(mBufferInfo.offset);
+        output.limit(mBufferInfo.offset + mBufferInfo.size);
+        try {
+            sink.writeFrame(output, frame * SAMPLES_PER_AAC_FRAME * 1000000L / mSampleRate);
+        } catch (IOException e) {
+            LOG.logError("cannot write audio data");
+        } finally {
+            output.clear();
+        }
+    }
+
+    /**
+     * Signal end of stream and wait until the drain thread has passed the last frame to the sink.
+     */
+    @Override
+    public void flush() {
+        Thread drainThread;
+        synchronized (this) {
+            drainThread = mDrainThread;
+        }
+        if (drainThread == null) {
+            return;
+        }
+        try {
+            int index = mCodec.dequeueInputBuffer(mInputTimeoutUs);
+            if (index >= 0) {
+                mCodec.queueInputBuffer(index, 0, 0, mQueuedSamples * 1000000L / mSampleRate,
+                        AudioCodec.BUFFER_FLAG_END_OF_STREAM);
+                if (!mEndOfStream.await(END_OF_STREAM_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    LOG.logWarn("encoder did not reach end of stream in " + END_OF_STREAM_TIMEOUT + "ms");
+                }
+            } else {
+                LOG.logWarn("no free encoder input buffer for end of stream");
+            }
+        } catch (IllegalStateException e) {
+            LOG.logError("cannot signal end of stream, " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        stopDrainThread();
+    }
+
+    private void stopDrainThread() {
+        Thread drainThread;
+        synchronized (this) {
+            drainThread = mDrainThread;
+        }
+        if (drainThread == null) {
+            return;
+        }
+        mDrainStopping = true;
+        try {
+            drainThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Ask the drain thread to exit without waiting for it. {@link #release()} then neither waits for the threads nor
+     * stops or releases the codec, which they may still be calling, the codec is leaked instead of being reused.
+     */
+    @Override
+    public void abort() {
+        mAborted = true;
+        mDrainStopping = true;
+    }
+
+    @Override
+    public void release() {
+        if (mAborted) {
+            LOG.logWarn("encoder was aborted, leak the codec instead of releasing it");
+            return;
+        }
+        stopDrainThread();
+        try {
+            synchronized (this) {
+                if (mDrainThread != null) {
+                    mCodec.stop();
+                }
+            }
+            mCodec.release();
+        } catch (Exception e) {
+            LOG.logError("Cannot stop encoder correctly");
+        }
+    }
+
+    /**
+     * @return number of AAC frames passed to the sink
+     */
+    public long getEmittedFrameCount() {
+        return mEmittedFrames.get();
+    }
+
+    /**
+     * @return number of times no codec input buffer freed up in time, the frame or its rest was rejected then
+     */
+    public long getInputTimeoutCount() {
+        return mInputTimeouts.get();
+    }
+
+    public long getFormatChangeCount() {
+        return mFormatChanges.get();
+    }
+}
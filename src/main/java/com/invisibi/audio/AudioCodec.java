@@ -0,0 +1,64 @@
+package com.invisibi.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The part of {@link android.media.MediaCodec} used by {@link AsyncCodecAudioEncoder}, so the encoder driver
+ * runs on a JVM against {@link StandInAudioCodec}. Return codes and flags have the MediaCodec values.
+ * Input methods are called from the encoder thread, output methods from the drain thread.
+ */
+public interface AudioCodec {
+
+    int INFO_TRY_AGAIN_LATER = -1;
+    int INFO_OUTPUT_FORMAT_CHANGED = -2;
+    int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+
+    int BUFFER_FLAG_CODEC_CONFIG = 2;
+    int BUFFER_FLAG_END_OF_STREAM = 4;
+
+    /**
+     * Metadata of a dequeued output buffer, reused by the caller.
+     */
+    class BufferInfo {
+        public int offset;
+        public int size;
+        public long presentationTimeUs;
+        public int flags;
+
+        public void set(int offset, int size, long presentationTimeUs, int flags) {
+            this.offset = offset;
+            this.size = size;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+        }
+    }
+
+    void start();
+
+    /**
+     * @param timeoutUs max time to wait for a free input buffer, time unit is microsecond
+     * @return index of the input buffer, or {@link #INFO_TRY_AGAIN_LATER}
+     */
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    /**
+     * @param timeoutUs max time to wait for encoded output, time unit is microsecond
+     * @return index of the output buffer, or one of the INFO_ codes
+     */
+    int dequeueOutputBuffer(BufferInfo info, long timeoutUs);
+
+    /**
+     * @return output buffer of {@code index}, valid until {@link #releaseOutputBuffer(int)}
+     */
+    ByteBuffer getOutputBuffer(int index);
+
+    void releaseOutputBuffer(int index);
+
+    void stop();
+
+    void release();
+}
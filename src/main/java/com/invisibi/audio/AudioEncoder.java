@@ -0,0 +1,44 @@
+package com.invisibi.audio;
+
+/**
+ * Encoder stage of the recording pipeline. Everything except {@link #setSink(EncodedFrameSink)} and
+ * {@link #abort()} is called from the encoder thread or after it has stopped.
+ */
+public interface AudioEncoder {
+
+    /**
+     * @param sink receives the encoded frames, null to discard them
+     */
+    void setSink(EncodedFrameSink sink);
+
+    /**
+     * Called before the first frame of every recording run, it must tolerate being started twice.
+     */
+    void start();
+
+    /**
+     * Encode a frame of 16bit PCM samples, the encoder may take only the first part of it.
+     *
+     * @param pcm    the samples
+     * @param offset offset of the first sample in {@code pcm}
+     * @param count  number of samples
+     * @return number of samples taken from the start of the frame, a whole number of sample frames,
+     * the rest is counted as dropped
+     * @throws IllegalStateException if the encoder failed before taking any of the frame
+     */
+    int encode(short[] pcm, int offset, int count);
+
+    /**
+     * Push every pending encoded frame to the sink, called once after the last frame.
+     */
+    void flush();
+
+    /**
+     * Give up on the encoder from any thread, e.g. when the encoder thread does not return from
+     * {@link #encode(short[], int, int)}. {@link #release()} must not hand anything the encoder threads may still
+     * be using to others afterwards, e.g. to a pool.
+     */
+    void abort();
+
+    void release();
+}
@@ -0,0 +1,116 @@
+package com.invisibi.audio;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.audiofx.AutomaticGainControl;
+import android.media.audiofx.NoiseSuppressor;
+import android.util.Log;
+import android.util.SparseIntArray;
+
+/**
+ * Capture mono 16bit PCM from {@link AudioRecord}, with noise suppression and automatic gain
+ * control when the device supports them.
+ */
+public class AudioRecordPcmSource implements PcmSource {
+
+    private static final String TAG = "AudioRecordPcmSource";
+    private static final SparseIntArray sMinBufferSizes = new SparseIntArray();
+
+    private final AudioRecord mAudioRecord;
+    private final int mSampleRate;
+    private final int mMinBufferSize;
+    private NoiseSuppressor mNoiseSuppressor;
+    private AutomaticGainControl mAGC;
+
+    public AudioRecordPcmSource(int audioSource, int sampleRate) {
+        this(audioSource, sampleRate, 2 * getMinBufferSize(sampleRate));
+    }
+
+    /**
+     * @param bufferSize size of the {@link AudioRecord} buffer, time unit is byte, raised to twice the minimum
+     *                   buffer size. Should hold at least two of the largest reads so none overruns
+     */
+    public AudioRecordPcmSource(int audioSource, int sampleRate, int bufferSize) {
+        mSampleRate = sampleRate;
+        mMinBufferSize = getMinBufferSize(sampleRate);
+        mAudioRecord = new AudioRecord(audioSource, sampleRate, AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT, Math.max(bufferSize, 2 * mMinBufferSize));
+
+        if (NoiseSuppressor.isAvailable()) {
+            Log.v(TAG, "NoiseSuppressor is available, create it to improve recording quality");
+            mNoiseSuppressor = NoiseSuppressor.create(mAudioRecord.getAudioSessionId());
+        }
+
+        if (AutomaticGainControl.isAvailable()) {
+            Log.v(TAG, "AutomaticGainControl is available, create it to improve recording quality");
+            mAGC = AutomaticGainControl.create(mAudioRecord.getAudioSessionId());
+        }
+    }
+
+    /**
+     * @return minimum buffer size of {@link AudioRecord}, time unit is byte
+     */
+    public int getMinBufferSize() {
+        return mMinBufferSize;
+    }
+
+    /**
+     * @return minimum buffer size of {@link AudioRecord} for mono 16bit PCM at {@code sampleRate}, cached per process
+     */
+    public static int getMinBufferSize(int sampleRate) {
+        synchronized (sMinBufferSizes) {
+            int size = sMinBufferSizes.get(sampleRate);
+            if (size <= 0) {
+                size = AudioRecord.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+                if (size > 0) {
+                    sMinBufferSizes.put(sampleRate, size);
+                }
+            }
+            return size;
+        }
+    }
+
+    @Override
+    public void start() {
+        mAudioRecord.startRecording();
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int count) {
+        return mAudioRecord.read(buffer, offset, count);
+    }
+
+    @Override
+    public void stop() {
+        if (mAudioRecord.getState() == AudioRecord.STATE_INITIALIZED) {
+            mAudioRecord.stop();
+        }
+    }
+
+    @Override
+    public boolean isActive() {
+        return mAudioRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING;
+    }
+
+    @Override
+    public void release() {
+        mAudioRecord.release();
+        if (mNoiseSuppressor != null) {
+            mNoiseSuppressor.release();
+        }
+
+        if (mAGC != null) {
+            mAGC.release();
+        }
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getChannels() {
+        return 1;
+    }
+}
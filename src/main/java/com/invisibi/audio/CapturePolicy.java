@@ -0,0 +1,52 @@
+package com.invisibi.audio;
+
+/**
+ * How much audio the capture thread reads at a time.
+ * Small reads keep level metering and voice detection live, large reads wake the capture thread less often and
+ * save power while nobody is watching, e.g. when the UI is in the background.
+ * The mode may change while recording, only the size of the following reads changes so the audio stays continuous.
+ */
+public final class CapturePolicy {
+
+    /**
+     * One minimum buffer of the audio source per read.
+     */
+    public static final int MODE_DEFAULT = 0;
+    /**
+     * Reads of {@link #LOW_LATENCY_READ_DURATION}, for live metering.
+     */
+    public static final int MODE_LOW_LATENCY = 1;
+    /**
+     * Reads of {@link #POWER_SAVING_READ_DURATION}, for recording in the background.
+     */
+    public static final int MODE_POWER_SAVING = 2;
+
+    public static final int LOW_LATENCY_READ_DURATION = 10; // ms
+    public static final int POWER_SAVING_READ_DURATION = 250; // ms
+
+    private CapturePolicy() {
+    }
+
+    /**
+     * @param samplesPerSecond sample rate times channel count
+     * @param defaultReadSize  number of samples per read in {@link #MODE_DEFAULT}
+     * @return number of samples per read in {@code mode}
+     */
+    public static int getReadSize(int mode, int samplesPerSecond, int defaultReadSize) {
+        switch (mode) {
+            case MODE_LOW_LATENCY:
+                return Math.max(1, Math.min(defaultReadSize, samplesPerSecond * LOW_LATENCY_READ_DURATION / 1000));
+            case MODE_POWER_SAVING:
+                return getMaxReadSize(samplesPerSecond, defaultReadSize);
+            default:
+                return defaultReadSize;
+        }
+    }
+
+    /**
+     * @return the largest read of any mode, capture buffers are sized for it so the mode can change while recording
+     */
+    public static int getMaxReadSize(int samplesPerSecond, int defaultReadSize) {
+        return Math.max(defaultReadSize, samplesPerSecond * POWER_SAVING_READ_DURATION / 1000);
+    }
+}
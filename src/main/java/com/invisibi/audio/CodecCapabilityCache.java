@@ -0,0 +1,58 @@
+package com.invisibi.audio;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of the encoder picked for each mime type, {@link MediaCodecList} is scanned once
+ * instead of on every prepare.
+ */
+public final class CodecCapabilityCache {
+
+    private static final String PREFERRED_AAC_ENCODER = "OMX.google.aac.encoder"; //use google's aac encoder first
+
+    private static final Map<String, String> sEncoderNames = new HashMap<String, String>();
+
+    private CodecCapabilityCache() {
+    }
+
+    /**
+     * @return name of the encoder to create for {@code mimeType}, null if the device has none
+     */
+    public static synchronized String getEncoderName(String mimeType) {
+        if (sEncoderNames.containsKey(mimeType)) {
+            return sEncoderNames.get(mimeType);
+        }
+        String name = findEncoder(mimeType);
+        sEncoderNames.put(mimeType, name);
+        return name;
+    }
+
+    private static String findEncoder(String mimeType) {
+        String first = null;
+        int numCodecs = MediaCodecList.getCodecCount();
+        for (int i = 0; i < numCodecs; i++) {
+            MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+
+            if (!codecInfo.isEncoder()) {
+                continue;
+            }
+
+            String[] types = codecInfo.getSupportedTypes();
+            for (int j = 0; j < types.length; j++) {
+                if (types[j].equalsIgnoreCase(mimeType)) {
+                    if (PREFERRED_AAC_ENCODER.equals(codecInfo.getName())) {
+                        return codecInfo.getName();
+                    }
+                    if (first == null) {
+                        first = codecInfo.getName();
+                    }
+                }
+            }
+        }
+        return first;
+    }
+}
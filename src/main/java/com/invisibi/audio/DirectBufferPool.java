@@ -0,0 +1,86 @@
+package com.invisibi.audio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps released direct buffers for the next recording, allocating direct memory is slow and it is only given back
+ * when the garbage collector gets to the buffer. At most {@code maxIdle} buffers are kept.
+ */
+public class DirectBufferPool {
+
+    private final int mMaxIdle;
+    private final List<ByteBuffer> mIdleBuffers = new ArrayList<ByteBuffer>();
+    private long mAllocatedCount;
+    private long mReusedCount;
+
+    public DirectBufferPool(int maxIdle) {
+        mMaxIdle = maxIdle;
+    }
+
+    /**
+     * @return a cleared direct buffer of at least {@code capacity} bytes, the smallest idle one that fits
+     */
+    public synchronized ByteBuffer acquire(int capacity) {
+        int best = -1;
+        for (int i = 0; i < mIdleBuffers.size(); i++) {
+            int size = mIdleBuffers.get(i).capacity();
+            if (size >= capacity && (best < 0 || size < mIdleBuffers.get(best).capacity())) {
+                best = i;
+            }
+        }
+        if (best >= 0) {
+            mReusedCount++;
+            ByteBuffer buffer = mIdleBuffers.remove(best);
+            buffer.clear();
+            return buffer;
+        }
+        mAllocatedCount++;
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Give a buffer back, it must not be used by the caller afterwards.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        for (ByteBuffer idle : mIdleBuffers) {
+            // ByteBuffer.equals compares the content
+            if (idle == buffer) {
+                return;
+            }
+        }
+        mIdleBuffers.add(buffer);
+        if (mIdleBuffers.size() > mMaxIdle) {
+            // the smallest one is the least likely to fit the next request
+            int smallest = 0;
+            for (int i = 1; i < mIdleBuffers.size(); i++) {
+                if (mIdleBuffers.get(i).capacity() < mIdleBuffers.get(smallest).capacity()) {
+                    smallest = i;
+                }
+            }
+            mIdleBuffers.remove(smallest);
+        }
+    }
+
+    public synchronized void clear() {
+        mIdleBuffers.clear();
+    }
+
+    /**
+     * @return number of buffers allocated because no idle one fit
+     */
+    public synchronized long getAllocatedCount() {
+        return mAllocatedCount;
+    }
+
+    /**
+     * @return number of requests served from idle buffers
+     */
+    public synchronized long getReusedCount() {
+        return mReusedCount;
+    }
+}
@@ -0,0 +1,85 @@
+package com.invisibi.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Lock file telling other processes a directory is in use, the system drops the lock when the holding process dies.
+ * A process opens at most one channel on a lock file, as closing any channel on a file may release all the locks the
+ * process holds on it.
+ */
+class DirectoryLock {
+
+    static final String FILE_NAME = ".lock";
+
+    // lock files held by this process
+    private static final Set<String> sHeld = new HashSet<String>();
+
+    private final File mDirectory;
+    private final String mPath;
+    private final RandomAccessFile mFile;
+    private final FileLock mLock;
+
+    private DirectoryLock(File directory, String path, RandomAccessFile file, FileLock lock) {
+        mDirectory = directory;
+        mPath = path;
+        mFile = file;
+        mLock = lock;
+    }
+
+    /**
+     * @return the lock of {@code directory}, null if this or another process holds it
+     */
+    static DirectoryLock tryLock(File directory) throws IOException {
+        String path = new File(directory, FILE_NAME).getPath();
+        synchronized (sHeld) {
+            if (sHeld.contains(path)) {
+                return null;
+            }
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            FileLock lock = null;
+            try {
+                lock = file.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                // held through a channel this class did not open
+            } finally {
+                if (lock == null) {
+                    file.close();
+                }
+            }
+            if (lock == null) {
+                return null;
+            }
+            sHeld.add(path);
+            return new DirectoryLock(directory, path, file, lock);
+        }
+    }
+
+    File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Release the lock, the lock file itself is left to whoever deletes the directory.
+     */
+    void release() {
+        synchronized (sHeld) {
+            try {
+                mLock.release();
+            } catch (IOException e) {
+                // closing the file drops the lock anyway
+            }
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                // nothing left to release
+            }
+            sHeld.remove(mPath);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.invisibi.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Output stage of the recording pipeline, receives encoded AAC frames.
+ */
+public interface EncodedFrameSink {
+
+    /**
+     * Write one raw AAC frame. The bytes between position and limit of {@code frame} are only valid
+     * during the call, implementations must copy what they keep.
+     *
+     * @param frame              the encoded frame without ADTS header
+     * @param presentationTimeUs presentation time of the frame, time unit is microsecond
+     */
+    void writeFrame(ByteBuffer frame, long presentationTimeUs) throws IOException;
+
+    /**
+     * Finalize the output, no frame is written afterwards.
+     */
+    void close() throws IOException;
+}
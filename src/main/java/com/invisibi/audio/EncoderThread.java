@@ -0,0 +1,173 @@
+package com.invisibi.audio;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drains a {@link PcmFrameQueue} into an {@link AudioEncoder} on its own thread, so a slow encoder
+ * cannot stall the capture thread. The thread parks while the queue is empty and is woken by
+ * {@link #signal()} after the producer offers a frame.
+ */
+public class EncoderThread extends Thread {
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * Interface definition for a callback with the samples the encoder took, called on the encoder thread.
+     */
+    public interface Listener {
+        /**
+         * @param pcm samples taken by the encoder, only valid during the call
+         */
+        void onEncoded(short[] pcm, int offset, int count);
+    }
+
+    private final PcmFrameQueue mQueue;
+    private final AudioEncoder mEncoder;
+    private final short[] mFrame;
+    private final long mFrameDurationNanos;
+    private volatile boolean mFinishing;
+    private volatile boolean mAborted;
+    private Listener mListener;
+
+    private final AtomicLong mEncodedFrames = new AtomicLong();
+    private final AtomicLong mDroppedFrames = new AtomicLong();
+    private final AtomicLong mEncodedSamples = new AtomicLong();
+    private final AtomicLong mDroppedSamples = new AtomicLong();
+    private final AtomicLong mSlowFrames = new AtomicLong();
+    private final AtomicLong mIdleWaits = new AtomicLong();
+    private final StageTimer mEncodeTimer = new StageTimer("encode");
+
+    /**
+     * @param queue      frames from the capture thread
+     * @param encoder    encoder to feed
+     * @param sampleRate sample rate of the frames, used to detect encodes slower than real time
+     */
+    public EncoderThread(PcmFrameQueue queue, AudioEncoder encoder, int sampleRate) {
+        super("EncoderThread");
+        mQueue = queue;
+        mEncoder = encoder;
+        mFrame = new short[queue.getFrameSize()];
+        mFrameDurationNanos = TimeUnit.SECONDS.toNanos(queue.getFrameSize()) / sampleRate;
+    }
+
+    /**
+     * @param listener receives every sample the encoder took, set before the thread starts
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void run() {
+        while (!mAborted) {
+            int count = mQueue.poll(mFrame, 0);
+            if (count < 0) {
+                if (mFinishing) {
+                    break;
+                }
+                mIdleWaits.lazySet(mIdleWaits.get() + 1);
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+
+            long start = System.nanoTime();
+            int taken;
+            try {
+                taken = mEncoder.encode(mFrame, 0, count);
+            } catch (IllegalStateException e) {
+                taken = 0;
+            }
+            if (taken > 0 && mListener != null && !mAborted) {
+                mListener.onEncoded(mFrame, 0, taken);
+            }
+            if (taken == count) {
+                mEncodedFrames.lazySet(mEncodedFrames.get() + 1);
+            } else {
+                // a frame taken in part counts as dropped, its samples are counted exactly
+                mDroppedFrames.lazySet(mDroppedFrames.get() + 1);
+                mDroppedSamples.lazySet(mDroppedSamples.get() + count - taken);
+            }
+            mEncodedSamples.lazySet(mEncodedSamples.get() + taken);
+            long elapsed = System.nanoTime() - start;
+            mEncodeTimer.record(elapsed);
+            if (elapsed > mFrameDurationNanos) {
+                mSlowFrames.lazySet(mSlowFrames.get() + 1);
+            }
+        }
+
+        // frames left behind by abort() are lost
+        int count;
+        while ((count = mQueue.poll(mFrame, 0)) >= 0) {
+            mDroppedFrames.lazySet(mDroppedFrames.get() + 1);
+            mDroppedSamples.lazySet(mDroppedSamples.get() + count);
+        }
+    }
+
+    /**
+     * Wake the thread up, called by the producer after offering a frame.
+     */
+    public void signal() {
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Ask the thread to exit once the queue is drained.
+     */
+    public void finish() {
+        mFinishing = true;
+        signal();
+    }
+
+    /**
+     * Ask the thread to exit after the frame being encoded, queued frames are dropped.
+     */
+    public void abort() {
+        mAborted = true;
+        signal();
+    }
+
+    public long getEncodedFrameCount() {
+        return mEncodedFrames.get();
+    }
+
+    /**
+     * @return number of frames the encoder rejected in whole or in part, or abandoned by {@link #abort()}
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrames.get();
+    }
+
+    /**
+     * @return number of samples the encoder took, all channels included
+     */
+    public long getEncodedSampleCount() {
+        return mEncodedSamples.get();
+    }
+
+    /**
+     * @return number of samples of the dropped frames the encoder did not take, all channels included
+     */
+    public long getDroppedSampleCount() {
+        return mDroppedSamples.get();
+    }
+
+    /**
+     * @return number of frames which took longer than their own duration to encode
+     */
+    public long getSlowFrameCount() {
+        return mSlowFrames.get();
+    }
+
+    public long getIdleWaitCount() {
+        return mIdleWaits.get();
+    }
+
+    /**
+     * @return time spent in {@link AudioEncoder#encode(short[], int, int)}, including the sink if the encoder writes to it synchronously
+     */
+    public StageTimer getEncodeTimer() {
+        return mEncodeTimer;
+    }
+}
@@ -1,15 +1,7 @@
 package com.invisibi.audio;
 
 import android.content.Context;
-import android.media.AudioFormat;
-import android.media.AudioRecord;
-import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
-import android.media.MediaFormat;
 import android.media.MediaRecorder;
-import android.media.audiofx.AutomaticGainControl;
-import android.media.audiofx.NoiseSuppressor;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -17,14 +9,13 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ShortBuffer;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * Add more features than Android's default MediaRecorder
@@ -32,55 +23,50 @@ import java.util.concurrent.LinkedBlockingQueue;
  * 1. Get current position
  * 2. Support pause
  * 3. Support audio metering like iOS
+ * 4. Support writing fragmented mp4 while recording
+ * 5. Support building a waveform while recording
+ * 6. Support splitting long recordings into segments
+ * 7. Support discarding the last seconds while recording
+ * 8. Support playing back what is recorded so far while recording
  */
 public class EnhanceAudioRecorder {
 
     public static final int MEDIA_RECORDER_INFO_MAX_DURATION_REACHED = 7878;
     public static final int MEDIA_RECORDER_INFO_STATE_CHANGE = 7879;
+    public static final int MEDIA_RECORDER_INFO_VOICE_ACTIVITY = 7880;
+    public static final int MEDIA_RECORDER_INFO_SEGMENT_FINISHED = 7881;
+    public static final int MEDIA_RECORDER_INFO_FINALIZED = 7882;
 
     private static final String TAG = "EnhanceAudioRecorder";
-    private static final String DEFAULT_AUDIO_MIME_TYPE = "audio/mp4a-latm";
     private static final int DEFAULT_CHANNEL_COUNT = 1; // mono
     private static final int DEFAULT_SAMPLE_RATE = 16000;
     private static final int DEFAULT_BIT_RATE = 64 * 1024;
     private static final int DEFAULT_DELAY_START = 500;
-    private static final int MAX_AMPLITUTE = (int) Math.pow(2, 16) / 2 - 1; //16bit
-    private static final int ADTS_HEADER_SIZE = 7;
-    private static final double FILTER_FACTOR = 0.05;
-    private static final double PENDING_AUDIO_LENGTH = 0.8;
-    private static final double DEFAULT_VOICE_THRESHOLD = 0.02;
-    private static final int MAX_DURATION_INFINITE = -1;
-    public static final double MIN_DB = 96.0;
+    private static final int MAX_DURATION_INFINITE = RecorderPipeline.MAX_DURATION_INFINITE;
+    private static final int DEFAULT_FRAGMENT_DURATION = 2000;
+    private static final int DEFAULT_STOP_TIMEOUT = 3000;
+    private static final int SAMPLES_PER_AAC_FRAME = 1024;
+    // frames an appended file and its waveform may differ by, e.g. the encoder's last padded frame
+    private static final int WAVEFORM_APPEND_TOLERANCE = 2;
+    public static final double MIN_DB = RecorderPipeline.MIN_DB;
 
     private Context mContext;
-    private AudioRecord mAudioRecord;
-    private MediaCodec mEncoder;
+    private final RecorderManager mManager;
+    private RecorderManager.Session mSession;
+    private AudioRecordPcmSource mPcmSource;
+    private AudioEncoder mAudioEncoder;
+    private EncodedFrameSink mFrameSink;
+    private volatile AdtsFileSink mAdtsSink; // the last one created, segments create one each
+    private volatile FinalizationQueue.Job mFinalizeJob;
+    private RecorderPipeline mPipeline;
     private String mOutputFilePath;
     private String mTmpFilePath;
     private int mMaxDuration = MAX_DURATION_INFINITE; // milliseconds
-    private int mMinBufferSize;
-
-    private Thread mRecordingThread;
-    private int mCurrentPosition;//current recording position, base on sample rate and bytes per sample, millisecond
-    private double mVoiceFilteredResults;
-
-    private LinkedBlockingQueue<short[]> mPendingSampleQueue;
-
-    private double mPeakVolumeDb;
-    private double mRMSVolume;
-
-    private NoiseSuppressor mNoiseSuppressor;
-    private AutomaticGainControl mAGC;
-
-    private short[] mInputPCMBuffer;
+    private int mDefaultReadSize; // samples
 
     private int mRecordState = RecorderState.Released;
     private RecordingParameters mParams;
 
-    //TODO: Use for output aac raw file, replace it with MediaMuxer after Android 4.3+ is much more popular
-    private FileOutputStream mAudioOutputStream;
-    private MP4FileConverter mMP4FileConverter;
-
     private EventHandler mEventHandler;
     private OnInfoListener mOnInfoListener;
 
@@ -89,6 +75,33 @@ public class EnhanceAudioRecorder {
 
     private final Handler uiHandler = new Handler(Looper.getMainLooper());
 
+    // runs the prepare and stop sequences, so neither callers nor the capture thread block on codec setup or finalizing
+    private static final ExecutorService sWorkExecutor = Executors.newCachedThreadPool();
+    private FutureTask<StopReport> mPendingStop;
+    private volatile StopReport mLastStopReport;
+    private volatile WaveformPyramid mWaveform;
+    private volatile LoudnessInfo mLoudness;
+    private OnPreparedHandler mOnPreparedHandler;
+    private boolean mStartWhenPrepared;
+
+    private OnMetricsListener mOnMetricsListener;
+    private int mMetricsInterval;
+    private final RecorderMetrics mListenerMetrics = new RecorderMetrics();
+    private final RecorderMetrics mFinalMetrics = new RecorderMetrics();
+    private final Runnable mMetricsPublisher = new Runnable() {
+        @Override
+        public void run() {
+            OnMetricsListener listener = mOnMetricsListener;
+            RecorderPipeline pipeline = mPipeline;
+            if (listener == null || pipeline == null) {
+                return;
+            }
+            pipeline.readMetrics(mListenerMetrics);
+            listener.onMetrics(EnhanceAudioRecorder.this, mListenerMetrics);
+            uiHandler.postDelayed(this, mMetricsInterval);
+        }
+    };
+
     static public class RecorderState { //simulate enum for android.os.Message
         public static final int Error = -1;
         public static final int Released = 0;
@@ -97,6 +110,18 @@ public class EnhanceAudioRecorder {
         public static final int Recording = 3;
         public static final int Paused = 4;
         public static final int Stopping = 5;
+        public static final int Preparing = 6;
+    }
+
+    /**
+     * Interface definition for a callback with recorder metrics, called on the main thread
+     */
+    public interface OnMetricsListener {
+        /**
+         * @param recorder the EnhanceAudioRecorder being measured
+         * @param metrics  reused between calls, copy what should be kept
+         */
+        void onMetrics(EnhanceAudioRecorder recorder, RecorderMetrics metrics);
     }
 
     /**
@@ -111,6 +136,11 @@ public class EnhanceAudioRecorder {
          *                 <ul>
          *                 <li>{@link #MEDIA_RECORDER_INFO_MAX_DURATION_REACHED}
          *                 <li>{@link #MEDIA_RECORDER_INFO_STATE_CHANGE}
+         *                 <li>{@link #MEDIA_RECORDER_INFO_VOICE_ACTIVITY}, extra is 1 when voice starts and 0 when it stops
+         *                 <li>{@link #MEDIA_RECORDER_INFO_SEGMENT_FINISHED}, extra is the index of the finalized segment,
+         *                 negative if it could not be finalized
+         *                 <li>{@link #MEDIA_RECORDER_INFO_FINALIZED}, a queued conversion of an output file has ended,
+         *                 extra is the {@link FinalizationQueue.Job#getState()} it ended with
          *                 </ul>
          * @param extra    an extra code
          */
@@ -124,7 +154,24 @@ public class EnhanceAudioRecorder {
         private int mEncodingBitrate;
         private int mDelayStart;
         private String mOutputFilePath;
-        private boolean enableVoiceDetecting;
+        private int mVoiceDetectionMode;
+        private boolean mFragmentedOutput;
+        private int mFragmentDuration;
+        private int mStopTimeout;
+        private boolean mWaveformSidecar;
+        private FlushPolicy mFlushPolicy;
+        private boolean mKeepEncoderWarm;
+        private boolean mKeepCapturingOnPause;
+        private int mPcmBroadcastLength;
+        private int mSegmentDuration;
+        private long mSegmentSize;
+        private boolean mDeferFinalization;
+        private int mFinalizePriority;
+        private int mCaptureMode;
+        private boolean mMeasureLoudness;
+        private boolean mTrimSilence;
+        private double mSilenceThreshold;
+        private boolean mAppendToOutput;
 
         public RecordingParameters() {
             mAudioSource = MediaRecorder.AudioSource.MIC;
@@ -133,7 +180,24 @@ public class EnhanceAudioRecorder {
             mEncodingBitrate = DEFAULT_BIT_RATE;
             mDelayStart = DEFAULT_DELAY_START;
             mOutputFilePath = "";
-            enableVoiceDetecting = false;
+            mVoiceDetectionMode = VoiceActivityDetector.MODE_OFF;
+            mFragmentedOutput = false;
+            mFragmentDuration = DEFAULT_FRAGMENT_DURATION;
+            mStopTimeout = DEFAULT_STOP_TIMEOUT;
+            mWaveformSidecar = false;
+            mFlushPolicy = new FlushPolicy();
+            mKeepEncoderWarm = false;
+            mKeepCapturingOnPause = false;
+            mPcmBroadcastLength = 0;
+            mSegmentDuration = 0;
+            mSegmentSize = 0;
+            mDeferFinalization = false;
+            mFinalizePriority = FinalizationQueue.PRIORITY_USER_VISIBLE;
+            mCaptureMode = CapturePolicy.MODE_DEFAULT;
+            mMeasureLoudness = false;
+            mTrimSilence = false;
+            mSilenceThreshold = FrameEnergyIndex.DEFAULT_SILENCE_THRESHOLD;
+            mAppendToOutput = false;
         }
 
         public void setAudioSource(int audioSource) {
@@ -153,11 +217,29 @@ public class EnhanceAudioRecorder {
         }
 
         public boolean isEnableVoiceDetecting() {
-            return enableVoiceDetecting;
+            return mVoiceDetectionMode == VoiceActivityDetector.MODE_GATE;
         }
 
+        /**
+         * Only encode audio while voice is detected, same as {@link VoiceActivityDetector#MODE_GATE}
+         */
         public void setEnableVoiceDetecting(boolean enableVoiceDetecting) {
-            this.enableVoiceDetecting = enableVoiceDetecting;
+            mVoiceDetectionMode = enableVoiceDetecting ? VoiceActivityDetector.MODE_GATE : VoiceActivityDetector.MODE_OFF;
+        }
+
+        public int getVoiceDetectionMode() {
+            return mVoiceDetectionMode;
+        }
+
+        /**
+         * set how voice activity detection is used
+         *
+         * @param voiceDetectionMode {@link VoiceActivityDetector#MODE_OFF}, {@link VoiceActivityDetector#MODE_DETECT}
+         *                           to only report voice, or {@link VoiceActivityDetector#MODE_GATE} to also skip
+         *                           encoding frames without voice
+         */
+        public void setVoiceDetectionMode(int voiceDetectionMode) {
+            mVoiceDetectionMode = voiceDetectionMode;
         }
 
         public void setOutputFilePath(String outputFilePath) {
@@ -191,10 +273,262 @@ public class EnhanceAudioRecorder {
         public void setDelayStart(int delayStart) {
             mDelayStart = delayStart;
         }
+
+        public boolean isFragmentedOutput() {
+            return mFragmentedOutput;
+        }
+
+        /**
+         * Mux encoded audio into a fragmented mp4 file while recording instead of writing a temporary
+         * aac file and converting it after stop, stopping then only flushes the last fragment.
+         *
+         * @param fragmentedOutput true to write fragmented mp4 while recording
+         */
+        public void setFragmentedOutput(boolean fragmentedOutput) {
+            mFragmentedOutput = fragmentedOutput;
+        }
+
+        public int getFragmentDuration() {
+            return mFragmentDuration;
+        }
+
+        /**
+         * set duration of each fragment when fragmented output is enabled
+         *
+         * @param fragmentDuration fragment duration, time unit is ms
+         */
+        public void setFragmentDuration(int fragmentDuration) {
+            mFragmentDuration = fragmentDuration;
+        }
+
+        public int getStopTimeout() {
+            return mStopTimeout;
+        }
+
+        /**
+         * set max time stop waits for captured audio to be encoded, audio still queued afterwards is dropped
+         *
+         * @param stopTimeout stop timeout, time unit is ms
+         */
+        public void setStopTimeout(int stopTimeout) {
+            mStopTimeout = stopTimeout;
+        }
+
+        public boolean isWaveformSidecar() {
+            return mWaveformSidecar;
+        }
+
+        /**
+         * Build a waveform while recording and save it next to the output file with
+         * {@link WaveformPyramid#SIDECAR_EXTENSION} appended, so it can be drawn without decoding the file.
+         * When appending to the output file its sidecar is continued, a missing or mismatching one is deleted
+         * and no waveform is built. Segmented output gets no sidecar, the waveform of the whole recording is only
+         * available from {@link EnhanceAudioRecorder#getWaveform()}.
+         *
+         * @param waveformSidecar true to write the waveform sidecar
+         */
+        public void setWaveformSidecar(boolean waveformSidecar) {
+            mWaveformSidecar = waveformSidecar;
+        }
+
+        public FlushPolicy getFlushPolicy() {
+            return mFlushPolicy;
+        }
+
+        /**
+         * set how often encoded audio is written to the temporary aac file, not used for fragmented output
+         *
+         * @param flushPolicy buffer size, frame count and delay limits of the writes
+         */
+        public void setFlushPolicy(FlushPolicy flushPolicy) {
+            mFlushPolicy = flushPolicy;
+        }
+
+        public boolean isKeepEncoderWarm() {
+            return mKeepEncoderWarm;
+        }
+
+        /**
+         * Keep the configured encoder in {@link MediaCodecPool} after stop, so the next recording with the same
+         * parameters does not create a new one. Always done while {@link RecorderManager#isReuseEncoders()}
+         *
+         * @param keepEncoderWarm true to reuse the encoder across recordings
+         */
+        public void setKeepEncoderWarm(boolean keepEncoderWarm) {
+            mKeepEncoderWarm = keepEncoderWarm;
+        }
+
+        public boolean isKeepCapturingOnPause() {
+            return mKeepCapturingOnPause;
+        }
+
+        /**
+         * Keep the microphone open while paused and discard its audio, so resuming takes one buffer instead of
+         * restarting AudioRecord. Useful when pause is toggled often, e.g. dictation, at the cost of power
+         *
+         * @param keepCapturingOnPause true to keep capturing while paused
+         */
+        public void setKeepCapturingOnPause(boolean keepCapturingOnPause) {
+            mKeepCapturingOnPause = keepCapturingOnPause;
+        }
+
+        public int getPcmBroadcastLength() {
+            return mPcmBroadcastLength;
+        }
+
+        /**
+         * Share captured PCM with other consumers through {@link #openPcmCursor(int)}, each consumer may fall
+         * behind by this much before its overflow policy applies
+         *
+         * @param pcmBroadcastLength length of the shared buffer, time unit is ms, 0 to disable
+         */
+        public void setPcmBroadcastLength(int pcmBroadcastLength) {
+            mPcmBroadcastLength = pcmBroadcastLength;
+        }
+
+        public boolean isSegmentedOutput() {
+            return mSegmentDuration > 0 || mSegmentSize > 0;
+        }
+
+        public int getSegmentDuration() {
+            return mSegmentDuration;
+        }
+
+        /**
+         * Split the recording into segments of at most this duration, written to the output path with the segment
+         * index appended, see {@link SegmentedFrameSink#getSegmentPath(String, int)}. Finished segments are
+         * finalized while recording continues, so stop only finalizes the last one
+         *
+         * @param segmentDuration max segment duration, time unit is ms, 0 for no limit
+         */
+        public void setSegmentDuration(int segmentDuration) {
+            mSegmentDuration = segmentDuration;
+        }
+
+        public long getSegmentSize() {
+            return mSegmentSize;
+        }
+
+        /**
+         * Split the recording into segments of at most this much encoded audio, see {@link #setSegmentDuration(int)}
+         *
+         * @param segmentSize max segment size, time unit is byte, 0 for no limit
+         */
+        public void setSegmentSize(long segmentSize) {
+            mSegmentSize = segmentSize;
+        }
+
+        public boolean isDeferFinalization() {
+            return mDeferFinalization;
+        }
+
+        /**
+         * Let stop return once the aac file is complete and leave converting it to mp4 to
+         * {@link RecorderManager#getFinalizationQueue()}, {@link #MEDIA_RECORDER_INFO_FINALIZED} reports when the
+         * output file is ready. Not used for fragmented output, which is complete on stop
+         *
+         * @param deferFinalization true to convert after stop
+         */
+        public void setDeferFinalization(boolean deferFinalization) {
+            mDeferFinalization = deferFinalization;
+        }
+
+        public int getFinalizePriority() {
+            return mFinalizePriority;
+        }
+
+        /**
+         * set the queue priority of the conversion to mp4
+         *
+         * @param finalizePriority {@link FinalizationQueue#PRIORITY_USER_VISIBLE} or
+         *                         {@link FinalizationQueue#PRIORITY_BACKGROUND}
+         */
+        public void setFinalizePriority(int finalizePriority) {
+            mFinalizePriority = finalizePriority;
+        }
+
+        public int getCaptureMode() {
+            return mCaptureMode;
+        }
+
+        /**
+         * set how much audio is read from the microphone at a time, see {@link EnhanceAudioRecorder#setCaptureMode(int)}
+         * to change it while recording
+         *
+         * @param captureMode {@link CapturePolicy#MODE_DEFAULT}, {@link CapturePolicy#MODE_LOW_LATENCY} for live
+         *                    metering or {@link CapturePolicy#MODE_POWER_SAVING} for fewer wakeups
+         */
+        public void setCaptureMode(int captureMode) {
+            mCaptureMode = captureMode;
+        }
+
+        public boolean isMeasureLoudness() {
+            return mMeasureLoudness;
+        }
+
+        /**
+         * Measure loudness and true peak while recording and tag the m4a file with ReplayGain, so playback volume
+         * can be normalized without decoding it. Not tagged for segmented or fragmented output, nor after a rollback.
+         *
+         * @param measureLoudness true to measure loudness
+         */
+        public void setMeasureLoudness(boolean measureLoudness) {
+            mMeasureLoudness = measureLoudness;
+        }
+
+        public boolean isTrimSilence() {
+            return mTrimSilence;
+        }
+
+        /**
+         * Cut dead air at the start and end of the m4a file when it is finalized, whole AAC frames are dropped
+         * without re-encoding and {@link FrameEnergyIndex#DEFAULT_PADDING} is kept around the audio.
+         * Not done for segmented or fragmented output. The waveform sidecar loses the same frames.
+         *
+         * @param trimSilence true to trim silence
+         */
+        public void setTrimSilence(boolean trimSilence) {
+            mTrimSilence = trimSilence;
+        }
+
+        public double getSilenceThreshold() {
+            return mSilenceThreshold;
+        }
+
+        /**
+         * @param silenceThreshold frames with an RMS level at or below are silent, in dBFS
+         */
+        public void setSilenceThreshold(double silenceThreshold) {
+            mSilenceThreshold = silenceThreshold;
+        }
+
+        public boolean isAppendToOutput() {
+            return mAppendToOutput;
+        }
+
+        /**
+         * Resume a saved recording: append to the m4a file at the output path instead of overwriting it.
+         * Only its sample tables are rewritten, the audio already in it is not copied. The file must have the same
+         * sample rate and channels, prepare fails otherwise. Its loudness tags are removed.
+         * A missing file is created as usual. Not supported for segmented or fragmented output.
+         *
+         * @param appendToOutput true to append to an existing output file
+         */
+        public void setAppendToOutput(boolean appendToOutput) {
+            mAppendToOutput = appendToOutput;
+        }
     }
 
     public EnhanceAudioRecorder(Context context) {
+        this(context, RecorderManager.getInstance(context));
+    }
+
+    /**
+     * @param manager provides the scratch files, buffers and finalize executor shared with other recorders
+     */
+    public EnhanceAudioRecorder(Context context, RecorderManager manager) {
         mContext = context;
+        mManager = manager;
         mParams = new RecordingParameters();
         Looper looper;
         if ((looper = Looper.myLooper()) != null) {
@@ -206,6 +540,22 @@ public class EnhanceAudioRecorder {
         }
     }
 
+    /**
+     * Create an encoder for {@code params} in the background, a recorder prepared with the same parameters
+     * afterwards starts without waiting for codec setup
+     *
+     * @param params parameters of the coming recording
+     */
+    public static void prewarm(RecordingParameters params) {
+        int minBufferSize = AudioRecordPcmSource.getMinBufferSize(params.getSampleRate());
+        if (minBufferSize <= 0) {
+            Log.w(TAG, "unsupported sample rate " + params.getSampleRate() + ", skip prewarm");
+            return;
+        }
+        MediaCodecAudioEncoder.prewarm(params.getSampleRate(), params.getChannels(), params.getEncodingBitrate(),
+                minBufferSize);
+    }
+
     public synchronized void prepare() throws IOException, IllegalStateException {
         if (mRecordState != RecorderState.Released) {
             throw new IllegalStateException("call prepare in illegal state " + mRecordState);
@@ -214,7 +564,68 @@ public class EnhanceAudioRecorder {
         changeState(RecorderState.Prepared);
     }
 
+    /**
+     * Prepare without blocking the caller, audio source and encoder are set up on a worker thread.
+     * {@link #start()} may be called right away, recording then begins as soon as preparing is done.
+     *
+     * @param onPreparedHandler called on the main thread once preparing succeeded or failed
+     */
+    public synchronized void prepareAsync(final OnPreparedHandler onPreparedHandler) throws IllegalStateException {
+        if (mRecordState != RecorderState.Released) {
+            throw new IllegalStateException("call prepareAsync in illegal state " + mRecordState);
+        }
+        mOnPreparedHandler = onPreparedHandler;
+        mStartWhenPrepared = false;
+        changeState(RecorderState.Preparing);
+        sWorkExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean prepared;
+                try {
+                    // other calls leave the recorder alone while it is preparing, no need to hold the monitor
+                    initAudioRecord();
+                    prepared = true;
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot prepare recorder, reason = " + e.getMessage());
+                    prepared = false;
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Cannot prepare recorder, reason = " + e.getMessage());
+                    prepared = false;
+                }
+                onPrepareFinished(prepared);
+            }
+        });
+    }
+
+    private synchronized void onPrepareFinished(final boolean prepared) {
+        if (prepared) {
+            changeState(RecorderState.Prepared);
+            if (mStartWhenPrepared) {
+                mStartWhenPrepared = false;
+                startPrepared();
+            }
+        } else {
+            mStartWhenPrepared = false;
+            changeState(RecorderState.Error);
+            changeState(RecorderState.Released);
+        }
+        final OnPreparedHandler handler = mOnPreparedHandler;
+        mOnPreparedHandler = null;
+        if (handler != null) {
+            uiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handler.onPrepared(EnhanceAudioRecorder.this, prepared);
+                }
+            });
+        }
+    }
+
     public synchronized void start() {
+        if (mRecordState == RecorderState.Preparing) {
+            mStartWhenPrepared = true;
+            return;
+        }
         if (mRecordState == RecorderState.Released) {
             try {
                 prepare();
@@ -224,8 +635,15 @@ public class EnhanceAudioRecorder {
                 return;
             }
         }
+        startPrepared();
+    }
 
-        startRecording();
+    private void startPrepared() {
+        mPipeline.start();
+        if (mOnMetricsListener != null) {
+            uiHandler.removeCallbacks(mMetricsPublisher);
+            uiHandler.postDelayed(mMetricsPublisher, mMetricsInterval);
+        }
         changeState(RecorderState.Recording);
     }
 
@@ -233,32 +651,135 @@ public class EnhanceAudioRecorder {
         this.onReachMaxDurationStoppedHandler = onReachMaxDurationStoppedHandler;
     }
 
-    public synchronized void stop(final OnStoppedHandler onStoppedHandler) {
+    /**
+     * Stop recording and wait until the output file is written, or queued for conversion with
+     * {@link RecordingParameters#setDeferFinalization(boolean)}.
+     *
+     * @param onStoppedHandler called on the main thread once the recorder is released
+     */
+    public void stop(final OnStoppedHandler onStoppedHandler) {
+        Future<StopReport> stopping = stopAsync(onStoppedHandler);
+        try {
+            stopping.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Cannot stop recorder, reason = " + e.getCause());
+        }
+    }
+
+    /**
+     * Stop recording without blocking the caller. Capture and encoder threads are drained for at most
+     * {@link RecordingParameters#getStopTimeout()} before the output file is finalized.
+     *
+     * @param onStoppedHandler called on the main thread once the recorder is released,
+     *                         {@link #getLastStopReport()} holds the measured drain and finalize time by then
+     * @return completes with the stop timing once the output file is written or its conversion queued
+     */
+    public synchronized Future<StopReport> stopAsync(final OnStoppedHandler onStoppedHandler) {
         this.onStoppedHandler = onStoppedHandler;
+        if (mRecordState == RecorderState.Stopping && mPendingStop != null) {
+            return mPendingStop;
+        }
+        mStartWhenPrepared = false;
         if (mRecordState != RecorderState.Prepared && mRecordState != RecorderState.Recording
                 && mRecordState != RecorderState.Paused) {
             Log.w(TAG, "no need to stop recorder");
             if (onStoppedHandler != null) {
                 onStoppedHandler.onStopped(this);
             }
-            return;
+            FutureTask<StopReport> stopped = new FutureTask<StopReport>(new Callable<StopReport>() {
+                @Override
+                public StopReport call() {
+                    return mLastStopReport;
+                }
+            });
+            stopped.run();
+            return stopped;
         }
 
         changeState(RecorderState.Stopping);
-        stopRecording();
-        mCurrentPosition = 0;
+        return submitStop(false);
     }
 
-    public synchronized void pause() {
-        mAudioRecord.stop();
-        try {
-            mRecordingThread.join();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    /**
+     * Get timing of the last stop, available when {@link OnStoppedHandler#onStopped(EnhanceAudioRecorder)} is called
+     *
+     * @return the last stop report, null if the recorder has never been stopped
+     */
+    public StopReport getLastStopReport() {
+        return mLastStopReport;
+    }
+
+    /**
+     * Get the conversion of the last recording's output file, e.g. to follow its progress, raise its priority or
+     * cancel it. Available when {@link OnStoppedHandler#onStopped(EnhanceAudioRecorder)} is called
+     *
+     * @return the queued conversion, null for fragmented output or if it was converted right away
+     */
+    public FinalizationQueue.Job getFinalizeJob() {
+        return mFinalizeJob;
+    }
+
+    /**
+     * Get waveform of the last recording, available when {@link OnStoppedHandler#onStopped(EnhanceAudioRecorder)} is called
+     *
+     * @return waveform peaks, null if {@link RecordingParameters#setWaveformSidecar(boolean)} is not enabled or
+     * the sidecar of a file appended to could not be continued
+     */
+    public WaveformPyramid getWaveform() {
+        return mWaveform;
+    }
+
+    /**
+     * Get loudness of the last recording, available when {@link OnStoppedHandler#onStopped(EnhanceAudioRecorder)} is called
+     *
+     * @return loudness, null if {@link RecordingParameters#setMeasureLoudness(boolean)} is not enabled, the
+     * recording was shorter than 400ms or part of it was rolled back
+     */
+    public LoudnessInfo getLoudness() {
+        return mLoudness;
+    }
+
+    /**
+     * Get what has been recorded so far for playing back and scrubbing without stopping, cheap enough to call
+     * on every UI frame. Poll again for newer audio, {@link RecordingParameters#setFlushPolicy(FlushPolicy)} sets how
+     * far it lags behind capture. Not supported for segmented or fragmented output.
+     *
+     * @return frames written to the temporary aac file, null if not recording or not supported
+     */
+    public RecordingSnapshot getPreviewSnapshot() {
+        AdtsFileSink sink = mAdtsSink;
+        RecordingParameters params = mParams;
+        if (sink == null || params == null || params.isSegmentedOutput()) {
+            return null;
         }
+        return sink.getSnapshot();
+    }
+
+    public synchronized void pause() {
+        mPipeline.pause();
         changeState(RecorderState.Paused);
     }
 
+    /**
+     * Discard the last part of the recording and go on recording after what is kept, e.g. to undo a flubbed take.
+     * The output is cut back to an AAC frame boundary without re-encoding and {@link #getCurrentPosition()} moves
+     * back by the discarded length. Recording pauses for the cut, so audio captured meanwhile is not recorded.
+     * Not supported for segmented or fragmented output. The loudness measured so far cannot be rolled back,
+     * the file is not tagged with loudness then.
+     *
+     * @param duration length of audio to discard, time unit is ms
+     * @return length of audio actually discarded, rounded up to whole AAC frames, time unit is ms
+     * @throws IllegalStateException if not recording or paused, or rollback is not supported by the output
+     */
+    public synchronized int rollback(int duration) throws IOException, IllegalStateException {
+        if (mRecordState != RecorderState.Recording && mRecordState != RecorderState.Paused) {
+            throw new IllegalStateException("call rollback in illegal state " + mRecordState);
+        }
+        return mPipeline.rollback(duration);
+    }
+
     public synchronized boolean isRecording() {
         return mRecordState == RecorderState.Recording;
     }
@@ -269,11 +790,115 @@ public class EnhanceAudioRecorder {
      * @return current postion
      */
     public int getCurrentPosition() {
-        return mCurrentPosition;
+        RecorderPipeline pipeline = mPipeline;
+        return pipeline == null ? 0 : pipeline.getCurrentPosition();
+    }
+
+    /**
+     * Get number of audio frames lost because the encoder could not keep up with capture
+     *
+     * @return frames dropped by the capture thread plus frames rejected by the encoder
+     */
+    public long getDroppedFrameCount() {
+        RecorderPipeline pipeline = mPipeline;
+        return pipeline == null ? 0 : pipeline.getDroppedFrameCount();
+    }
+
+    /**
+     * Check whether the voice activity detector hears voice, always false if voice detection is off
+     *
+     * @return decision of the last 20ms frame
+     */
+    public boolean isVoiceActive() {
+        RecorderPipeline pipeline = mPipeline;
+        return pipeline != null && pipeline.isVoiceActive();
+    }
+
+    /**
+     * Get length of audio not encoded because no voice was detected, time unit is millisecond
+     *
+     * @return skipped duration
+     */
+    public int getGatedDuration() {
+        RecorderPipeline pipeline = mPipeline;
+        if (pipeline == null) {
+            return 0;
+        }
+        return (int) (pipeline.getGatedSampleCount() * 1000 / (mParams.getSampleRate() * mParams.getChannels()));
     }
 
     public double getPeakVolumeDb() {
-        return mPeakVolumeDb;
+        RecorderPipeline pipeline = mPipeline;
+        return pipeline == null ? -MIN_DB : pipeline.getPeakVolumeDb();
+    }
+
+    public double getRMSVolumeDb() {
+        RecorderPipeline pipeline = mPipeline;
+        return pipeline == null ? -MIN_DB : pipeline.getRMSVolumeDb();
+    }
+
+    /**
+     * Copy the latest input levels into {@code snapshot} without locking, cheap enough to call on every UI frame
+     *
+     * @param snapshot reused holder for peak, RMS and peak-hold levels
+     */
+    public void getLevels(LevelSnapshot snapshot) {
+        RecorderPipeline pipeline = mPipeline;
+        if (pipeline != null) {
+            pipeline.getLevelMeter().readSnapshot(snapshot);
+        }
+    }
+
+    /**
+     * Copy counters and per-stage latencies of the current recording into {@code metrics} without locking,
+     * after stop it holds the final values of the last recording including its finalize time
+     *
+     * @param metrics reused holder
+     * @return false if nothing has been recorded yet
+     */
+    public boolean getMetrics(RecorderMetrics metrics) {
+        RecorderPipeline pipeline = mPipeline;
+        if (pipeline != null) {
+            pipeline.readMetrics(metrics);
+            return true;
+        }
+        if (mLastStopReport == null) {
+            return false;
+        }
+        synchronized (mFinalMetrics) {
+            metrics.copyFrom(mFinalMetrics);
+        }
+        return true;
+    }
+
+    /**
+     * Push metrics to {@code listener} on the main thread every {@code interval} while recording,
+     * and once more after stop with the finalize time
+     *
+     * @param listener null to stop pushing
+     * @param interval time between two pushes, time unit is ms
+     */
+    public void setOnMetricsListener(OnMetricsListener listener, int interval) {
+        mOnMetricsListener = listener;
+        mMetricsInterval = interval;
+        uiHandler.removeCallbacks(mMetricsPublisher);
+        if (listener != null && mPipeline != null) {
+            uiHandler.postDelayed(mMetricsPublisher, interval);
+        }
+    }
+
+    /**
+     * Register a consumer of the captured PCM, e.g. speech recognition or a live uplink, next to the encoder.
+     * Samples are shared, not copied, read them on a consumer thread with
+     * {@link PcmBroadcastBuffer.Cursor#read(PcmBroadcastBuffer.Consumer, int)} and close the cursor when done
+     *
+     * @param overflowPolicy {@link PcmBroadcastBuffer#OVERFLOW_SKIP} or {@link PcmBroadcastBuffer#OVERFLOW_CLOSE}
+     * @return the consumer's cursor, null if not prepared or {@link RecordingParameters#setPcmBroadcastLength(int)} is 0
+     */
+    public PcmBroadcastBuffer.Cursor openPcmCursor(int overflowPolicy) {
+        RecorderPipeline pipeline = mPipeline;
+        PcmBroadcastBuffer broadcast = pipeline == null ? null : pipeline.getPcmBroadcast();
+        return broadcast == null ? null : broadcast.openCursor(overflowPolicy);
     }
 
     public RecordingParameters getRecordingParameter() {
@@ -295,88 +920,29 @@ public class EnhanceAudioRecorder {
         } else {
             mMaxDuration = maxDuration + mParams.getDelayStart();
         }
+        RecorderPipeline pipeline = mPipeline;
+        if (pipeline != null) {
+            pipeline.setMaxDuration(mMaxDuration);
+        }
     }
 
-    public void setOnInfoListener(OnInfoListener listener) {
-        mOnInfoListener = listener;
-    }
-
-    private boolean isAudioRecordRecording() {
-        return mAudioRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING;
-    }
-
-    private void startRecording() {
-        mAudioRecord.startRecording();
-
-        try {
-            mEncoder.start();
-        } catch (IllegalStateException e) {
-            Log.w(TAG, "encoder is already started");
+    /**
+     * Change the capture mode while recording without a gap, e.g. to {@link CapturePolicy#MODE_POWER_SAVING} when
+     * the UI goes to the background and back when it returns. Metering and voice activity are then updated once
+     * per read.
+     *
+     * @param captureMode one of the {@link CapturePolicy} modes
+     */
+    public void setCaptureMode(int captureMode) {
+        mParams.setCaptureMode(captureMode);
+        RecorderPipeline pipeline = mPipeline;
+        if (pipeline != null) {
+            pipeline.setReadSize(CapturePolicy.getReadSize(captureMode, mParams.getSampleRate(), mDefaultReadSize));
         }
+    }
 
-        mRecordingThread = new Thread() {
-            @Override
-            public void run() {
-                int read;
-                while (isAudioRecordRecording()) {
-                    read = mAudioRecord.read(mInputPCMBuffer, 0, mMinBufferSize / 2);
-                    if (read > 0) {
-                        updateMetering(mInputPCMBuffer, read);
-                        short[] pendingBuffer = Arrays.copyOf(mInputPCMBuffer, read);
-                        try {
-                            mPendingSampleQueue.add(pendingBuffer);
-                        } catch (IllegalStateException e) { //queue is full
-                            Log.v(TAG, "pending audio queue is full, remove first buffer");
-                            mPendingSampleQueue.remove();
-                            mPendingSampleQueue.add(pendingBuffer);
-                        }
-
-                        if (mParams.enableVoiceDetecting && !detectVoice(mPeakVolumeDb)) {
-                            continue;
-                        }
-
-                        //it may cause jitter in current position here if queue length is long.
-                        while (!mPendingSampleQueue.isEmpty()) {
-                            short[] audioBuffer = mPendingSampleQueue.remove();
-                            if (isAudioRecordRecording()) {
-                                mCurrentPosition += ((double) audioBuffer.length / mParams.getSampleRate() * 1000);
-                                Log.v(TAG, "read " + read + " samples from audio source");
-                                if (mCurrentPosition < mParams.getDelayStart()) {
-                                    continue;
-                                }
-
-                                if (mMaxDuration != MAX_DURATION_INFINITE &&
-                                        mCurrentPosition >= mMaxDuration) {
-
-                                    changeState(RecorderState.Stopping);
-                                    final Thread stoppingWatchThread = new Thread(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            EnhanceAudioRecorder.this.stopRecording();
-                                            if (onReachMaxDurationStoppedHandler != null) {
-                                                onReachMaxDurationStoppedHandler.onStopped(EnhanceAudioRecorder.this);
-                                            }
-                                            postInfoEvent(MEDIA_RECORDER_INFO_MAX_DURATION_REACHED, 0);
-                                        }
-                                    });
-                                    stoppingWatchThread.start();
-                                    continue;
-                                }
-
-                                try {
-                                    feedEncoder(audioBuffer, audioBuffer.length);
-                                } catch (IllegalStateException e) {
-                                    Log.e(TAG, "Cannot write audio data to encoder");
-                                }
-                            }
-                        }
-                    }
-                }
-
-                Log.d(TAG, "recording thread stopped");
-            }
-        };
-        mRecordingThread.start();
+    public void setOnInfoListener(OnInfoListener listener) {
+        mOnInfoListener = listener;
     }
 
     private void postInfoEvent(int arg1, int arg2) {
@@ -389,185 +955,99 @@ public class EnhanceAudioRecorder {
         }
     }
 
-    private void outputMP4File() {
-        try {
-            mAudioOutputStream.close();
-            mMP4FileConverter.convert();
-        } catch (IOException e) {
+    private FutureTask<StopReport> submitStop(final boolean reachMaxDuration) {
+        mPendingStop = new FutureTask<StopReport>(new Callable<StopReport>() {
+            @Override
+            public StopReport call() {
+                StopReport report = stopRecording();
+                if (reachMaxDuration) {
+                    if (onReachMaxDurationStoppedHandler != null) {
+                        onReachMaxDurationStoppedHandler.onStopped(EnhanceAudioRecorder.this);
+                    }
+                    postInfoEvent(MEDIA_RECORDER_INFO_MAX_DURATION_REACHED, 0);
+                }
+                return report;
+            }
+        });
+        sWorkExecutor.execute(mPendingStop);
+        return mPendingStop;
+    }
+
+    private StopReport stopRecording() {
+        StopReport report = mPipeline.stop(mParams.getStopTimeout());
+        mFinalizeJob = mAdtsSink == null ? null : mAdtsSink.getFinalizeJob();
+        if (report.getError() instanceof IOException) {
             Log.e(TAG, "cannot write mp4 file");
-        } catch (IllegalArgumentException e) {
+        } else if (report.getError() instanceof IllegalArgumentException) {
             Log.e(TAG, "cannot write audio data to mp4 file");
         }
-    }
-
-    private void initEncoder() {
-        mEncoder = MediaCodec.createByCodecName("OMX.google.aac.encoder"); //use google's aac encoder first
-        if (mEncoder == null) {
-            List<MediaCodecInfo> codecInfoList = getCodecCandidates(DEFAULT_AUDIO_MIME_TYPE);
-            mEncoder = MediaCodec.createByCodecName(codecInfoList.get(0).getName());
+        Log.d(TAG, "recorder stopped, " + report);
+        synchronized (mFinalMetrics) {
+            mPipeline.readMetrics(mFinalMetrics);
+            mFinalMetrics.setStopReport(report);
         }
-
-        MediaFormat mediaFormat = MediaFormat.createAudioFormat(DEFAULT_AUDIO_MIME_TYPE, mParams.getSampleRate(), mParams.getChannels());
-        mediaFormat.setString(MediaFormat.KEY_MIME, DEFAULT_AUDIO_MIME_TYPE);
-        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mParams.getEncodingBitrate());
-        mediaFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
-        mediaFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, mMinBufferSize);
-        mEncoder.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        writeWaveform();
+        LoudnessMeter loudnessMeter = mPipeline.getLoudnessMeter();
+        mLoudness = loudnessMeter == null ? null : loudnessMeter.getInfo();
+        release(report);
+        return report;
     }
 
-    private void releaseEncoder() {
-        try {
-            mEncoder.stop();
-            mEncoder.release();
-            mEncoder = null;
-        } catch (Exception e) {
-            Log.e(TAG, "Cannot stop encoder correctly");
-        }
-    }
-
-    private void feedEncoder(short[] audioData, int count) {
-        int inputBufferIndex;
-        int outputBufferIndex;
-        ByteBuffer[] encoderInputBuffers;
-        ByteBuffer[] encoderOutputBuffers;
-        encoderInputBuffers = mEncoder.getInputBuffers();
-        encoderOutputBuffers = mEncoder.getOutputBuffers();
-        inputBufferIndex = mEncoder.dequeueInputBuffer(-1);
-
-        if (inputBufferIndex >= 0) {
-            ByteBuffer inputBuffer = encoderInputBuffers[inputBufferIndex];
-            inputBuffer.clear();
-            ShortBuffer shortBuffer = inputBuffer.asShortBuffer();
-            shortBuffer.put(audioData, 0, count);
-            mEncoder.queueInputBuffer(inputBufferIndex, 0, 2 * count, 0, 0);
-        }
-
-        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-        outputBufferIndex = mEncoder.dequeueOutputBuffer(bufferInfo, 0);
-
-        //not handle MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED and MediaCodec.INFO_OUTPUT_FORMAT_CHANGED
-        while (outputBufferIndex >= 0) {
-            int outPacketSize = bufferInfo.size + ADTS_HEADER_SIZE; //ProtectionAbsent = 1
-            ByteBuffer outputBuffer = encoderOutputBuffers[outputBufferIndex];
-            outputBuffer.position(bufferInfo.offset);
-            outputBuffer.limit(bufferInfo.offset + bufferInfo.size);
-
-            byte[] outBuffer = new byte[outPacketSize];
-            addADTSToPacket(outBuffer, outPacketSize);
-            outputBuffer.get(outBuffer, ADTS_HEADER_SIZE, bufferInfo.size);
-            outputBuffer.position(bufferInfo.offset);
-
-            try {
-                mAudioOutputStream.write(outBuffer, 0, outPacketSize);
-            } catch (IOException e) {
-                Log.e(TAG, "cannot write audio data");
-            }
-
-            outputBuffer.clear();
-            mEncoder.releaseOutputBuffer(outputBufferIndex, false);
-            outputBufferIndex = mEncoder.dequeueOutputBuffer(bufferInfo, 0);
-        }
-    }
-
-    /*
-        ADTS format
-        AAAAAAAA AAAABCCD EEFFFFGH HHIJKLMM MMMMMMMM MMMOOOOO OOOOOOPP (QQQQQQQQ QQQQQQQQ)
-        Header consists of 7 or 9 bytes (without or with CRC).
-        Letter	Length (bits)	Description
-        A	        12	        syncword 0xFFF, all bits must be 1
-        B	        1	        MPEG Version: 0 for MPEG-4, 1 for MPEG-2
-        C	        2	        Layer: always 0
-        D	        1	        protection absent, Warning, set to 1 if there is no CRC and 0 if there is CRC
-        E	        2	        profile, the MPEG-4 Audio Object Type minus 1
-        F	        4	        MPEG-4 Sampling Frequency Index (15 is forbidden)
-        G	        1	        private stream, set to 0 when encoding, ignore when decoding
-        H	        3	        MPEG-4 Channel Configuration (in the case of 0, the channel configuration is sent via an inband PCE)
-        I	        1	        originality, set to 0 when encoding, ignore when decoding
-        J	        1	        home, set to 0 when encoding, ignore when decoding
-        K	        1	        copyrighted stream, set to 0 when encoding, ignore when decoding
-        L	        1	        copyright start, set to 0 when encoding, ignore when decoding
-        M	        13	        frame length, this value must include 7 or 9 bytes of header length: FrameLength = (ProtectionAbsent == 1 ? 7 : 9) + size(AACFrame)
-        O       	11	        Buffer fullness
-        P	        2	        Number of AAC frames (RDBs) in ADTS frame minus 1, for maximum compatibility always use 1 AAC frame per ADTS frame
-        Q	        16  	    CRC if protection absent is 0
-    */
-    private void addADTSToPacket(byte[] packet, int length) {
-        int profile = 2;  //AAC LC
-        int freqIdx = getFrequencyIdx(mParams.getSampleRate());
-        int chanCfg = mParams.getChannels();
-
-        packet[0] = (byte) 0xFF;
-        packet[1] = (byte) 0xF1; //layer = 0; Mpeg-4 version, Protection absent
-        packet[2] = (byte) (((profile - 1) << 6) + ((freqIdx & 0x0F) << 2) + (chanCfg >> 2));
-        packet[3] = (byte) (((chanCfg & 3) << 6) + (length >> 11));
-        packet[4] = (byte) ((length & 0x7FF) >> 3);
-        packet[5] = (byte) (((length & 7) << 5) + 0x1F);
-        packet[6] = (byte) 0xFC;
-    }
-
-    private int getFrequencyIdx(int sampleRate) {
-        int idx = 15;
-        switch (sampleRate) {
-            case 8000:
-                idx = 11;
-                break;
-            case 16000:
-                idx = 8;
-                break;
-            case 22050:
-                idx = 7;
-                break;
-            case 44100:
-                idx = 4;
-                break;
-            case 48000:
-                idx = 3;
-                break;
-        }
-        return idx;
-    }
-
-    private void stopRecording() {
-        int state = mAudioRecord.getState();
-        if (state == AudioRecord.STATE_INITIALIZED) {
-            mAudioRecord.stop();
-        }
-
-        // wait for TERMINATED to release
-        while (true) {
-            if (mRecordingThread == null) {
-                break;
-            } else if (mRecordingThread.getState().equals(Thread.State.TERMINATED)) {
-                release();
-                break;
-            } else {
-                Log.d(TAG, "Waiting for TERMINATED, current recording thread state: " + mRecordingThread.getState());
+    private void writeWaveform() {
+        WaveformPyramid waveform = mPipeline.getWaveform();
+        if (waveform != null && !waveform.isFinished()) {
+            Log.w(TAG, "recording thread is still running, skip waveform");
+            waveform = null;
+        }
+        mWaveform = waveform;
+        // segments are separate files, the waveform of the whole recording matches none of them
+        if (waveform == null || TextUtils.isEmpty(mOutputFilePath) || mParams.isSegmentedOutput()) {
+            return;
+        }
+        FinalizeOptions.Trim trim = mAdtsSink == null ? null : mAdtsSink.getTrim();
+        if (trim != null) {
+            // cut the frames the file loses, counted from where this recording starts in the waveform
+            int frameSamples = SAMPLES_PER_AAC_FRAME * mParams.getChannels();
+            long start = Math.max(0, mAdtsSink.getAppendFrameCount()) * frameSamples;
+            if (trim.getEndFrame() != Integer.MAX_VALUE) {
+                waveform.delete(start + (long) trim.getEndFrame() * frameSamples, Long.MAX_VALUE);
             }
+            waveform.delete(start, start + (long) trim.getStartFrame() * frameSamples);
+        }
+        try {
+            waveform.writeTo(new File(mOutputFilePath + WaveformPyramid.SIDECAR_EXTENSION));
+        } catch (IOException e) {
+            Log.e(TAG, "cannot write waveform file, reason = " + e.getMessage());
         }
     }
 
-    private synchronized void release() {
-        outputMP4File();
+    private synchronized void release(StopReport report) {
+        mLastStopReport = report;
+        mPendingStop = null;
         changeState(RecorderState.Stopped);
-        mAudioRecord.release();
-        if (mNoiseSuppressor != null) {
-            mNoiseSuppressor.release();
-        }
+        mPipeline.release();
+        mPipeline = null;
+        mPcmSource = null;
+        mAudioEncoder = null;
+        mFrameSink = null;
+        mAdtsSink = null;
+        closeSession();
 
-        if (mAGC != null) {
-            mAGC.release();
-        }
+        changeState(RecorderState.Released);
 
-        releaseEncoder();
-        File tmpFile = new File(mTmpFilePath);
-        if (tmpFile.exists()) {
-            tmpFile.delete();
+        if (mOnMetricsListener != null) {
+            uiHandler.removeCallbacks(mMetricsPublisher);
+            uiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    OnMetricsListener listener = mOnMetricsListener;
+                    if (listener != null && getMetrics(mListenerMetrics)) {
+                        listener.onMetrics(EnhanceAudioRecorder.this, mListenerMetrics);
+                    }
+                }
+            });
         }
 
-        mPendingSampleQueue.clear();
-
-        changeState(RecorderState.Released);
-
         if (onStoppedHandler != null) {
             uiHandler.post(new Runnable() {
                 @Override
@@ -580,85 +1060,210 @@ public class EnhanceAudioRecorder {
     }
 
     private void initAudioRecord() throws IOException {
-        mMinBufferSize = AudioRecord.getMinBufferSize(mParams.getSampleRate(),
-                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
-        mAudioRecord = new AudioRecord(mParams.getAudioSource(), mParams.getSampleRate(), AudioFormat.CHANNEL_IN_MONO,
-                AudioFormat.ENCODING_PCM_16BIT, 2 * mMinBufferSize);
-
-        mVoiceFilteredResults = 0.0;
-
-        int queueLength = (int) Math.ceil(PENDING_AUDIO_LENGTH / (mMinBufferSize / 2 / (double) mParams.getSampleRate()));
-        mPendingSampleQueue = new LinkedBlockingQueue<short[]>(queueLength);
-
-        if (NoiseSuppressor.isAvailable()) {
-            Log.v(TAG, "NoiseSuppressor is available, create it to improve recording quality");
-            mNoiseSuppressor = NoiseSuppressor.create(mAudioRecord.getAudioSessionId());
+        mSession = mManager.openSession();
+        try {
+            initPipeline();
+        } catch (IOException e) {
+            closeSession();
+            throw e;
+        } catch (RuntimeException e) {
+            closeSession();
+            throw e;
         }
+    }
 
-        if (AutomaticGainControl.isAvailable()) {
-            Log.v(TAG, "AutomaticGainControl is available, create it to improve recording quality");
-            mAGC = AutomaticGainControl.create(mAudioRecord.getAudioSessionId());
+    private void closeSession() {
+        if (mSession != null) {
+            mSession.close();
+            mSession = null;
         }
+    }
+
+    private void initPipeline() throws IOException {
+        // the source is mono, a read of n samples lasts n / sample rate
+        int minBufferSize = AudioRecordPcmSource.getMinBufferSize(mParams.getSampleRate());
+        mDefaultReadSize = minBufferSize / 2;
+        int maxReadSize = CapturePolicy.getMaxReadSize(mParams.getSampleRate(), mDefaultReadSize);
+        mPcmSource = new AudioRecordPcmSource(mParams.getAudioSource(), mParams.getSampleRate(), 2 * 2 * maxReadSize);
 
-        initEncoder();
+        mAudioEncoder = new MediaCodecAudioEncoder(mParams.getSampleRate(), mParams.getChannels(),
+                mParams.getEncodingBitrate(), minBufferSize, mParams.isKeepEncoderWarm() || mManager.isReuseEncoders());
 
         mOutputFilePath = mParams.getOutputFilePath();
 
-        mTmpFilePath = mContext.getApplicationInfo().dataDir + File.separator + "tmp.aac";
+        mTmpFilePath = mSession.getScratchPath("tmp.aac");
+
+        if (!TextUtils.isEmpty(mOutputFilePath) && mParams.isSegmentedOutput()) {
+            mFrameSink = createSegmentedSink(mParams, mOutputFilePath, mTmpFilePath);
+        } else if (!TextUtils.isEmpty(mOutputFilePath)) {
+            mFrameSink = createFileSink(mParams, mOutputFilePath, mTmpFilePath);
+        }
+        LoudnessMeter loudnessMeter = null;
+        if (mParams.isMeasureLoudness()) {
+            loudnessMeter = new LoudnessMeter(mParams.getSampleRate(), mParams.getChannels());
+            if (mAdtsSink != null && !mParams.isSegmentedOutput()) {
+                mAdtsSink.setLoudnessMeter(loudnessMeter);
+            }
+        }
+        FrameEnergyIndex energyIndex = null;
+        if (mParams.isTrimSilence() && mAdtsSink != null && !mParams.isSegmentedOutput()) {
+            energyIndex = new FrameEnergyIndex(mParams.getSampleRate(), mParams.getChannels());
+            mAdtsSink.setSilenceTrim(energyIndex, mParams.getSilenceThreshold(), FrameEnergyIndex.DEFAULT_PADDING);
+        }
+
+        RollbackFrameSink rollbackSink = null;
+        if (mAdtsSink != null && mFrameSink == mAdtsSink) {
+            rollbackSink = new RollbackFrameSink(mAdtsSink, mParams.getSampleRate());
+            mFrameSink = rollbackSink;
+        }
 
-        if (!TextUtils.isEmpty(mOutputFilePath)) {
-            mAudioOutputStream = new FileOutputStream(mTmpFilePath);
-            mMP4FileConverter = new MP4FileConverter(mTmpFilePath, mOutputFilePath);
+        mPipeline = new RecorderPipeline(mPcmSource, mAudioEncoder, mFrameSink, mDefaultReadSize, maxReadSize);
+        mPipeline.setRollbackSink(rollbackSink);
+        mPipeline.setReadSize(CapturePolicy.getReadSize(mParams.getCaptureMode(), mParams.getSampleRate(),
+                mDefaultReadSize));
+        mPipeline.setDelayStart(mParams.getDelayStart());
+        mPipeline.setKeepSourceActiveOnPause(mParams.isKeepCapturingOnPause());
+        if (mParams.getPcmBroadcastLength() > 0) {
+            mPipeline.setPcmBroadcast(new PcmBroadcastBuffer((int) ((long) mParams.getPcmBroadcastLength()
+                    * mParams.getSampleRate() * mParams.getChannels() / 1000)));
         }
-        mCurrentPosition = 0;
-        mInputPCMBuffer = new short[mMinBufferSize / 2];
+        mPipeline.setMaxDuration(mMaxDuration);
+        mPipeline.setVoiceDetectionMode(mParams.getVoiceDetectionMode());
+        if (mParams.isWaveformSidecar()) {
+            mPipeline.setWaveform(createWaveform());
+        }
+        mPipeline.setLoudnessMeter(loudnessMeter);
+        mPipeline.setFrameEnergyIndex(energyIndex);
+        mPipeline.setListener(new RecorderPipeline.Listener() {
+            @Override
+            public void onMaxDurationReached(RecorderPipeline pipeline) {
+                // called on the capture thread, which pause() may be joining while holding the monitor
+                sWorkExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        stopOnMaxDuration();
+                    }
+                });
+            }
+
+            @Override
+            public void onVoiceActivityChanged(RecorderPipeline pipeline, boolean voice) {
+                postInfoEvent(MEDIA_RECORDER_INFO_VOICE_ACTIVITY, voice ? 1 : 0);
+            }
+        });
     }
 
-    private void updateMetering(short[] audioData, int sizeInShort) {
-        if (audioData != null && audioData.length > 0) {
-            short peak = 0;
-            double accumulate = 0.0;
-            for (int i = 0; i < sizeInShort; i++) {
-                int amplitude = Math.abs(audioData[i]);
-                peak = (short) Math.max(amplitude, peak);
-                accumulate += Math.pow(amplitude, 2);
+    /**
+     * @return a new waveform, the sidecar of the output file continued if the recording is appended to it,
+     * null if that sidecar does not match the file
+     */
+    private WaveformPyramid createWaveform() {
+        int samplesPerSecond = mParams.getSampleRate() * mParams.getChannels();
+        long appendFrameCount = mAdtsSink == null ? -1 : mAdtsSink.getAppendFrameCount();
+        if (appendFrameCount < 0) {
+            return new WaveformPyramid(samplesPerSecond);
+        }
+        File sidecar = new File(mOutputFilePath + WaveformPyramid.SIDECAR_EXTENSION);
+        int frameSamples = SAMPLES_PER_AAC_FRAME * mParams.getChannels();
+        long sampleCount = appendFrameCount * frameSamples;
+        try {
+            WaveformPyramid waveform = WaveformPyramid.readFrom(sidecar);
+            if (waveform.getSamplesPerSecond() == samplesPerSecond
+                    && Math.abs(waveform.getSampleCount() - sampleCount) <= WAVEFORM_APPEND_TOLERANCE * frameSamples) {
+                waveform.reopen(sampleCount);
+                return waveform;
             }
-            mPeakVolumeDb = calculateDb(peak);
-            mRMSVolume = calculateDb((int) Math.sqrt(accumulate / audioData.length));
-            Log.v(TAG, "peak: " + mPeakVolumeDb + ", RMS: " + mRMSVolume);
+            Log.w(TAG, "waveform file does not match " + mOutputFilePath);
+        } catch (IOException e) {
+            Log.w(TAG, "cannot read waveform file, reason = " + e.getMessage());
         }
+        // a waveform of the appended audio alone would not match the file either
+        sidecar.delete();
+        return null;
     }
 
-    private double calculateDb(int value) {
-        return value == 0 ? -MIN_DB : 20 * Math.log10((double) value / MAX_AMPLITUTE);
-    }
+    private EncodedFrameSink createFileSink(RecordingParameters params, String outputFilePath,
+                                            String tmpFilePath) throws IOException {
+        if (params.isFragmentedOutput()) {
+            return mManager.limitFinalization(new FragmentedMP4Muxer(outputFilePath, params.getSampleRate(),
+                    params.getChannels(), params.getEncodingBitrate(), params.getFragmentDuration()));
+        }
+        long appendFrameCount = -1;
+        if (params.isAppendToOutput() && !params.isSegmentedOutput() && new File(outputFilePath).length() > 0) {
+            appendFrameCount = AdtsRemuxer.getAppendableFrameCount(outputFilePath, params.getSampleRate(),
+                    params.getChannels());
+        }
+        AdtsFileSink sink = new AdtsFileSink(tmpFilePath, outputFilePath, params.getSampleRate(), params.getChannels(),
+                params.getFlushPolicy(), mManager.getBufferPool());
+        sink.setAppend(appendFrameCount);
+        try {
+            sink.enableFrameIndex();
+        } catch (IOException e) {
+            // still recorded, only not recoverable after a crash
+            Log.w(TAG, "cannot create frame index, reason = " + e.getMessage());
+        }
+        sink.setFinalizationQueue(mManager.getFinalizationQueue(), params.getFinalizePriority(),
+                !params.isDeferFinalization(), new FinalizationQueue.Listener() {
+                    @Override
+                    public void onProgress(FinalizationQueue.Job job, float progress) {
+                    }
 
-    private void changeState(int newState) {
-        mRecordState = newState;
-        postInfoEvent(MEDIA_RECORDER_INFO_STATE_CHANGE, newState);
+                    @Override
+                    public void onFinished(FinalizationQueue.Job job) {
+                        if (job.getState() == FinalizationQueue.STATE_FAILED) {
+                            Log.e(TAG, "cannot write mp4 file, reason = " + job.getError().getMessage());
+                        }
+                        postInfoEvent(MEDIA_RECORDER_INFO_FINALIZED, job.getState());
+                    }
+                });
+        mAdtsSink = sink;
+        return sink;
     }
 
-    private static List<MediaCodecInfo> getCodecCandidates(String mimeType) {
-        int numCodecs = MediaCodecList.getCodecCount();
-        List<MediaCodecInfo> codecList = null;
-        for (int i = 0; i < numCodecs; i++) {
-            MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-
-            if (!codecInfo.isEncoder()) {
-                continue;
+    private EncodedFrameSink createSegmentedSink(final RecordingParameters params, final String outputFilePath,
+                                                 final String tmpFilePath) {
+        SegmentedFrameSink sink = new SegmentedFrameSink(new SegmentedFrameSink.SegmentFactory() {
+            @Override
+            public EncodedFrameSink createSegment(int index) throws IOException {
+                // every segment has its own temporary file, the previous one may still be converting
+                return createFileSink(params, SegmentedFrameSink.getSegmentPath(outputFilePath, index),
+                        SegmentedFrameSink.getSegmentPath(tmpFilePath, index));
             }
-
-            String[] types = codecInfo.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-                if (types[j].equalsIgnoreCase(mimeType)) {
-                    if (codecList == null) {
-                        codecList = new ArrayList<MediaCodecInfo>();
-                    }
-                    codecList.add(codecInfo);
+        }, params.getSampleRate(), params.getSegmentDuration(), params.getSegmentSize(),
+                mManager.getFinalizeExecutor());
+        sink.setListener(new SegmentedFrameSink.Listener() {
+            @Override
+            public void onSegmentFinished(int index, long startTime, long duration, IOException error) {
+                if (error != null) {
+                    Log.e(TAG, "cannot finalize segment " + index + ", reason = " + error.getMessage());
                 }
+                postInfoEvent(MEDIA_RECORDER_INFO_SEGMENT_FINISHED, error == null ? index : -1 - index);
+            }
+        });
+        return sink;
+    }
+
+    private void stopOnMaxDuration() {
+        Future<StopReport> stopping;
+        synchronized (this) {
+            if (mRecordState != RecorderState.Recording && mRecordState != RecorderState.Paused) {
+                return; // already stopped by the user
             }
+            changeState(RecorderState.Stopping);
+            stopping = submitStop(true);
         }
-        return codecList;
+        try {
+            stopping.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Cannot stop recorder, reason = " + e.getCause());
+        }
+    }
+
+    private void changeState(int newState) {
+        mRecordState = newState;
+        postInfoEvent(MEDIA_RECORDER_INFO_STATE_CHANGE, newState);
     }
 
     private class EventHandler extends Handler {
@@ -688,23 +1293,20 @@ public class EnhanceAudioRecorder {
     }
 
     public boolean detectVoice(final double volume) {
-        //Use the detect user blow algorithm from http://mobileorchard.com/tutorial-detecting-when-a-user-blows-into-the-mic/
-        final double factorOfPower = Math.pow(10, 0.05 /* Is the constant convert db to ampl level 1/20 not FILTER_FACTOR */ * volume);
-        mVoiceFilteredResults = FILTER_FACTOR * factorOfPower + (1.0 - FILTER_FACTOR) * mVoiceFilteredResults;
-        Log.v(TAG, "monitoring the filtered result = " + mVoiceFilteredResults);
-        if (mVoiceFilteredResults > DEFAULT_VOICE_THRESHOLD) {
-            return true;
-        } else {
-            return false;
-        }
+        RecorderPipeline pipeline = mPipeline;
+        return pipeline != null && pipeline.detectVoice(volume);
     }
 
     public double getVoiceVolumePercentage() {
         final double peakVolumeDb = getPeakVolumeDb();
-        final double percentage = detectVoice(peakVolumeDb) ? ((MIN_DB + peakVolumeDb) / MIN_DB - DEFAULT_VOICE_THRESHOLD) : 0.0;
+        final double percentage = detectVoice(peakVolumeDb) ? ((MIN_DB + peakVolumeDb) / MIN_DB - RecorderPipeline.DEFAULT_VOICE_THRESHOLD) : 0.0;
         return percentage;
     }
 
+    public static interface OnPreparedHandler {
+        public void onPrepared(EnhanceAudioRecorder enhanceAudioRecorder, boolean prepared);
+    }
+
     public static interface OnStoppedHandler {
         public void onStopped(EnhanceAudioRecorder enhanceAudioRecorder);
     }
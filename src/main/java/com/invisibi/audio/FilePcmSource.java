@@ -0,0 +1,104 @@
+package com.invisibi.audio;
+
+import com.googlecode.mp4parser.util.Logger;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read raw 16bit little endian PCM from a file, for replaying captured audio through the recording
+ * pipeline without a device. The source turns inactive at the end of the file unless it loops.
+ */
+public class FilePcmSource implements PcmSource {
+
+    private static final Logger LOG = Logger.getLogger(FilePcmSource.class);
+
+    private final FileChannel mFileChannel;
+    private final int mSampleRate;
+    private final int mChannels;
+    private final boolean mLoop;
+    private ByteBuffer mReadBuffer = ByteBuffer.allocate(0);
+    private volatile boolean mActive;
+
+    /**
+     * @param filePath   raw pcm file
+     * @param sampleRate sample rate of the file
+     * @param channels   channel count of the file, samples are interleaved
+     * @param loop       restart from the beginning at the end of the file
+     */
+    public FilePcmSource(String filePath, int sampleRate, int channels, boolean loop) throws IOException {
+        mFileChannel = new RandomAccessFile(filePath, "r").getChannel();
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mLoop = loop;
+    }
+
+    @Override
+    public void start() {
+        mActive = true;
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int count) {
+        if (mReadBuffer.capacity() < 2 * count) {
+            mReadBuffer = ByteBuffer.allocate(2 * count).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        mReadBuffer.clear();
+        mReadBuffer.limit(2 * count);
+        try {
+            while (mReadBuffer.hasRemaining()) {
+                if (mFileChannel.read(mReadBuffer) < 0) {
+                    if (!mLoop || mFileChannel.size() < 2) {
+                        break;
+                    }
+                    mFileChannel.position(0);
+                }
+            }
+        } catch (IOException e) {
+            LOG.logError("cannot read pcm file, reason = " + e.getMessage());
+            mActive = false;
+            return -1;
+        }
+        mReadBuffer.flip();
+        int samples = mReadBuffer.remaining() / 2;
+        if (samples == 0) {
+            mActive = false;
+            return 0;
+        }
+        mReadBuffer.asShortBuffer().get(buffer, offset, samples);
+        return samples;
+    }
+
+    @Override
+    public void stop() {
+        mActive = false;
+    }
+
+    @Override
+    public boolean isActive() {
+        return mActive;
+    }
+
+    @Override
+    public void release() {
+        mActive = false;
+        try {
+            mFileChannel.close();
+        } catch (IOException e) {
+            LOG.logWarn("cannot close pcm file");
+        }
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getChannels() {
+        return mChannels;
+    }
+}
@@ -0,0 +1,727 @@
+package com.invisibi.audio;
+
+import com.googlecode.mp4parser.util.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Converts finished ADTS files to mp4 on worker threads, so stopping a recording does not wait for the conversion.
+ * Jobs run by priority and then in submission order, one worker only takes user visible jobs so they never wait
+ * behind a backlog of background conversions. Background jobs run at the lowest thread priority.
+ * The ADTS file is moved into a directory of the queue's own with a small job file next to it. The queue holds a lock
+ * file in that directory, jobs in directories nobody holds the lock of belong to a dead process and are taken over
+ * when a queue is created, so processes sharing the directory never run the same job. An {@link AdtsFrameIndex} next
+ * to the ADTS file is moved along and spares the conversion a scan of the file. Jobs which fail are moved with their
+ * files into a failed directory, where they wait for {@link #retryFailed(Listener)} or {@link #discardFailed()}.
+ */
+public class FinalizationQueue {
+
+    /**
+     * Someone waits for the file, e.g. to play it right after recording.
+     */
+    public static final int PRIORITY_USER_VISIBLE = 0;
+    /**
+     * Nobody waits for the file.
+     */
+    public static final int PRIORITY_BACKGROUND = 1;
+
+    public static final int STATE_QUEUED = 0;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_SUCCEEDED = 2;
+    public static final int STATE_FAILED = 3;
+    public static final int STATE_CANCELLED = 4;
+
+    private static final Logger LOG = Logger.getLogger(FinalizationQueue.class);
+    private static final String JOB_EXTENSION = ".job";
+    private static final String INPUT_EXTENSION = ".aac";
+    private static final String PART_EXTENSION = ".part";
+    private static final String FAILED_DIRECTORY = "failed";
+    private static final String QUEUE_DIRECTORY_PREFIX = "queue_";
+    private static final int MAX_QUEUE_DIRECTORY_ATTEMPTS = 10;
+    private static final String KEY_OUTPUT = "output";
+    private static final String KEY_PRIORITY = "priority";
+
+    /**
+     * Interface definition for callbacks of a job, called on the worker thread running it.
+     */
+    public interface Listener {
+        /**
+         * @param progress estimated fraction of the mp4 file written, from 0 to 1
+         */
+        void onProgress(Job job, float progress);
+
+        /**
+         * Called once the job succeeded, failed or was cancelled, see {@link Job#getState()}.
+         */
+        void onFinished(Job job);
+    }
+
+    private final File mDirectory;
+    private final File mFailedDirectory;
+    private final DirectoryLock mLock; // null if the queue has no directory of its own
+    private final File mQueueDirectory;
+    private final List<Job> mQueued = new ArrayList<Job>();
+    private final Thread[] mWorkers;
+    private final AtomicLong mSequence = new AtomicLong();
+    private volatile Listener mListener;
+
+    /**
+     * @param directory   where queued ADTS files and job files are kept, in a directory per queue, must be on the
+     *                    same file system as the recordings' temporary files
+     * @param workerCount number of conversions running at a time
+     */
+    public FinalizationQueue(File directory, int workerCount) {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("worker count must be positive, workerCount = " + workerCount);
+        }
+        mDirectory = directory;
+        mFailedDirectory = new File(directory, FAILED_DIRECTORY);
+        if (!directory.mkdirs() && !directory.isDirectory()) {
+            LOG.logError("cannot create finalization directory " + directory);
+        }
+        mLock = lockQueueDirectory(directory);
+        if (mLock != null) {
+            mQueueDirectory = mLock.getDirectory();
+        } else {
+            // jobs of dead processes wait for a queue which gets one
+            LOG.logError("cannot create a queue directory in " + directory + ", jobs are not resumed");
+            mQueueDirectory = directory;
+        }
+        mWorkers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            // with more than one worker the first one is kept free for user visible jobs
+            final boolean userVisibleOnly = workerCount > 1 && i == 0;
+            mWorkers[i] = new Thread("FinalizationThread-" + i) {
+                @Override
+                public void run() {
+                    runJobs(userVisibleOnly);
+                }
+            };
+            mWorkers[i].setDaemon(true);
+        }
+        if (mLock != null) {
+            resumeJobs();
+        }
+        for (Thread worker : mWorkers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * @return the lock of a new queue directory, null if none could be created
+     */
+    private static DirectoryLock lockQueueDirectory(File directory) {
+        for (int i = 0; i < MAX_QUEUE_DIRECTORY_ATTEMPTS; i++) {
+            File queueDirectory = new File(directory, QUEUE_DIRECTORY_PREFIX
+                    + Long.toString(System.currentTimeMillis(), 36) + "_" + i);
+            if (!queueDirectory.mkdir()) {
+                continue;
+            }
+            try {
+                // another queue starting right now may have taken the new directory for a dead one
+                DirectoryLock lock = DirectoryLock.tryLock(queueDirectory);
+                if (lock != null) {
+                    return lock;
+                }
+            } catch (IOException e) {
+                LOG.logWarn("cannot lock " + queueDirectory + ", reason = " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Listener of every job, including the ones resumed after a crash.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Queue the conversion of a complete ADTS file, the file and its frame index if any are moved into the queue
+     * directory and deleted once converted or cancelled, a failed conversion keeps them. The mp4 file is written next
+     * to {@code outputFilePath} and renamed when complete.
+     *
+     * @param priority {@link #PRIORITY_USER_VISIBLE} or {@link #PRIORITY_BACKGROUND}
+     * @param listener callbacks of this job, null for none
+     */
+    public Job submit(String adtsFilePath, String outputFilePath, int priority, Listener listener) throws IOException {
+        return submit(adtsFilePath, outputFilePath, null, priority, listener);
+    }
+
+    /**
+     * @param options tags and trimming of the mp4 file, kept in the job file so resumed jobs still apply them,
+     *                null for none
+     */
+    public Job submit(String adtsFilePath, String outputFilePath, FinalizeOptions options, int priority,
+                      Listener listener) throws IOException {
+        String name = newJobName();
+        File input = new File(mQueueDirectory, name + INPUT_EXTENSION);
+        if (!new File(adtsFilePath).renameTo(input)) {
+            throw new IOException("cannot move " + adtsFilePath + " to the finalization queue");
+        }
+        File index = new File(AdtsFrameIndex.getIndexPath(adtsFilePath));
+        if (index.exists() && !index.renameTo(new File(AdtsFrameIndex.getIndexPath(input.getPath())))) {
+            // the job scans the input instead
+            index.delete();
+        }
+        File jobFile = new File(mQueueDirectory, name + JOB_EXTENSION);
+        Job job = new Job(input, jobFile, outputFilePath, options, priority, listener);
+        try {
+            writeJobFile(job);
+        } catch (IOException e) {
+            // still converted, only not resumable after a crash
+            LOG.logError("cannot write job file " + jobFile + ", reason = " + e.getMessage());
+        }
+        enqueue(job);
+        return job;
+    }
+
+    private String newJobName() {
+        return "job_" + Long.toString(System.currentTimeMillis(), 36) + "_" + mSequence.incrementAndGet();
+    }
+
+    private void enqueue(Job job) {
+        synchronized (mQueued) {
+            job.mSequence = mSequence.incrementAndGet();
+            mQueued.add(job);
+            mQueued.notifyAll();
+        }
+    }
+
+    private static void writeJobFile(Job job) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_OUTPUT, job.mOutputFilePath);
+        properties.setProperty(KEY_PRIORITY, Integer.toString(job.mPriority));
+        if (job.mOptions != null) {
+            job.mOptions.writeTo(properties);
+        }
+        File part = new File(job.mJobFile.getPath() + PART_EXTENSION);
+        FileOutputStream out = new FileOutputStream(part);
+        try {
+            properties.store(out, null);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!part.renameTo(job.mJobFile)) {
+            throw new IOException("cannot rename " + part);
+        }
+    }
+
+    /**
+     * Take over the jobs dead processes left behind in queue directories nobody holds the lock of, and the ones older
+     * versions kept right in the directory.
+     */
+    private void resumeJobs() {
+        resumeJobs(mDirectory);
+        File[] directories = mDirectory.listFiles();
+        if (directories == null) {
+            return;
+        }
+        for (File directory : directories) {
+            if (directory.isDirectory() && directory.getName().startsWith(QUEUE_DIRECTORY_PREFIX)
+                    && !directory.equals(mQueueDirectory)) {
+                resumeJobs(directory);
+            }
+        }
+    }
+
+    /**
+     * Move the jobs of {@code directory} into the queue directory and queue them, unless another queue holds its lock.
+     * Incomplete job files are dropped with their input, an emptied queue directory is deleted.
+     */
+    private void resumeJobs(File directory) {
+        DirectoryLock lock;
+        try {
+            lock = DirectoryLock.tryLock(directory);
+        } catch (IOException e) {
+            LOG.logWarn("cannot lock " + directory + ", reason = " + e.getMessage());
+            return;
+        }
+        if (lock == null) {
+            LOG.logDebug("finalization directory " + directory + " is in use");
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            files = new File[0];
+        }
+        for (File file : files) {
+            String path = file.getPath();
+            if (path.endsWith(PART_EXTENSION)) {
+                file.delete();
+                continue;
+            }
+            if (!path.endsWith(JOB_EXTENSION)) {
+                continue;
+            }
+            File input = new File(path.substring(0, path.length() - JOB_EXTENSION.length()) + INPUT_EXTENSION);
+            String name = newJobName();
+            File toInput = new File(mQueueDirectory, name + INPUT_EXTENSION);
+            File toJobFile = new File(mQueueDirectory, name + JOB_EXTENSION);
+            Job job;
+            if (moveJobFiles(input, file, toInput, toJobFile)) {
+                job = readJob(toJobFile, toInput, null);
+            } else if (!input.exists()) {
+                job = readJob(file, input, null);
+            } else {
+                LOG.logWarn("cannot move job " + file + " to " + mQueueDirectory);
+                continue;
+            }
+            if (job != null) {
+                LOG.logDebug("resume finalizing " + job.mOutputFilePath + ", " + job.mOptions);
+                enqueue(job);
+            }
+        }
+        // orphaned inputs and indexes, their job file was never written
+        for (File file : files) {
+            String path = file.getPath();
+            if (path.endsWith(AdtsFrameIndex.EXTENSION)) {
+                path = path.substring(0, path.length() - AdtsFrameIndex.EXTENSION.length());
+            }
+            if (path.endsWith(INPUT_EXTENSION) && !new File(path.substring(0,
+                    path.length() - INPUT_EXTENSION.length()) + JOB_EXTENSION).exists()) {
+                file.delete();
+            }
+        }
+        if (!directory.equals(mDirectory)) {
+            new File(directory, DirectoryLock.FILE_NAME).delete();
+            if (!directory.delete()) {
+                LOG.logWarn("cannot delete finalization directory " + directory);
+            }
+        }
+        lock.release();
+    }
+
+    /**
+     * @return the job of a job file, null if it is incomplete, it is dropped with its input then
+     */
+    private Job readJob(File jobFile, File input, Listener listener) {
+        Properties properties = new Properties();
+        try {
+            FileInputStream in = new FileInputStream(jobFile);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            String output = properties.getProperty(KEY_OUTPUT);
+            if (output == null || !input.exists()) {
+                throw new IOException("incomplete job");
+            }
+            int priority = Integer.parseInt(properties.getProperty(KEY_PRIORITY,
+                    Integer.toString(PRIORITY_BACKGROUND)));
+            FinalizeOptions options = FinalizeOptions.readFrom(properties);
+            return new Job(input, jobFile, output, options, priority, listener);
+        } catch (IOException e) {
+            LOG.logWarn("drop job " + jobFile + ", reason = " + e.getMessage());
+        } catch (NumberFormatException e) {
+            LOG.logWarn("drop job " + jobFile + ", reason = " + e.getMessage());
+        }
+        jobFile.delete();
+        input.delete();
+        new File(AdtsFrameIndex.getIndexPath(input.getPath())).delete();
+        return null;
+    }
+
+    /**
+     * Queue the failed jobs again, e.g. once there is enough storage, including the ones failed before a restart.
+     *
+     * @param listener callbacks of the retried jobs, null for none
+     * @return the jobs queued again
+     */
+    public List<Job> retryFailed(Listener listener) {
+        List<Job> jobs = new ArrayList<Job>();
+        File[] files = mFailedDirectory.listFiles();
+        if (files == null) {
+            return jobs;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(JOB_EXTENSION)) {
+                continue;
+            }
+            name = name.substring(0, name.length() - JOB_EXTENSION.length());
+            File failedInput = new File(mFailedDirectory, name + INPUT_EXTENSION);
+            File input = new File(mQueueDirectory, name + INPUT_EXTENSION);
+            File jobFile = new File(mQueueDirectory, name + JOB_EXTENSION);
+            if (!moveJobFiles(failedInput, file, input, jobFile)) {
+                LOG.logWarn("cannot retry job " + file);
+                continue;
+            }
+            Job job = readJob(jobFile, input, listener);
+            if (job != null) {
+                LOG.logDebug("retry finalizing " + job.mOutputFilePath);
+                enqueue(job);
+                jobs.add(job);
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * @return number of failed jobs waiting for {@link #retryFailed(Listener)}
+     */
+    public int getFailedCount() {
+        File[] files = mFailedDirectory.listFiles();
+        int count = 0;
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(JOB_EXTENSION)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Delete the failed jobs and their ADTS files.
+     */
+    public void discardFailed() {
+        File[] files = mFailedDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Move an ADTS file whose conversion failed outside the queue into the failed directory, with its frame index if
+     * any, where it waits for {@link #retryFailed(Listener)} like a failed job.
+     *
+     * @param options tags and trimming of the mp4 file, null for none
+     */
+    public void keepFailed(String adtsFilePath, String outputFilePath, FinalizeOptions options) throws IOException {
+        if (!mFailedDirectory.mkdirs() && !mFailedDirectory.isDirectory()) {
+            throw new IOException("cannot create " + mFailedDirectory);
+        }
+        String name = newJobName();
+        File input = new File(mFailedDirectory, name + INPUT_EXTENSION);
+        if (!new File(adtsFilePath).renameTo(input)) {
+            throw new IOException("cannot move " + adtsFilePath + " to " + mFailedDirectory);
+        }
+        File index = new File(AdtsFrameIndex.getIndexPath(adtsFilePath));
+        if (index.exists() && !index.renameTo(new File(AdtsFrameIndex.getIndexPath(input.getPath())))) {
+            // the retried job scans the input instead
+            index.delete();
+        }
+        writeJobFile(new Job(input, new File(mFailedDirectory, name + JOB_EXTENSION), outputFilePath, options,
+                PRIORITY_BACKGROUND, null));
+    }
+
+    /**
+     * Move the input with its frame index and then the job file, a job file is never moved without its input.
+     *
+     * @return false if nothing was moved
+     */
+    private static boolean moveJobFiles(File input, File jobFile, File toInput, File toJobFile) {
+        if (!input.renameTo(toInput)) {
+            return false;
+        }
+        File index = new File(AdtsFrameIndex.getIndexPath(input.getPath()));
+        if (index.exists() && !index.renameTo(new File(AdtsFrameIndex.getIndexPath(toInput.getPath())))) {
+            // the job scans the input instead
+            index.delete();
+        }
+        if (!jobFile.renameTo(toJobFile)) {
+            toInput.renameTo(input);
+            return false;
+        }
+        return true;
+    }
+
+    private void runJobs(boolean userVisibleOnly) {
+        while (true) {
+            Job job;
+            synchronized (mQueued) {
+                while ((job = next(userVisibleOnly)) == null) {
+                    try {
+                        mQueued.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                mQueued.remove(job);
+                job.mState = STATE_RUNNING;
+            }
+            Thread.currentThread().setPriority(job.mPriority == PRIORITY_USER_VISIBLE
+                    ? Thread.NORM_PRIORITY : Thread.MIN_PRIORITY);
+            job.run();
+        }
+    }
+
+    /**
+     * @return the queued job to run next, guarded by mQueued
+     */
+    private Job next(boolean userVisibleOnly) {
+        Job next = null;
+        for (Job job : mQueued) {
+            if (next == null || job.mPriority < next.mPriority
+                    || (job.mPriority == next.mPriority && job.mSequence < next.mSequence)) {
+                next = job;
+            }
+        }
+        if (next != null && userVisibleOnly && next.mPriority != PRIORITY_USER_VISIBLE) {
+            return null;
+        }
+        return next;
+    }
+
+    /**
+     * @return number of jobs waiting for a worker
+     */
+    public int getQueuedCount() {
+        synchronized (mQueued) {
+            return mQueued.size();
+        }
+    }
+
+    /**
+     * Conversion of one recording.
+     */
+    public class Job {
+
+        private final File mInput;
+        private final File mJobFile;
+        private final String mOutputFilePath;
+        private final FinalizeOptions mOptions;
+        private final Listener mJobListener;
+        private final CountDownLatch mFinished = new CountDownLatch(1);
+        private int mPriority; // guarded by mQueued
+        private long mSequence; // guarded by mQueued
+        private volatile int mState = STATE_QUEUED;
+        private volatile boolean mCancelRequested;
+        private volatile float mProgress;
+        private volatile IOException mError;
+
+        Job(File input, File jobFile, String outputFilePath, FinalizeOptions options, int priority,
+            Listener listener) {
+            mInput = input;
+            mJobFile = jobFile;
+            mOutputFilePath = outputFilePath;
+            mOptions = options;
+            mPriority = priority;
+            mJobListener = listener;
+        }
+
+        private void run() {
+            long time = System.currentTimeMillis();
+            // an append goes into the existing file, which stays valid until the new 'moov' is written
+            boolean append = mOptions != null && mOptions.isAppend() && new File(mOutputFilePath).exists();
+            File part = new File(append ? mOutputFilePath : mOutputFilePath + PART_EXTENSION);
+            File index = new File(AdtsFrameIndex.getIndexPath(mInput.getPath()));
+            try {
+                AdtsRemuxer remuxer = new AdtsRemuxer(mInput.getPath(), part.getPath());
+                if (index.exists()) {
+                    remuxer.setIndexFilePath(index.getPath());
+                }
+                if (mOptions != null) {
+                    mOptions.applyTo(remuxer);
+                }
+                remuxer.remux(new MP4FileConverter.ProgressListener() {
+                    @Override
+                    public boolean onProgress(float progress) {
+                        mProgress = progress;
+                        notifyProgress(progress);
+                        return !mCancelRequested;
+                    }
+                });
+                if (!append && !part.renameTo(new File(mOutputFilePath))) {
+                    throw new IOException("cannot rename " + part);
+                }
+                mProgress = 1f;
+                mState = STATE_SUCCEEDED;
+                LOG.logDebug("finalized " + mOutputFilePath + " in " + (System.currentTimeMillis() - time) + "ms");
+            } catch (InterruptedIOException e) {
+                mState = STATE_CANCELLED;
+            } catch (IOException e) {
+                mError = e;
+                mState = STATE_FAILED;
+            } catch (RuntimeException e) {
+                mError = new IOException("cannot convert " + mInput + ", reason = " + e.getMessage());
+                mState = STATE_FAILED;
+            }
+            if (mState != STATE_SUCCEEDED) {
+                if (!append) {
+                    part.delete();
+                }
+                LOG.logError("finalizing " + mOutputFilePath + " did not succeed, state = " + mState);
+            }
+            finish();
+        }
+
+        private void finish() {
+            if (mState != STATE_FAILED || !keepFailed()) {
+                mInput.delete();
+                new File(AdtsFrameIndex.getIndexPath(mInput.getPath())).delete();
+                mJobFile.delete();
+            }
+            mFinished.countDown();
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onFinished(this);
+            }
+            if (mJobListener != null) {
+                mJobListener.onFinished(this);
+            }
+        }
+
+        /**
+         * Move the files of the failed job into the failed directory for {@link #retryFailed(Listener)}.
+         *
+         * @return false if they were left where they are
+         */
+        private boolean keepFailed() {
+            if (!mFailedDirectory.mkdirs() && !mFailedDirectory.isDirectory()) {
+                LOG.logError("cannot create " + mFailedDirectory);
+                return false;
+            }
+            if (!mJobFile.exists()) {
+                // writing it at submit failed, without it the job cannot be retried
+                try {
+                    writeJobFile(this);
+                } catch (IOException e) {
+                    LOG.logError("cannot write job file " + mJobFile + ", reason = " + e.getMessage());
+                    return false;
+                }
+            }
+            if (!moveJobFiles(mInput, mJobFile, new File(mFailedDirectory, mInput.getName()),
+                    new File(mFailedDirectory, mJobFile.getName()))) {
+                // still retried when the queue is created again
+                LOG.logError("cannot move " + mJobFile + " to " + mFailedDirectory);
+            }
+            return true;
+        }
+
+        private void notifyProgress(float progress) {
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onProgress(this, progress);
+            }
+            if (mJobListener != null) {
+                mJobListener.onProgress(this, progress);
+            }
+        }
+
+        /**
+         * Cancel the conversion, a running one stops at its next write. The ADTS file and any partial mp4 file
+         * are deleted.
+         */
+        public void cancel() {
+            synchronized (mQueued) {
+                if (mState == STATE_QUEUED) {
+                    mQueued.remove(this);
+                    mState = STATE_CANCELLED;
+                } else {
+                    mCancelRequested = true;
+                    return;
+                }
+            }
+            finish();
+        }
+
+        /**
+         * Move a queued job ahead of or behind others, e.g. when the user opens a recording still converting.
+         *
+         * @param priority {@link #PRIORITY_USER_VISIBLE} or {@link #PRIORITY_BACKGROUND}
+         */
+        public void setPriority(int priority) {
+            synchronized (mQueued) {
+                if (mPriority == priority) {
+                    return;
+                }
+                mPriority = priority;
+                if (mState == STATE_QUEUED) {
+                    mQueued.notifyAll();
+                }
+            }
+            try {
+                writeJobFile(this);
+            } catch (IOException e) {
+                LOG.logWarn("cannot update job file " + mJobFile + ", reason = " + e.getMessage());
+            }
+        }
+
+        /**
+         * Wait until the job succeeded, failed or was cancelled.
+         *
+         * @param timeout time unit is ms
+         * @return true if the job finished in time
+         */
+        public boolean await(long timeout) throws InterruptedException {
+            return mFinished.await(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Wait until the job finished.
+         *
+         * @throws IOException the conversion error, or an {@link InterruptedIOException} if it was cancelled
+         */
+        public void get() throws IOException {
+            try {
+                mFinished.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while finalizing " + mOutputFilePath);
+            }
+            if (mState == STATE_CANCELLED) {
+                throw new InterruptedIOException("finalizing " + mOutputFilePath + " was cancelled");
+            }
+            if (mError != null) {
+                throw mError;
+            }
+        }
+
+        public String getOutputFilePath() {
+            return mOutputFilePath;
+        }
+
+        /**
+         * @return tags and trimming of the mp4 file, null for none
+         */
+        public FinalizeOptions getOptions() {
+            return mOptions;
+        }
+
+        public int getPriority() {
+            synchronized (mQueued) {
+                return mPriority;
+            }
+        }
+
+        /**
+         * @return one of the STATE_ constants
+         */
+        public int getState() {
+            return mState;
+        }
+
+        /**
+         * @return estimated fraction of the mp4 file written, from 0 to 1
+         */
+        public float getProgress() {
+            return mProgress;
+        }
+
+        /**
+         * @return why the job failed, null unless the state is {@link #STATE_FAILED}
+         */
+        public IOException getError() {
+            return mError;
+        }
+    }
+}
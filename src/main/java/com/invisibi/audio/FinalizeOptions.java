@@ -0,0 +1,144 @@
+package com.invisibi.audio;
+
+import java.util.Properties;
+
+/**
+ * What is done to a recording when its ADTS file is remuxed into the mp4 file, besides copying the frames:
+ * loudness tags, cutting frames at the head and tail and appending to an existing file.
+ * Kept in the job file of a queued conversion.
+ */
+public class FinalizeOptions {
+
+    private static final String KEY_INTEGRATED_LOUDNESS = "integrated_loudness";
+    private static final String KEY_LOUDNESS_RANGE = "loudness_range";
+    private static final String KEY_TRUE_PEAK = "true_peak";
+    private static final String KEY_TRIM_START = "trim_start";
+    private static final String KEY_TRIM_END = "trim_end";
+    private static final String KEY_APPEND_FRAME_COUNT = "append_frame_count";
+
+    /**
+     * Frames kept, from {@link #getStartFrame()} up to but excluding {@link #getEndFrame()}.
+     */
+    public static class Trim {
+
+        private final int mStartFrame;
+        private final int mEndFrame;
+
+        /**
+         * @param endFrame first frame cut at the tail, {@link Integer#MAX_VALUE} to keep the tail
+         */
+        public Trim(int startFrame, int endFrame) {
+            if (startFrame < 0 || endFrame <= startFrame) {
+                throw new IllegalArgumentException("invalid trim, startFrame = " + startFrame
+                        + ", endFrame = " + endFrame);
+            }
+            mStartFrame = startFrame;
+            mEndFrame = endFrame;
+        }
+
+        public int getStartFrame() {
+            return mStartFrame;
+        }
+
+        public int getEndFrame() {
+            return mEndFrame;
+        }
+
+        @Override
+        public String toString() {
+            return "Trim{" + mStartFrame + ", " + (mEndFrame == Integer.MAX_VALUE ? "end" : mEndFrame) + "}";
+        }
+    }
+
+    private LoudnessInfo mLoudness;
+    private Trim mTrim;
+    private long mAppendFrameCount = -1;
+
+    public LoudnessInfo getLoudness() {
+        return mLoudness;
+    }
+
+    /**
+     * @param loudness written into the mp4 file as tags, null for none
+     */
+    public void setLoudness(LoudnessInfo loudness) {
+        mLoudness = loudness;
+    }
+
+    public Trim getTrim() {
+        return mTrim;
+    }
+
+    /**
+     * @param trim frames to keep, null to keep all
+     */
+    public void setTrim(Trim trim) {
+        mTrim = trim;
+    }
+
+    public long getAppendFrameCount() {
+        return mAppendFrameCount;
+    }
+
+    /**
+     * @param appendFrameCount frames of the existing mp4 file the recording is appended to, see
+     *                         {@link AdtsRemuxer#setAppend(long)}, -1 to overwrite it
+     */
+    public void setAppendFrameCount(long appendFrameCount) {
+        mAppendFrameCount = appendFrameCount;
+    }
+
+    public boolean isAppend() {
+        return mAppendFrameCount >= 0;
+    }
+
+    void applyTo(AdtsRemuxer remuxer) {
+        remuxer.setLoudness(mLoudness);
+        remuxer.setTrim(mTrim);
+        remuxer.setAppend(mAppendFrameCount);
+    }
+
+    void writeTo(Properties properties) {
+        if (mLoudness != null) {
+            properties.setProperty(KEY_INTEGRATED_LOUDNESS, Double.toString(mLoudness.getIntegratedLoudness()));
+            properties.setProperty(KEY_LOUDNESS_RANGE, Double.toString(mLoudness.getLoudnessRange()));
+            properties.setProperty(KEY_TRUE_PEAK, Double.toString(mLoudness.getTruePeakDb()));
+        }
+        if (mTrim != null) {
+            properties.setProperty(KEY_TRIM_START, Integer.toString(mTrim.getStartFrame()));
+            properties.setProperty(KEY_TRIM_END, Integer.toString(mTrim.getEndFrame()));
+        }
+        if (isAppend()) {
+            properties.setProperty(KEY_APPEND_FRAME_COUNT, Long.toString(mAppendFrameCount));
+        }
+    }
+
+    /**
+     * @throws NumberFormatException if a value is corrupt
+     */
+    static FinalizeOptions readFrom(Properties properties) {
+        FinalizeOptions options = new FinalizeOptions();
+        if (properties.getProperty(KEY_INTEGRATED_LOUDNESS) != null) {
+            options.setLoudness(new LoudnessInfo(Double.parseDouble(properties.getProperty(KEY_INTEGRATED_LOUDNESS)),
+                    Double.parseDouble(properties.getProperty(KEY_LOUDNESS_RANGE, "0")),
+                    Double.parseDouble(properties.getProperty(KEY_TRUE_PEAK, "0"))));
+        }
+        if (properties.getProperty(KEY_TRIM_START) != null) {
+            try {
+                options.setTrim(new Trim(Integer.parseInt(properties.getProperty(KEY_TRIM_START)),
+                        Integer.parseInt(properties.getProperty(KEY_TRIM_END))));
+            } catch (IllegalArgumentException e) {
+                // covers NumberFormatException, an invalid range is not worth dropping the recording for
+                options.setTrim(null);
+            }
+        }
+        // a corrupt count drops the job rather than overwriting the file
+        options.setAppendFrameCount(Long.parseLong(properties.getProperty(KEY_APPEND_FRAME_COUNT, "-1")));
+        return options;
+    }
+
+    @Override
+    public String toString() {
+        return "FinalizeOptions{loudness=" + mLoudness + ", trim=" + mTrim + ", append=" + mAppendFrameCount + "}";
+    }
+}
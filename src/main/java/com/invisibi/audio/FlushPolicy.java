@@ -0,0 +1,77 @@
+package com.invisibi.audio;
+
+/**
+ * When buffered encoder output is written to the file. A flush happens as soon as any limit is reached,
+ * fewer and larger writes mean fewer syscalls, more audio is lost if the process dies before a flush.
+ */
+public class FlushPolicy {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_FRAMES = 64;
+    public static final int DEFAULT_MAX_DELAY = 2000;
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 5000;
+
+    private int mBufferSize;
+    private int mMaxFrames;
+    private int mMaxDelay;
+    private int mCheckpointInterval;
+
+    public FlushPolicy() {
+        mBufferSize = DEFAULT_BUFFER_SIZE;
+        mMaxFrames = DEFAULT_MAX_FRAMES;
+        mMaxDelay = DEFAULT_MAX_DELAY;
+        mCheckpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * @param bufferSize size of the reused write buffer, time unit is byte
+     */
+    public void setBufferSize(int bufferSize) {
+        mBufferSize = bufferSize;
+    }
+
+    public int getMaxFrames() {
+        return mMaxFrames;
+    }
+
+    /**
+     * @param maxFrames number of frames buffered before a flush, 1 writes every frame
+     */
+    public void setMaxFrames(int maxFrames) {
+        mMaxFrames = maxFrames;
+    }
+
+    public int getMaxDelay() {
+        return mMaxDelay;
+    }
+
+    /**
+     * @param maxDelay max time since the first buffered frame before a flush, time unit is ms
+     */
+    public void setMaxDelay(int maxDelay) {
+        mMaxDelay = maxDelay;
+    }
+
+    public int getCheckpointInterval() {
+        return mCheckpointInterval;
+    }
+
+    /**
+     * @param checkpointInterval min time between two syncs of the written audio and its frame index to the storage,
+     *                           at a flush, time unit is ms. 0 never syncs, a crash of the process loses nothing
+     *                           flushed, a power loss everything since the last sync
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        mCheckpointInterval = checkpointInterval;
+    }
+
+    @Override
+    public String toString() {
+        return "FlushPolicy{bufferSize=" + mBufferSize + ", maxFrames=" + mMaxFrames + ", maxDelay=" + mMaxDelay
+                + "ms, checkpointInterval=" + mCheckpointInterval + "ms}";
+    }
+}
@@ -0,0 +1,336 @@
+package com.invisibi.audio;
+
+import com.coremedia.iso.boxes.Box;
+import com.coremedia.iso.boxes.FileTypeBox;
+import com.coremedia.iso.boxes.SampleDescriptionBox;
+import com.coremedia.iso.boxes.fragment.MovieExtendsHeaderBox;
+import com.coremedia.iso.boxes.fragment.MovieFragmentRandomAccessBox;
+import com.coremedia.iso.boxes.fragment.MovieFragmentRandomAccessOffsetBox;
+import com.coremedia.iso.boxes.fragment.TrackFragmentBaseMediaDecodeTimeBox;
+import com.coremedia.iso.boxes.fragment.TrackFragmentBox;
+import com.coremedia.iso.boxes.fragment.TrackFragmentRandomAccessBox;
+import com.coremedia.iso.boxes.sampleentry.AudioSampleEntry;
+import com.googlecode.mp4parser.authoring.AbstractTrack;
+import com.googlecode.mp4parser.authoring.Movie;
+import com.googlecode.mp4parser.authoring.Sample;
+import com.googlecode.mp4parser.authoring.SampleImpl;
+import com.googlecode.mp4parser.authoring.Track;
+import com.googlecode.mp4parser.authoring.TrackMetaData;
+import com.googlecode.mp4parser.authoring.builder.FragmentedMp4Builder;
+import com.googlecode.mp4parser.authoring.tracks.AACTrackImpl;
+import com.googlecode.mp4parser.boxes.mp4.ESDescriptorBox;
+import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.AudioSpecificConfig;
+import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.DecoderConfigDescriptor;
+import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.ESDescriptor;
+import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.SLConfigDescriptor;
+import com.googlecode.mp4parser.util.Logger;
+import com.googlecode.mp4parser.util.Path;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Write raw AAC frames to a fragmented mp4 file while recording.
+ * The 'ftyp' and 'moov' boxes are written up front, then every fragment duration a 'moof'/'mdat' pair is
+ * appended, so closing the file only has to flush the last fragment no matter how long the recording is.
+ */
+public class FragmentedMP4Muxer implements EncodedFrameSink {
+
+    private static final Logger LOG = Logger.getLogger(FragmentedMP4Muxer.class);
+    private static final int SAMPLES_PER_AAC_FRAME = 1024;
+    private static final int BUFFER_SIZE_DB = 1536;
+
+    private final FileChannel mFileChannel;
+    private final LiveAACTrack mTrack;
+    private final Movie mMovie;
+    private final LiveFragmentBuilder mBuilder;
+    private final Box mMovieBox;
+    private final long mMovieBoxOffset;
+    private final List<TrackFragmentRandomAccessBox.Entry> mRandomAccessEntries =
+            new LinkedList<TrackFragmentRandomAccessBox.Entry>();
+
+    private ByteBuffer mFragmentData;
+    private int[] mFrameSizes;
+    private int mFrameCount;
+    private int mSequenceNumber = 1;
+    private boolean mClosed;
+
+    /**
+     * @param outputFilePath   the mp4 file to write
+     * @param sampleRate       sample rate of the encoded audio, also used as track timescale
+     * @param channels         channel count of the encoded audio
+     * @param bitRate          encoding bitrate, used to size the fragment buffer
+     * @param fragmentDuration duration of each fragment, time unit is ms
+     */
+    public FragmentedMP4Muxer(String outputFilePath, int sampleRate, int channels, int bitRate,
+                              int fragmentDuration) throws IOException {
+        int framesPerFragment = Math.max(1,
+                (int) Math.ceil((double) fragmentDuration * sampleRate / 1000 / SAMPLES_PER_AAC_FRAME));
+        mFrameSizes = new int[framesPerFragment];
+        // twice the nominal fragment size, grows if the encoder overshoots
+        mFragmentData = ByteBuffer.allocate(Math.max(4096, (int) ((long) bitRate * fragmentDuration / 8000 * 2)));
+
+        mTrack = new LiveAACTrack(sampleRate, channels, bitRate, framesPerFragment);
+        mMovie = new Movie();
+        mMovie.addTrack(mTrack);
+        mBuilder = new LiveFragmentBuilder();
+
+        RandomAccessFile file = new RandomAccessFile(outputFilePath, "rw");
+        file.setLength(0);
+        mFileChannel = file.getChannel();
+
+        Box ftyp = mBuilder.createFtyp(mMovie);
+        ftyp.getBox(mFileChannel);
+        mMovieBoxOffset = mFileChannel.position();
+        mMovieBox = mBuilder.createMoov(mMovie);
+        mMovieBox.getBox(mFileChannel);
+    }
+
+    /**
+     * Append one raw AAC frame (without ADTS header). The bytes between position and limit of
+     * {@code frame} are copied, the buffer is left untouched. Frames are expected back to back,
+     * every frame lasts 1024 samples.
+     */
+    @Override
+    public synchronized void writeFrame(ByteBuffer frame, long presentationTimeUs) throws IOException {
+        if (mClosed) {
+            throw new IllegalStateException("muxer is already closed");
+        }
+        int size = frame.remaining();
+        if (mFragmentData.remaining() < size) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(mFragmentData.capacity() * 2, mFragmentData.position() + size));
+            mFragmentData.flip();
+            larger.put(mFragmentData);
+            mFragmentData = larger;
+        }
+        mFragmentData.put(frame.duplicate());
+        mFrameSizes[mFrameCount++] = size;
+
+        if (mFrameCount == mFrameSizes.length) {
+            writeFragment();
+        }
+    }
+
+    /**
+     * Flush the pending fragment, write the random access index and patch the total duration into 'moov'.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            writeFragment();
+            writeRandomAccessIndex();
+
+            MovieExtendsHeaderBox mehd = Path.getPath(mMovieBox, "mvex[0]/mehd[0]");
+            if (mehd != null) {
+                mehd.setFragmentDuration(mTrack.getDuration());
+                long end = mFileChannel.position();
+                mFileChannel.position(mMovieBoxOffset);
+                mMovieBox.getBox(mFileChannel);
+                mFileChannel.position(end);
+            }
+            mFileChannel.force(true);
+        } finally {
+            mFileChannel.close();
+        }
+        LOG.logDebug("closed fragmented mp4, " + (mSequenceNumber - 1) + " fragments, duration " + getDuration() + "ms");
+    }
+
+    /**
+     * @return duration of the frames written so far, time unit is ms
+     */
+    public synchronized long getDuration() {
+        return (mTrack.getDuration() + (long) mFrameCount * SAMPLES_PER_AAC_FRAME) * 1000
+                / mTrack.getTrackMetaData().getTimescale();
+    }
+
+    private void writeFragment() throws IOException {
+        if (mFrameCount == 0) {
+            return;
+        }
+        mFragmentData.flip();
+        mTrack.setFragment(mFragmentData, mFrameSizes, mFrameCount);
+
+        mRandomAccessEntries.add(new TrackFragmentRandomAccessBox.Entry(
+                mTrack.getDuration(), mFileChannel.position(), 1, 1, 1));
+        mBuilder.createMoof(1, mFrameCount + 1, mTrack, mSequenceNumber).getBox(mFileChannel);
+        mBuilder.createMdat(1, mFrameCount + 1, mTrack, mSequenceNumber).getBox(mFileChannel);
+        mSequenceNumber++;
+
+        mTrack.commitFragment();
+        mFragmentData.clear();
+        mFrameCount = 0;
+    }
+
+    private void writeRandomAccessIndex() throws IOException {
+        MovieFragmentRandomAccessBox mfra = new MovieFragmentRandomAccessBox();
+        TrackFragmentRandomAccessBox tfra = new TrackFragmentRandomAccessBox();
+        tfra.setVersion(1);
+        tfra.setTrackId(mTrack.getTrackMetaData().getTrackId());
+        tfra.setEntries(mRandomAccessEntries);
+        mfra.addBox(tfra);
+
+        MovieFragmentRandomAccessOffsetBox mfro = new MovieFragmentRandomAccessOffsetBox();
+        mfra.addBox(mfro);
+        mfro.setMfraSize(mfra.getSize());
+        mfra.getBox(mFileChannel);
+    }
+
+    /**
+     * Builder which only creates the boxes of a single fragment at a time, the decode time of the
+     * fragment comes from the frames already flushed instead of the sample list.
+     */
+    private static class LiveFragmentBuilder extends FragmentedMp4Builder {
+
+        @Override
+        public Box createFtyp(Movie movie) {
+            List<String> minorBrands = new LinkedList<String>();
+            minorBrands.add("isom");
+            minorBrands.add("iso6");
+            minorBrands.add("mp41");
+            return new FileTypeBox("M4A ", 0, minorBrands);
+        }
+
+        @Override
+        protected Box createMoov(Movie movie) {
+            return super.createMoov(movie);
+        }
+
+        @Override
+        protected Box createMoof(long startSample, long endSample, Track track, int sequenceNumber) {
+            return super.createMoof(startSample, endSample, track, sequenceNumber);
+        }
+
+        @Override
+        protected Box createMdat(long startSample, long endSample, Track track, int i) {
+            return super.createMdat(startSample, endSample, track, i);
+        }
+
+        @Override
+        protected void createTfdt(long startSample, Track track, TrackFragmentBox parent) {
+            TrackFragmentBaseMediaDecodeTimeBox tfdt = new TrackFragmentBaseMediaDecodeTimeBox();
+            tfdt.setVersion(1);
+            tfdt.setBaseMediaDecodeTime(track.getDuration());
+            parent.addBox(tfdt);
+        }
+    }
+
+    /**
+     * AAC track which only holds the frames of the pending fragment. {@link #getDuration()} is the
+     * duration of the fragments already written, which is the decode time of the pending one.
+     */
+    private static class LiveAACTrack extends AbstractTrack {
+        private final TrackMetaData mTrackMetaData = new TrackMetaData();
+        private final SampleDescriptionBox mSampleDescriptionBox;
+        private final long[] mSampleDurations;
+        private final List<Sample> mSamples;
+        private long mFlushedDuration;
+
+        LiveAACTrack(int sampleRate, int channels, int bitRate, int framesPerFragment) {
+            super("live aac");
+            mSampleDurations = new long[framesPerFragment];
+            Arrays.fill(mSampleDurations, SAMPLES_PER_AAC_FRAME);
+            mSamples = new ArrayList<Sample>(framesPerFragment);
+
+            mSampleDescriptionBox = new SampleDescriptionBox();
+            AudioSampleEntry audioSampleEntry = new AudioSampleEntry("mp4a");
+            audioSampleEntry.setChannelCount(channels);
+            audioSampleEntry.setSampleRate(sampleRate);
+            audioSampleEntry.setDataReferenceIndex(1);
+            audioSampleEntry.setSampleSize(16);
+
+            ESDescriptorBox esds = new ESDescriptorBox();
+            ESDescriptor descriptor = new ESDescriptor();
+            descriptor.setEsId(0);
+
+            SLConfigDescriptor slConfigDescriptor = new SLConfigDescriptor();
+            slConfigDescriptor.setPredefined(2);
+            descriptor.setSlConfigDescriptor(slConfigDescriptor);
+
+            DecoderConfigDescriptor decoderConfigDescriptor = new DecoderConfigDescriptor();
+            decoderConfigDescriptor.setObjectTypeIndication(0x40);
+            decoderConfigDescriptor.setStreamType(5);
+            decoderConfigDescriptor.setBufferSizeDB(BUFFER_SIZE_DB);
+            decoderConfigDescriptor.setMaxBitRate(bitRate);
+            decoderConfigDescriptor.setAvgBitRate(bitRate);
+
+            AudioSpecificConfig audioSpecificConfig = new AudioSpecificConfig();
+            audioSpecificConfig.setAudioObjectType(2); // AAC LC
+            audioSpecificConfig.setSamplingFrequencyIndex(AACTrackImpl.samplingFrequencyIndexMap.get(sampleRate));
+            audioSpecificConfig.setChannelConfiguration(channels);
+            decoderConfigDescriptor.setAudioSpecificInfo(audioSpecificConfig);
+
+            descriptor.setDecoderConfigDescriptor(decoderConfigDescriptor);
+
+            esds.setEsDescriptor(descriptor);
+            esds.setData(descriptor.serialize());
+            audioSampleEntry.addBox(esds);
+            mSampleDescriptionBox.addBox(audioSampleEntry);
+
+            mTrackMetaData.setCreationTime(new Date());
+            mTrackMetaData.setModificationTime(new Date());
+            mTrackMetaData.setVolume(1);
+            mTrackMetaData.setTimescale(sampleRate);
+        }
+
+        void setFragment(ByteBuffer data, int[] frameSizes, int frameCount) {
+            mSamples.clear();
+            int offset = 0;
+            for (int i = 0; i < frameCount; i++) {
+                ByteBuffer frame = data.duplicate();
+                frame.position(offset);
+                frame.limit(offset + frameSizes[i]);
+                mSamples.add(new SampleImpl(frame.slice()));
+                offset += frameSizes[i];
+            }
+        }
+
+        void commitFragment() {
+            mFlushedDuration += (long) mSamples.size() * SAMPLES_PER_AAC_FRAME;
+            mSamples.clear();
+        }
+
+        public SampleDescriptionBox getSampleDescriptionBox() {
+            return mSampleDescriptionBox;
+        }
+
+        /**
+         * Every AAC frame lasts 1024 samples, the array is sized for a full fragment and indexed by
+         * the builder with the sample number inside the pending fragment.
+         */
+        public long[] getSampleDurations() {
+            return mSampleDurations;
+        }
+
+        @Override
+        public long getDuration() {
+            return mFlushedDuration;
+        }
+
+        public TrackMetaData getTrackMetaData() {
+            return mTrackMetaData;
+        }
+
+        public String getHandler() {
+            return "soun";
+        }
+
+        public List<Sample> getSamples() {
+            return mSamples;
+        }
+
+        public void close() throws IOException {
+            mSamples.clear();
+        }
+    }
+}
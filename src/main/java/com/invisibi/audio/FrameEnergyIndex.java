@@ -0,0 +1,114 @@
+package com.invisibi.audio;
+
+import java.util.Arrays;
+
+/**
+ * RMS level of every 1024 samples per channel taken by the encoder, one byte per AAC frame, so silence at the head
+ * and tail can be cut at frame boundaries when the file is finalized, without decoding it.
+ * Block n covers the input of AAC frame n, the encoder delay is covered by {@link #ENCODER_DELAY_FRAMES}.
+ * {@link #update(short[], int, int)} runs on the encoder thread, the results are read once it stopped.
+ */
+public class FrameEnergyIndex {
+
+    public static final double DEFAULT_SILENCE_THRESHOLD = -50.0; // dBFS
+    public static final int DEFAULT_PADDING = 300; // ms
+    /**
+     * Frames kept beyond the padding, AAC encoders prime with up to two frames and overlap neighbouring frames.
+     */
+    public static final int ENCODER_DELAY_FRAMES = 2;
+
+    private static final int SAMPLES_PER_AAC_FRAME = 1024;
+    private static final double FULL_SCALE = 32768.0;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int mSampleRate;
+    private final int mFrameSamples;
+    private byte[] mLevels = new byte[INITIAL_CAPACITY]; // RMS in dB below full scale, rounded up
+    private int mFrameCount;
+    private int mSamples;
+    private long mSumOfSquares;
+
+    public FrameEnergyIndex(int sampleRate, int channels) {
+        mSampleRate = sampleRate;
+        mFrameSamples = SAMPLES_PER_AAC_FRAME * channels;
+    }
+
+    /**
+     * Add interleaved samples, one thread at a time.
+     */
+    public void update(short[] data, int offset, int count) {
+        for (int i = offset, end = offset + count; i < end; i++) {
+            int sample = data[i];
+            mSumOfSquares += sample * sample;
+            if (++mSamples == mFrameSamples) {
+                addFrame();
+            }
+        }
+    }
+
+    private void addFrame() {
+        if (mFrameCount == mLevels.length) {
+            mLevels = Arrays.copyOf(mLevels, mLevels.length * 2);
+        }
+        double rms = Math.sqrt((double) mSumOfSquares / mSamples) / FULL_SCALE;
+        double db = rms <= 0 ? -LevelMeter.MIN_DB : 20.0 * Math.log10(rms);
+        mLevels[mFrameCount++] = (byte) Math.min(LevelMeter.MIN_DB, Math.ceil(-db));
+        mSamples = 0;
+        mSumOfSquares = 0;
+    }
+
+    /**
+     * @return number of complete frames so far
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Drop the frames from {@code frameCount} on along with the samples of an incomplete frame,
+     * updating thread idle.
+     */
+    public void truncate(int frameCount) {
+        mFrameCount = Math.min(mFrameCount, Math.max(0, frameCount));
+        mSamples = 0;
+        mSumOfSquares = 0;
+    }
+
+    /**
+     * @return RMS level of a frame in dBFS, rounded down to a whole dB
+     */
+    public int getLevelDb(int frame) {
+        return -mLevels[frame];
+    }
+
+    /**
+     * Find the frames to keep, from the first to the last one louder than {@code silenceThreshold} plus
+     * {@code padding} on both sides.
+     *
+     * @param silenceThreshold frames at or below this RMS level are silent, in dBFS
+     * @param padding          audio kept before the first and after the last loud frame, time unit is ms
+     * @return the range to keep, null if there is nothing to cut or every frame is silent
+     */
+    public FinalizeOptions.Trim findTrim(double silenceThreshold, int padding) {
+        int first = 0;
+        while (first < mFrameCount && getLevelDb(first) <= silenceThreshold) {
+            first++;
+        }
+        if (first == mFrameCount) {
+            return null;
+        }
+        int last = mFrameCount - 1;
+        while (getLevelDb(last) <= silenceThreshold) {
+            last--;
+        }
+        int paddingFrames = (int) Math.ceil((double) padding * mSampleRate / 1000 / SAMPLES_PER_AAC_FRAME)
+                + ENCODER_DELAY_FRAMES;
+        int start = Math.max(0, first - paddingFrames);
+        // frames encoded after the last complete block are kept
+        int end = last + 1 + paddingFrames;
+        if (start == 0 && end >= mFrameCount) {
+            return null;
+        }
+        return new FinalizeOptions.Trim(start, end >= mFrameCount ? Integer.MAX_VALUE : end);
+    }
+}
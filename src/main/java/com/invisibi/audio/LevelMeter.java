@@ -0,0 +1,196 @@
+package com.invisibi.audio;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Peak, RMS and peak-hold metering of 16bit PCM.
+ * {@link #update(short[], int, int)} runs on the capture thread, accumulates in integers and converts to dB
+ * through a log2 lookup table, so metering a buffer neither allocates nor calls Math.pow/Math.log10.
+ * Results go to one of two snapshot slots which is then published, readers on any thread
+ * take the published slot without locking and retry in the unlikely case the writer lapped them.
+ */
+public class LevelMeter {
+
+    public static final double MIN_DB = 96.0;
+    public static final int DEFAULT_PEAK_HOLD_TIME = 1500;
+    public static final double DEFAULT_PEAK_DECAY_RATE = 20.0;
+
+    private static final int FULL_SCALE = Short.MAX_VALUE;
+    private static final double DB_PER_OCTAVE = 20 * Math.log10(2); // amplitude dB per doubling
+
+    private static final int MANTISSA_BITS = 10;
+    // log2(1 + i / 2^MANTISSA_BITS), one extra entry for mantissas rounded up
+    private static final float[] LOG2_MANTISSA = new float[(1 << MANTISSA_BITS) + 1];
+    private static final double LOG2_FULL_SCALE;
+
+    static {
+        for (int i = 0; i < LOG2_MANTISSA.length; i++) {
+            LOG2_MANTISSA[i] = (float) (Math.log(1.0 + (double) i / (1 << MANTISSA_BITS)) / Math.log(2));
+        }
+        LOG2_FULL_SCALE = Math.log(FULL_SCALE) / Math.log(2);
+    }
+
+    // snapshot slot layout
+    private static final int VERSION = 0;
+    private static final int PEAK = 1;
+    private static final int RMS = 2;
+    private static final int PEAK_HOLD = 3;
+    private static final int SAMPLES = 4;
+    private static final int SEQUENCE = 5;
+    private static final int SLOT_SIZE = 6;
+
+    private final AtomicLongArray mSlots = new AtomicLongArray(2 * SLOT_SIZE);
+    private volatile int mFront;
+
+    private final int mSamplesPerSecond;
+    private final long mHoldSamples;
+    private final double mDecayPerSample;
+
+    // capture thread only
+    private double mPeakHoldDb = -MIN_DB;
+    private long mHoldRemaining;
+    private long mSampleCount;
+    private long mSequence;
+
+    /**
+     * @param samplesPerSecond sample rate multiplied by channel count
+     */
+    public LevelMeter(int samplesPerSecond) {
+        this(samplesPerSecond, DEFAULT_PEAK_HOLD_TIME, DEFAULT_PEAK_DECAY_RATE);
+    }
+
+    /**
+     * @param samplesPerSecond sample rate multiplied by channel count
+     * @param peakHoldTime     how long the peak is held before it decays, time unit is ms
+     * @param peakDecayRate    how fast the held peak falls back afterwards, in dB per second
+     */
+    public LevelMeter(int samplesPerSecond, int peakHoldTime, double peakDecayRate) {
+        mSamplesPerSecond = samplesPerSecond;
+        mHoldSamples = (long) peakHoldTime * samplesPerSecond / 1000;
+        mDecayPerSample = peakDecayRate / samplesPerSecond;
+        for (int slot = 0; slot < 2; slot++) {
+            int base = slot * SLOT_SIZE;
+            mSlots.set(base + PEAK, Double.doubleToRawLongBits(-MIN_DB));
+            mSlots.set(base + RMS, Double.doubleToRawLongBits(-MIN_DB));
+            mSlots.set(base + PEAK_HOLD, Double.doubleToRawLongBits(-MIN_DB));
+        }
+    }
+
+    /**
+     * Meter one buffer and publish the result, capture thread only.
+     */
+    public void update(short[] data, int offset, int count) {
+        if (count <= 0) {
+            return;
+        }
+        int peak = 0;
+        long sumOfSquares = 0;
+        for (int i = offset, end = offset + count; i < end; i++) {
+            int sample = data[i];
+            int amplitude = sample < 0 ? -sample : sample;
+            if (amplitude > peak) {
+                peak = amplitude;
+            }
+            sumOfSquares += sample * sample;
+        }
+
+        double peakDb = amplitudeToDb(peak);
+        // 10 * log10(sumOfSquares / count / FULL_SCALE^2)
+        double rmsDb = sumOfSquares == 0 ? -MIN_DB
+                : Math.max(-MIN_DB, DB_PER_OCTAVE / 2 * (log2(sumOfSquares) - log2(count) - 2 * LOG2_FULL_SCALE));
+        updatePeakHold(peakDb, count);
+
+        mSampleCount += count;
+        mSequence++;
+        publish(peakDb, rmsDb);
+    }
+
+    private void updatePeakHold(double peakDb, int count) {
+        if (peakDb >= mPeakHoldDb) {
+            mPeakHoldDb = peakDb;
+            mHoldRemaining = mHoldSamples;
+        } else if (mHoldRemaining > 0) {
+            mHoldRemaining -= count;
+        } else {
+            mPeakHoldDb = Math.max(peakDb, mPeakHoldDb - mDecayPerSample * count);
+        }
+    }
+
+    private void publish(double peakDb, double rmsDb) {
+        int back = 1 - mFront;
+        int base = back * SLOT_SIZE;
+        long version = mSlots.get(base + VERSION);
+        mSlots.set(base + VERSION, version + 1); // odd while writing
+        mSlots.set(base + PEAK, Double.doubleToRawLongBits(peakDb));
+        mSlots.set(base + RMS, Double.doubleToRawLongBits(rmsDb));
+        mSlots.set(base + PEAK_HOLD, Double.doubleToRawLongBits(mPeakHoldDb));
+        mSlots.set(base + SAMPLES, mSampleCount);
+        mSlots.set(base + SEQUENCE, mSequence);
+        mSlots.set(base + VERSION, version + 2);
+        mFront = back;
+    }
+
+    /**
+     * Copy the latest levels into {@code snapshot}, any thread.
+     */
+    public void readSnapshot(LevelSnapshot snapshot) {
+        while (true) {
+            int base = mFront * SLOT_SIZE;
+            long version = mSlots.get(base + VERSION);
+            if ((version & 1) != 0) {
+                continue;
+            }
+            snapshot.mPeakDb = Double.longBitsToDouble(mSlots.get(base + PEAK));
+            snapshot.mRmsDb = Double.longBitsToDouble(mSlots.get(base + RMS));
+            snapshot.mPeakHoldDb = Double.longBitsToDouble(mSlots.get(base + PEAK_HOLD));
+            snapshot.mSampleCount = mSlots.get(base + SAMPLES);
+            snapshot.mSequence = mSlots.get(base + SEQUENCE);
+            if (mSlots.get(base + VERSION) == version) {
+                return;
+            }
+        }
+    }
+
+    public double getPeakDb() {
+        return Double.longBitsToDouble(mSlots.get(mFront * SLOT_SIZE + PEAK));
+    }
+
+    public double getRmsDb() {
+        return Double.longBitsToDouble(mSlots.get(mFront * SLOT_SIZE + RMS));
+    }
+
+    public double getPeakHoldDb() {
+        return Double.longBitsToDouble(mSlots.get(mFront * SLOT_SIZE + PEAK_HOLD));
+    }
+
+    public int getSamplesPerSecond() {
+        return mSamplesPerSecond;
+    }
+
+    /**
+     * Convert a 16bit amplitude to dBFS, clamped at {@link #MIN_DB} below full scale.
+     */
+    public static double amplitudeToDb(long amplitude) {
+        if (amplitude <= 0) {
+            return -MIN_DB;
+        }
+        return Math.max(-MIN_DB, DB_PER_OCTAVE * (log2(amplitude) - LOG2_FULL_SCALE));
+    }
+
+    /**
+     * log2 of a positive value from its highest bit and a table lookup of the next {@link #MANTISSA_BITS} bits,
+     * accurate to about 0.001.
+     */
+    private static double log2(long value) {
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        long mantissa;
+        if (exponent > MANTISSA_BITS) {
+            int shift = exponent - MANTISSA_BITS;
+            // rounding may carry into 2^(MANTISSA_BITS + 1), the extra table entry covers it
+            mantissa = (value + (1L << (shift - 1))) >>> shift;
+        } else {
+            mantissa = value << (MANTISSA_BITS - exponent);
+        }
+        return exponent + LOG2_MANTISSA[(int) (mantissa - (1 << MANTISSA_BITS))];
+    }
+}
@@ -0,0 +1,55 @@
+package com.invisibi.audio;
+
+/**
+ * Input levels of one captured buffer, filled by {@link LevelMeter#readSnapshot(LevelSnapshot)}.
+ * Mutable so a UI polling every frame can keep reusing one instance.
+ */
+public class LevelSnapshot {
+
+    double mPeakDb = -LevelMeter.MIN_DB;
+    double mRmsDb = -LevelMeter.MIN_DB;
+    double mPeakHoldDb = -LevelMeter.MIN_DB;
+    long mSampleCount;
+    long mSequence;
+
+    /**
+     * @return loudest sample of the last buffer in dBFS
+     */
+    public double getPeakDb() {
+        return mPeakDb;
+    }
+
+    /**
+     * @return RMS level of the last buffer in dBFS
+     */
+    public double getRmsDb() {
+        return mRmsDb;
+    }
+
+    /**
+     * @return recent peak, held for a while then decaying, in dBFS
+     */
+    public double getPeakHoldDb() {
+        return mPeakHoldDb;
+    }
+
+    /**
+     * @return number of samples metered so far
+     */
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * @return number of buffers metered so far, unchanged between two polls means no new audio
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    @Override
+    public String toString() {
+        return "LevelSnapshot{peak=" + mPeakDb + "dB, rms=" + mRmsDb + "dB, peakHold=" + mPeakHoldDb
+                + "dB, samples=" + mSampleCount + "}";
+    }
+}
@@ -0,0 +1,84 @@
+package com.invisibi.audio;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative values, e.g. durations in nanoseconds or sizes in samples, with logarithmic buckets
+ * split into {@link #SUB_BUCKETS} linear sub-buckets, so any recorded value is reported within 1/8 of itself
+ * like an HDR histogram. Recording is a bit scan and one counter update without locks or allocation,
+ * written by a single thread and readable from any thread.
+ */
+public class LogHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 62;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray((MAX_EXPONENT + 1) * SUB_BUCKETS);
+
+    /**
+     * Record one value, owner thread only. Negative values are counted as 0.
+     */
+    public void record(long value) {
+        int index = indexOf(Math.max(0, value));
+        mCounts.lazySet(index, mCounts.get(index) + 1);
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return highest value that falls into the bucket at {@code index}
+     */
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        long low = (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return low + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < mCounts.length(); i++) {
+            count += mCounts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return value below or equal to which {@code percentile} percent of the recorded values fall,
+     * rounded up to its bucket, 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(count * Math.min(100, percentile) / 100));
+        long seen = 0;
+        int last = 0;
+        for (int i = 0; i < mCounts.length(); i++) {
+            long bucket = mCounts.get(i);
+            if (bucket == 0) {
+                continue;
+            }
+            last = i;
+            seen += bucket;
+            if (seen >= target) {
+                return highestValueOf(i);
+            }
+        }
+        // counts moved on while scanning
+        return highestValueOf(last);
+    }
+}
@@ -0,0 +1,94 @@
+package com.invisibi.audio;
+
+import java.util.Locale;
+
+/**
+ * Loudness of a recording measured by {@link LoudnessMeter}, written into the m4a file as ReplayGain tags so
+ * players and servers can normalize it without decoding.
+ */
+public class LoudnessInfo {
+
+    /**
+     * Reference level of ReplayGain 2.0, in LUFS.
+     */
+    public static final double REPLAY_GAIN_REFERENCE = -18.0;
+
+    private final double mIntegratedLoudness;
+    private final double mLoudnessRange;
+    private final double mTruePeakDb;
+
+    /**
+     * @param integratedLoudness in LUFS
+     * @param loudnessRange      in LU
+     * @param truePeakDb         in dBTP
+     */
+    public LoudnessInfo(double integratedLoudness, double loudnessRange, double truePeakDb) {
+        mIntegratedLoudness = integratedLoudness;
+        mLoudnessRange = loudnessRange;
+        mTruePeakDb = truePeakDb;
+    }
+
+    /**
+     * @return gated integrated loudness, in LUFS
+     */
+    public double getIntegratedLoudness() {
+        return mIntegratedLoudness;
+    }
+
+    /**
+     * @return loudness range, in LU
+     */
+    public double getLoudnessRange() {
+        return mLoudnessRange;
+    }
+
+    /**
+     * @return true peak, in dBTP
+     */
+    public double getTruePeakDb() {
+        return mTruePeakDb;
+    }
+
+    /**
+     * @return true peak relative to full scale, may exceed 1 for inter-sample peaks
+     */
+    public double getTruePeak() {
+        return Math.pow(10.0, mTruePeakDb / 20.0);
+    }
+
+    /**
+     * @param targetLoudness loudness to normalize to, in LUFS
+     * @param maxTruePeakDb  the gain is lowered so the true peak stays below, in dBTP
+     * @return gain bringing the recording to {@code targetLoudness} without clipping, in dB
+     */
+    public double getNormalizationGain(double targetLoudness, double maxTruePeakDb) {
+        return Math.min(targetLoudness - mIntegratedLoudness, maxTruePeakDb - mTruePeakDb);
+    }
+
+    /**
+     * @return ReplayGain 2.0 track gain, in dB
+     */
+    public double getReplayGain() {
+        return REPLAY_GAIN_REFERENCE - mIntegratedLoudness;
+    }
+
+    /**
+     * @return value of the replaygain_track_gain tag
+     */
+    public String formatReplayGain() {
+        return String.format(Locale.US, "%.2f dB", getReplayGain());
+    }
+
+    /**
+     * @return value of the replaygain_track_peak tag
+     */
+    public String formatReplayGainPeak() {
+        return String.format(Locale.US, "%.6f", getTruePeak());
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "LoudnessInfo{integrated=%.1fLUFS, range=%.1fLU, truePeak=%.1fdBTP}",
+                mIntegratedLoudness, mLoudnessRange, mTruePeakDb);
+    }
+}
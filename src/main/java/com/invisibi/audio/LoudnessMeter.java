@@ -0,0 +1,354 @@
+package com.invisibi.audio;
+
+/**
+ * Integrated loudness, loudness range and true peak of 16bit PCM as in ITU-R BS.1770-4 and EBU Tech 3342,
+ * measured while recording so the finished file does not have to be decoded again to normalize it.
+ * Samples go through the two K-weighting biquads and the mean square is taken per 100ms sub-block. 400ms blocks
+ * and 3s short-term windows are averaged from a ring of sub-blocks, and their loudness is counted in histograms of
+ * 0.1 LU bins, so the gated results take fixed memory whatever the duration.
+ * True peak is the largest magnitude after 4x oversampling with a windowed sinc interpolator.
+ * {@link #update(short[], int, int)} runs on one thread at a time and never allocates.
+ */
+public class LoudnessMeter {
+
+    /**
+     * Loudness of digital silence, returned before a block was measured, in LUFS.
+     */
+    public static final double MIN_LOUDNESS = -70.0;
+
+    private static final double ABSOLUTE_GATE = -70.0; // LUFS
+    private static final double INTEGRATED_RELATIVE_GATE = -10.0; // LU
+    private static final double RANGE_RELATIVE_GATE = -20.0; // LU
+    private static final double RANGE_LOW_PERCENTILE = 0.10;
+    private static final double RANGE_HIGH_PERCENTILE = 0.95;
+    private static final double HISTOGRAM_MAX = 30.0; // LUFS, above full scale for safety
+    private static final int HISTOGRAM_BINS_PER_LU = 10;
+    private static final int HISTOGRAM_SIZE = (int) ((HISTOGRAM_MAX - ABSOLUTE_GATE) * HISTOGRAM_BINS_PER_LU);
+
+    private static final int SUB_BLOCKS_PER_SECOND = 10;
+    private static final int MOMENTARY_SUB_BLOCKS = 4; // 400ms
+    private static final int SHORT_TERM_SUB_BLOCKS = 30; // 3s
+
+    private static final int OVERSAMPLING = 4;
+    private static final int TAPS_PER_PHASE = 12;
+
+    private static final double FULL_SCALE = 32768.0;
+
+    private final int mChannels;
+    private final int mSubBlockFrames;
+
+    // K-weighting, stage 1 is the high shelf, stage 2 the high pass, direct form II transposed per channel
+    private final double mB10, mB11, mB12, mA11, mA12;
+    private final double mB20, mB21, mB22, mA21, mA22;
+    private final double[] mState1a;
+    private final double[] mState1b;
+    private final double[] mState2a;
+    private final double[] mState2b;
+
+    // true peak interpolator, the history is written twice so every window is contiguous
+    private final double[] mInterpolator = new double[OVERSAMPLING * TAPS_PER_PHASE];
+    private final double[][] mHistory;
+    private int mHistoryPosition;
+    private double mPeak; // linear, 1 is full scale
+    private volatile double mTruePeak; // mPeak published once per update
+
+    // updating thread only
+    private int mChannel;
+    private int mFrames;
+    private double mSumOfSquares;
+    private final double[] mSubBlocks = new double[SHORT_TERM_SUB_BLOCKS];
+    private volatile long mSubBlockCount;
+
+    // guarded by this
+    private final long[] mBlockCounts = new long[HISTOGRAM_SIZE];
+    private final double[] mBlockEnergies = new double[HISTOGRAM_SIZE];
+    private final long[] mShortTermCounts = new long[HISTOGRAM_SIZE];
+    private final double[] mShortTermEnergies = new double[HISTOGRAM_SIZE];
+
+    private volatile double mMomentaryLoudness = MIN_LOUDNESS;
+    private volatile double mShortTermLoudness = MIN_LOUDNESS;
+    private volatile boolean mInvalid;
+
+    /**
+     * @param sampleRate samples per second of one channel
+     * @param channels   number of interleaved channels, all weighted equally
+     */
+    public LoudnessMeter(int sampleRate, int channels) {
+        if (sampleRate <= 0 || channels <= 0) {
+            throw new IllegalArgumentException("invalid format, sampleRate = " + sampleRate + ", channels = " + channels);
+        }
+        mChannels = channels;
+        mSubBlockFrames = Math.max(1, sampleRate / SUB_BLOCKS_PER_SECOND);
+
+        // BS.1770 pre-filter, a high shelf of about +4 dB above 1.5 kHz, for any sample rate
+        double f0 = 1681.974450955533;
+        double gain = 3.999843853973347;
+        double q = 0.7071752369554196;
+        double k = Math.tan(Math.PI * f0 / sampleRate);
+        double vh = Math.pow(10.0, gain / 20.0);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1.0 + k / q + k * k;
+        mB10 = (vh + vb * k / q + k * k) / a0;
+        mB11 = 2.0 * (k * k - vh) / a0;
+        mB12 = (vh - vb * k / q + k * k) / a0;
+        mA11 = 2.0 * (k * k - 1.0) / a0;
+        mA12 = (1.0 - k / q + k * k) / a0;
+
+        // RLB weighting, a high pass at about 38 Hz
+        f0 = 38.13547087602444;
+        q = 0.5003270373238773;
+        k = Math.tan(Math.PI * f0 / sampleRate);
+        a0 = 1.0 + k / q + k * k;
+        mB20 = 1.0;
+        mB21 = -2.0;
+        mB22 = 1.0;
+        mA21 = 2.0 * (k * k - 1.0) / a0;
+        mA22 = (1.0 - k / q + k * k) / a0;
+
+        mState1a = new double[channels];
+        mState1b = new double[channels];
+        mState2a = new double[channels];
+        mState2b = new double[channels];
+
+        // Hann windowed sinc, cut off at the original Nyquist frequency, each phase normalized to unity gain
+        int length = mInterpolator.length;
+        for (int i = 0; i < length; i++) {
+            double x = (i - (length - 1) / 2.0) / OVERSAMPLING;
+            double sinc = x == 0 ? 1.0 : Math.sin(Math.PI * x) / (Math.PI * x);
+            double window = 0.5 - 0.5 * Math.cos(2.0 * Math.PI * (i + 0.5) / length);
+            mInterpolator[i] = sinc * window;
+        }
+        for (int phase = 0; phase < OVERSAMPLING; phase++) {
+            double sum = 0;
+            for (int tap = 0; tap < TAPS_PER_PHASE; tap++) {
+                sum += mInterpolator[tap * OVERSAMPLING + phase];
+            }
+            for (int tap = 0; tap < TAPS_PER_PHASE; tap++) {
+                mInterpolator[tap * OVERSAMPLING + phase] /= sum;
+            }
+        }
+        mHistory = new double[channels][2 * TAPS_PER_PHASE];
+    }
+
+    /**
+     * Measure interleaved samples, one thread at a time.
+     */
+    public void update(short[] data, int offset, int count) {
+        for (int i = offset, end = offset + count; i < end; i++) {
+            int channel = mChannel;
+            double x = data[i] / FULL_SCALE;
+
+            updateTruePeak(channel, x);
+
+            double y1 = mB10 * x + mState1a[channel];
+            mState1a[channel] = mB11 * x - mA11 * y1 + mState1b[channel];
+            mState1b[channel] = mB12 * x - mA12 * y1;
+            double y2 = mB20 * y1 + mState2a[channel];
+            mState2a[channel] = mB21 * y1 - mA21 * y2 + mState2b[channel];
+            mState2b[channel] = mB22 * y1 - mA22 * y2;
+            mSumOfSquares += y2 * y2;
+
+            if (++channel == mChannels) {
+                channel = 0;
+                if (++mFrames == mSubBlockFrames) {
+                    endSubBlock();
+                }
+            }
+            mChannel = channel;
+        }
+        mTruePeak = mPeak;
+    }
+
+    private void updateTruePeak(int channel, double x) {
+        double[] history = mHistory[channel];
+        int position = mHistoryPosition;
+        history[position] = x;
+        history[position + TAPS_PER_PHASE] = x;
+        // newest sample at position + TAPS_PER_PHASE, the window ends there
+        int start = position + 1;
+        double peak = mPeak;
+        for (int phase = 0; phase < OVERSAMPLING; phase++) {
+            double y = 0;
+            for (int tap = 0; tap < TAPS_PER_PHASE; tap++) {
+                y += mInterpolator[tap * OVERSAMPLING + phase] * history[start + TAPS_PER_PHASE - 1 - tap];
+            }
+            if (y > peak) {
+                peak = y;
+            } else if (-y > peak) {
+                peak = -y;
+            }
+        }
+        double magnitude = x < 0 ? -x : x;
+        mPeak = magnitude > peak ? magnitude : peak;
+        if (channel == mChannels - 1 && ++mHistoryPosition == TAPS_PER_PHASE) {
+            mHistoryPosition = 0;
+        }
+    }
+
+    private void endSubBlock() {
+        long subBlockCount = mSubBlockCount;
+        mSubBlocks[(int) (subBlockCount % SHORT_TERM_SUB_BLOCKS)] = mSumOfSquares / mFrames;
+        mSubBlockCount = ++subBlockCount;
+        mSumOfSquares = 0;
+        mFrames = 0;
+
+        if (subBlockCount >= MOMENTARY_SUB_BLOCKS) {
+            double energy = averageSubBlocks(MOMENTARY_SUB_BLOCKS);
+            mMomentaryLoudness = Math.max(MIN_LOUDNESS, energyToLoudness(energy));
+            synchronized (this) {
+                addToHistogram(mBlockCounts, mBlockEnergies, energy);
+            }
+        }
+        if (subBlockCount >= SHORT_TERM_SUB_BLOCKS) {
+            double energy = averageSubBlocks(SHORT_TERM_SUB_BLOCKS);
+            mShortTermLoudness = Math.max(MIN_LOUDNESS, energyToLoudness(energy));
+            synchronized (this) {
+                addToHistogram(mShortTermCounts, mShortTermEnergies, energy);
+            }
+        }
+    }
+
+    /**
+     * @return mean of the last {@code count} sub-block energies
+     */
+    private double averageSubBlocks(int count) {
+        double sum = 0;
+        for (int i = 1; i <= count; i++) {
+            sum += mSubBlocks[(int) ((mSubBlockCount - i) % SHORT_TERM_SUB_BLOCKS)];
+        }
+        return sum / count;
+    }
+
+    private static void addToHistogram(long[] counts, double[] energies, double energy) {
+        double loudness = energyToLoudness(energy);
+        if (loudness < ABSOLUTE_GATE) {
+            return;
+        }
+        int bin = Math.min(HISTOGRAM_SIZE - 1, (int) ((loudness - ABSOLUTE_GATE) * HISTOGRAM_BINS_PER_LU));
+        counts[bin]++;
+        energies[bin] += energy;
+    }
+
+    private static double energyToLoudness(double energy) {
+        return energy <= 0 ? Double.NEGATIVE_INFINITY : -0.691 + 10.0 * Math.log10(energy);
+    }
+
+    private static double loudnessToEnergy(double loudness) {
+        return Math.pow(10.0, (loudness + 0.691) / 10.0);
+    }
+
+    /**
+     * @return first histogram bin at or above {@code loudness}
+     */
+    private static int binOf(double loudness) {
+        double bin = Math.ceil((loudness - ABSOLUTE_GATE) * HISTOGRAM_BINS_PER_LU);
+        return (int) Math.max(0, Math.min(HISTOGRAM_SIZE, bin));
+    }
+
+    /**
+     * @return mean energy of the bins from {@code first} on, 0 if they are empty
+     */
+    private static double meanEnergy(long[] counts, double[] energies, int first) {
+        long count = 0;
+        double sum = 0;
+        for (int i = first; i < HISTOGRAM_SIZE; i++) {
+            count += counts[i];
+            sum += energies[i];
+        }
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * @return gated integrated loudness so far in LUFS, {@link #MIN_LOUDNESS} if everything was below the gate
+     */
+    public synchronized double getIntegratedLoudness() {
+        double ungated = meanEnergy(mBlockCounts, mBlockEnergies, 0);
+        if (ungated == 0) {
+            return MIN_LOUDNESS;
+        }
+        int first = binOf(energyToLoudness(ungated) + INTEGRATED_RELATIVE_GATE);
+        double gated = meanEnergy(mBlockCounts, mBlockEnergies, first);
+        return gated == 0 ? MIN_LOUDNESS : Math.max(MIN_LOUDNESS, energyToLoudness(gated));
+    }
+
+    /**
+     * @return loudness range so far in LU, the spread between the 10th and 95th percentile of the gated
+     * short-term loudness, 0 for recordings shorter than 3s
+     */
+    public synchronized double getLoudnessRange() {
+        double ungated = meanEnergy(mShortTermCounts, mShortTermEnergies, 0);
+        if (ungated == 0) {
+            return 0;
+        }
+        int first = binOf(energyToLoudness(ungated) + RANGE_RELATIVE_GATE);
+        long total = 0;
+        for (int i = first; i < HISTOGRAM_SIZE; i++) {
+            total += mShortTermCounts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long lowRank = (long) (total * RANGE_LOW_PERCENTILE);
+        long highRank = Math.min(total - 1, (long) (total * RANGE_HIGH_PERCENTILE));
+        int low = -1;
+        int high = -1;
+        long seen = 0;
+        for (int i = first; i < HISTOGRAM_SIZE && high < 0; i++) {
+            seen += mShortTermCounts[i];
+            if (low < 0 && seen > lowRank) {
+                low = i;
+            }
+            if (seen > highRank) {
+                high = i;
+            }
+        }
+        return (double) (high - low) / HISTOGRAM_BINS_PER_LU;
+    }
+
+    /**
+     * @return largest magnitude of the oversampled signal so far in dBTP
+     */
+    public double getTruePeakDb() {
+        double peak = mTruePeak;
+        return peak <= 0 ? -LevelMeter.MIN_DB : 20.0 * Math.log10(peak);
+    }
+
+    /**
+     * @return loudness of the last 400ms in LUFS, for live display
+     */
+    public double getMomentaryLoudness() {
+        return mMomentaryLoudness;
+    }
+
+    /**
+     * @return loudness of the last 3s in LUFS, for live display
+     */
+    public double getShortTermLoudness() {
+        return mShortTermLoudness;
+    }
+
+    /**
+     * @return measured length, time unit is ms
+     */
+    public long getMeasuredDuration() {
+        return mSubBlockCount * 1000 / SUB_BLOCKS_PER_SECOND;
+    }
+
+    /**
+     * Mark the measurement as no longer describing the recording, e.g. after part of the measured audio was rolled
+     * back, the histograms and the true peak cannot be rolled back with it. Live loudness goes on being measured.
+     */
+    public void invalidate() {
+        mInvalid = true;
+    }
+
+    /**
+     * @return the results so far, null if less than one 400ms block was measured or after {@link #invalidate()}
+     */
+    public LoudnessInfo getInfo() {
+        if (mInvalid || mSubBlockCount < MOMENTARY_SUB_BLOCKS) {
+            return null;
+        }
+        return new LoudnessInfo(getIntegratedLoudness(), getLoudnessRange(), getTruePeakDb());
+    }
+}
@@ -0,0 +1,605 @@
+package com.invisibi.audio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The 'moov' of an existing single track AAC m4a file, e.g. written by {@link AdtsRemuxer}, read so frames can be
+ * appended without touching the media data already in the file. Appended frames go into a new 'mdat' at the end
+ * of the file, {@link #createMovieBox(char[], int, int, long, int)} then builds a 'moov' with the sample tables
+ * extended by them and everything else copied, and the old 'moov' is turned into 'free'.
+ * Reading and rewriting cost only the size of 'moov', which is a few bytes per frame.
+ */
+class M4aMovie {
+
+    private static final int SAMPLES_PER_AAC_FRAME = 1024;
+    private static final int MAX_MOVIE_BOX_SIZE = 64 * 1024 * 1024;
+    private static final int[] SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+
+    private final byte[] mMovie; // the whole 'moov', durations and bit rates are patched in place
+    private final long mMovieOffset;
+    private final long[] mStaleMovieOffsets; // earlier 'moov' boxes left by an interrupted append
+    private final long mEnd; // end of the last complete top-level box
+
+    // fields found while parsing, offsets are into mMovie
+    private int mMovieHeader = -1;
+    private int mTrackHeader = -1;
+    private int mMediaHeader = -1;
+    private int mDecoderConfig = -1;
+    private int mTrackCount;
+    private boolean mFragmented;
+    private int mAudioObjectType;
+    private int mFrequencyIndex;
+    private int mChannelConfig;
+
+    private int[] mTimeToSample = new int[0]; // {count, delta} pairs
+    private int[] mSampleToChunk = new int[0]; // {first chunk, samples per chunk, description index} triples
+    private int[] mSampleSizes = new int[0];
+    private long[] mChunkOffsets = new long[0];
+
+    private M4aMovie(byte[] movie, long movieOffset, long[] staleMovieOffsets, long end) {
+        mMovie = movie;
+        mMovieOffset = movieOffset;
+        mStaleMovieOffsets = staleMovieOffsets;
+        mEnd = end;
+    }
+
+    /**
+     * Read the top-level boxes and the last complete 'moov'. A box cut off at the end of the file, e.g. by a crash
+     * while appending, is ignored.
+     *
+     * @throws IOException if the file is not a single track AAC m4a file frames can be appended to
+     */
+    static M4aMovie read(FileChannel in) throws IOException {
+        long size = in.size();
+        long position = 0;
+        long movieOffset = -1;
+        long movieSize = 0;
+        List<Long> movieOffsets = new ArrayList<Long>();
+        ByteBuffer header = ByteBuffer.allocate(16);
+        while (position + 8 <= size) {
+            header.clear().limit(8);
+            readFully(in, header, position);
+            long boxSize = header.getInt(0) & 0xFFFFFFFFL;
+            String type = new String(header.array(), 4, 4, "US-ASCII");
+            if (boxSize == 1) {
+                if (position + 16 > size) {
+                    break;
+                }
+                header.clear().limit(16);
+                readFully(in, header, position);
+                boxSize = header.getLong(8);
+            } else if (boxSize == 0) {
+                boxSize = size - position;
+            }
+            if (boxSize < 8 || position + boxSize > size) {
+                break;
+            }
+            if ("moov".equals(type)) {
+                movieOffsets.add(position);
+                movieOffset = position;
+                movieSize = boxSize;
+            } else if ("moof".equals(type)) {
+                throw new IOException("cannot append to a fragmented mp4 file");
+            }
+            position += boxSize;
+        }
+        if (movieOffset < 0) {
+            throw new IOException("no moov box");
+        }
+        if (movieSize > MAX_MOVIE_BOX_SIZE) {
+            throw new IOException("moov box of " + movieSize + " bytes is too large");
+        }
+        byte[] movie = new byte[(int) movieSize];
+        readFully(in, ByteBuffer.wrap(movie), movieOffset);
+        long[] stale = new long[movieOffsets.size() - 1];
+        for (int i = 0; i < stale.length; i++) {
+            stale[i] = movieOffsets.get(i);
+        }
+        M4aMovie result = new M4aMovie(movie, movieOffset, stale, position);
+        result.parse(ByteBuffer.wrap(movie), 8, movie.length, "moov");
+        result.validate();
+        return result;
+    }
+
+    private void parse(ByteBuffer movie, int start, int end, String path) throws IOException {
+        int position = start;
+        while (position + 8 <= end) {
+            int size = movie.getInt(position);
+            String type = new String(mMovie, position + 4, 4, "US-ASCII");
+            if (size < 8 || position + size > end) {
+                throw new IOException("invalid box " + path + "/" + type);
+            }
+            int body = position + 8;
+            String boxPath = path + "/" + type;
+            if ("moov/trak".equals(boxPath)) {
+                mTrackCount++;
+            }
+            if ("moov/mvex".equals(boxPath)) {
+                mFragmented = true;
+            } else if ("moov/mvhd".equals(boxPath)) {
+                mMovieHeader = body;
+            } else if ("moov/trak/tkhd".equals(boxPath)) {
+                mTrackHeader = body;
+            } else if ("moov/trak/mdia/mdhd".equals(boxPath)) {
+                mMediaHeader = body;
+            } else if ("moov/trak/mdia/minf/stbl/stsd".equals(boxPath)) {
+                parseSampleDescription(movie, body, position + size);
+            } else if ("moov/trak/mdia/minf/stbl/stts".equals(boxPath)) {
+                mTimeToSample = readTable(movie, body, 2);
+            } else if ("moov/trak/mdia/minf/stbl/stsc".equals(boxPath)) {
+                mSampleToChunk = readTable(movie, body, 3);
+            } else if ("moov/trak/mdia/minf/stbl/stsz".equals(boxPath)) {
+                int sampleSize = movie.getInt(body + 4);
+                int count = movie.getInt(body + 8);
+                mSampleSizes = new int[count];
+                if (sampleSize != 0) {
+                    Arrays.fill(mSampleSizes, sampleSize);
+                } else {
+                    for (int i = 0; i < count; i++) {
+                        mSampleSizes[i] = movie.getInt(body + 12 + 4 * i);
+                    }
+                }
+            } else if ("moov/trak/mdia/minf/stbl/stco".equals(boxPath)) {
+                mChunkOffsets = new long[movie.getInt(body + 4)];
+                for (int i = 0; i < mChunkOffsets.length; i++) {
+                    mChunkOffsets[i] = movie.getInt(body + 8 + 4 * i) & 0xFFFFFFFFL;
+                }
+            } else if ("moov/trak/mdia/minf/stbl/co64".equals(boxPath)) {
+                mChunkOffsets = new long[movie.getInt(body + 4)];
+                for (int i = 0; i < mChunkOffsets.length; i++) {
+                    mChunkOffsets[i] = movie.getLong(body + 8 + 8 * i);
+                }
+            } else if (isContainer(boxPath)) {
+                parse(movie, body, position + size, boxPath);
+            }
+            position += size;
+        }
+    }
+
+    /**
+     * Find the decoder configuration in 'stsd' / 'mp4a' / 'esds'.
+     */
+    private void parseSampleDescription(ByteBuffer movie, int body, int end) throws IOException {
+        int entry = body + 8;
+        if (movie.getInt(body + 4) != 1 || entry + 8 > end
+                || !"mp4a".equals(new String(mMovie, entry + 4, 4, "US-ASCII"))) {
+            throw new IOException("not a single aac sample description");
+        }
+        // sample entry 8 + audio sample entry 28, then the child boxes
+        int position = entry + 8 + 28;
+        int entryEnd = entry + movie.getInt(entry);
+        while (position + 8 <= entryEnd && !"esds".equals(new String(mMovie, position + 4, 4, "US-ASCII"))) {
+            position += Math.max(8, movie.getInt(position));
+        }
+        if (position + 8 > entryEnd) {
+            throw new IOException("no esds box");
+        }
+        int descriptor = position + 12; // box header and version/flags
+        int esdsEnd = position + movie.getInt(position);
+        while (descriptor < esdsEnd) {
+            int tag = movie.get(descriptor++) & 0xFF;
+            int length = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = movie.get(descriptor++) & 0xFF;
+                length = (length << 7) | (b & 0x7F);
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            if (tag == 0x03) {
+                int flags = movie.get(descriptor + 2) & 0xFF;
+                descriptor += 3;
+                if ((flags & 0x80) != 0) {
+                    descriptor += 2; // depends on ES_ID
+                }
+                if ((flags & 0x40) != 0) {
+                    descriptor += 1 + (movie.get(descriptor) & 0xFF); // URL
+                }
+                if ((flags & 0x20) != 0) {
+                    descriptor += 2; // OCR ES_ID
+                }
+            } else if (tag == 0x04) {
+                mDecoderConfig = descriptor;
+                descriptor += 13;
+            } else if (tag == 0x05) {
+                int b0 = movie.get(descriptor) & 0xFF;
+                int b1 = movie.get(descriptor + 1) & 0xFF;
+                mAudioObjectType = b0 >> 3;
+                mFrequencyIndex = ((b0 & 0x07) << 1) | (b1 >> 7);
+                mChannelConfig = (b1 >> 3) & 0x0F;
+                return;
+            } else {
+                descriptor += length;
+            }
+        }
+        throw new IOException("no aac decoder configuration");
+    }
+
+    private void validate() throws IOException {
+        if (mFragmented) {
+            throw new IOException("cannot append to a fragmented mp4 file");
+        }
+        if (mTrackCount != 1) {
+            throw new IOException("cannot append to an mp4 file with " + mTrackCount + " tracks");
+        }
+        if (mMovieHeader < 0 || mTrackHeader < 0 || mMediaHeader < 0 || mDecoderConfig < 0) {
+            throw new IOException("incomplete moov box");
+        }
+        if (mFrequencyIndex >= SAMPLE_RATES.length) {
+            throw new IOException("unsupported sampling frequency index " + mFrequencyIndex);
+        }
+        if (getMediaTimescale() != getSampleRate()) {
+            throw new IOException("media timescale " + getMediaTimescale() + " is not the sample rate");
+        }
+        int samples = 0;
+        for (int i = 0; i < mTimeToSample.length; i += 2) {
+            samples += mTimeToSample[i];
+        }
+        if (samples != mSampleSizes.length) {
+            throw new IOException("sample tables do not match");
+        }
+    }
+
+    /**
+     * @return MPEG-4 audio object type, 2 for AAC LC
+     */
+    int getAudioObjectType() {
+        return mAudioObjectType;
+    }
+
+    int getFrequencyIndex() {
+        return mFrequencyIndex;
+    }
+
+    int getChannelConfig() {
+        return mChannelConfig;
+    }
+
+    int getSampleRate() {
+        return SAMPLE_RATES[mFrequencyIndex];
+    }
+
+    int getFrameCount() {
+        return mSampleSizes.length;
+    }
+
+    /**
+     * @return where appended data starts, after the last complete top-level box
+     */
+    long getEnd() {
+        return mEnd;
+    }
+
+    /**
+     * Build the 'moov' of the file with {@code count} more frames, the patched headers and untouched boxes are
+     * copied. ReplayGain and loudness tags in 'udta' are dropped since they describe the audio before the append,
+     * other tags are kept.
+     *
+     * @param frameSizes   payload size of every appended frame
+     * @param dataOffset   file offset of the first appended payload byte, the frames are back to back
+     * @param framesPerChunk number of appended frames per chunk
+     */
+    byte[] createMovieBox(char[] frameSizes, int count, int maxFrameSize, long dataOffset, int framesPerChunk)
+            throws IOException {
+        long mediaDuration = 0;
+        for (int i = 0; i < mTimeToSample.length; i += 2) {
+            mediaDuration += (long) mTimeToSample[i] * mTimeToSample[i + 1];
+        }
+        mediaDuration += (long) count * SAMPLES_PER_AAC_FRAME;
+        long payloadSize = 0;
+        int maxSize = maxFrameSize;
+        for (int size : mSampleSizes) {
+            payloadSize += size;
+            maxSize = Math.max(maxSize, size);
+        }
+        for (int i = 0; i < count; i++) {
+            payloadSize += frameSizes[i];
+        }
+        ByteBuffer movie = ByteBuffer.wrap(mMovie);
+        int movieTimescale = movie.getInt(timescaleOffset(movie, mMovieHeader));
+        long movieDuration = mediaDuration * movieTimescale / getSampleRate();
+        putDuration(movie, mMovieHeader, durationOffset(movie, mMovieHeader), movieDuration);
+        int trackDuration = (movie.get(mTrackHeader) == 1 ? 8 + 8 + 4 + 4 : 4 + 4 + 4 + 4) + 4;
+        putDuration(movie, mTrackHeader, mTrackHeader + trackDuration, movieDuration);
+        putDuration(movie, mMediaHeader, durationOffset(movie, mMediaHeader), mediaDuration);
+        // DecoderConfigDescriptor: object type, stream type, 24 bit buffer size, max and average bit rate
+        movie.put(mDecoderConfig + 2, (byte) (maxSize >> 16)).putShort(mDecoderConfig + 3, (short) maxSize);
+        movie.putInt(mDecoderConfig + 5, (int) Math.max(movie.getInt(mDecoderConfig + 5) & 0xFFFFFFFFL,
+                Math.min(Integer.MAX_VALUE, (long) maxFrameSize * 8 * getSampleRate() / SAMPLES_PER_AAC_FRAME)));
+        movie.putInt(mDecoderConfig + 9, (int) (payloadSize * 8 * getSampleRate() / mediaDuration));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(mMovie.length + 8 * count + 64);
+        writeContainer(out, movie, 0, mMovie.length, "moov", new Tables(frameSizes, count, dataOffset,
+                framesPerChunk));
+        return out.toByteArray();
+    }
+
+    /**
+     * Turn the 'moov' this was read from, and any earlier one, into 'free' once the new one is written.
+     */
+    void freeMovieBoxes(FileChannel out) throws IOException {
+        freeStaleMovieBoxes(out);
+        writeFully(out, ByteBuffer.wrap(fourCc("free")), mMovieOffset + 4);
+    }
+
+    /**
+     * Turn the 'moov' boxes before the one this was read from into 'free', left when an append was interrupted.
+     */
+    void freeStaleMovieBoxes(FileChannel out) throws IOException {
+        for (long offset : mStaleMovieOffsets) {
+            writeFully(out, ByteBuffer.wrap(fourCc("free")), offset + 4);
+        }
+    }
+
+    /**
+     * @return false if nothing but handlers was left of a 'udta' or 'meta', it is not written then
+     */
+    private boolean writeContainer(ByteArrayOutputStream out, ByteBuffer movie, int start, int end, String path,
+                                   Tables tables) throws IOException {
+        ByteArrayOutputStream children = new ByteArrayOutputStream(end - start);
+        // 'meta' is a full box, its children follow version and flags
+        int headerSize = "moov/udta/meta".equals(path) ? 12 : 8;
+        boolean kept = !path.startsWith("moov/udta");
+        int position = start + headerSize;
+        while (position + 8 <= end) {
+            int size = movie.getInt(position);
+            String type = new String(mMovie, position + 4, 4, "US-ASCII");
+            String boxPath = path + "/" + type;
+            if ("moov/udta/meta/ilst".equals(boxPath)) {
+                int listSize = children.size();
+                writeItemList(children, movie, position, position + size);
+                kept |= children.size() > listSize;
+            } else if ("moov/udta/meta/hdlr".equals(boxPath)) {
+                children.write(mMovie, position, size);
+            } else if ("moov/trak/mdia/minf/stbl/stts".equals(boxPath)) {
+                children.write(tables.timeToSample());
+            } else if ("moov/trak/mdia/minf/stbl/stsc".equals(boxPath)) {
+                children.write(tables.sampleToChunk());
+            } else if ("moov/trak/mdia/minf/stbl/stsz".equals(boxPath)) {
+                children.write(tables.sampleSizes());
+            } else if ("moov/trak/mdia/minf/stbl/stco".equals(boxPath)
+                    || "moov/trak/mdia/minf/stbl/co64".equals(boxPath)) {
+                children.write(tables.chunkOffsets());
+            } else if (isContainer(boxPath) || "moov/udta".equals(boxPath) || "moov/udta/meta".equals(boxPath)) {
+                kept |= writeContainer(children, movie, position, position + size, boxPath, tables);
+            } else {
+                children.write(mMovie, position, size);
+                kept = true;
+            }
+            position += size;
+        }
+        if (!kept) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        header.putInt(headerSize + children.size()).put(mMovie, start + 4, headerSize - 4);
+        out.write(header.array());
+        children.writeTo(out);
+        return true;
+    }
+
+    private static boolean isContainer(String path) {
+        return "moov/trak".equals(path) || "moov/trak/mdia".equals(path) || "moov/trak/mdia/minf".equals(path)
+                || "moov/trak/mdia/minf/stbl".equals(path);
+    }
+
+    /**
+     * Copy an iTunes metadata list without its loudness tags, nothing if no other item is left.
+     */
+    private void writeItemList(ByteArrayOutputStream out, ByteBuffer movie, int start, int end) throws IOException {
+        ByteArrayOutputStream items = new ByteArrayOutputStream(end - start);
+        int position = start + 8;
+        while (position + 8 <= end) {
+            int size = movie.getInt(position);
+            if (size < 8 || position + size > end) {
+                break;
+            }
+            if (!isLoudnessItem(movie, position, position + size)) {
+                items.write(mMovie, position, size);
+            }
+            position += size;
+        }
+        if (items.size() == 0) {
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(8 + items.size()).put(mMovie, start + 4, 4);
+        out.write(header.array());
+        items.writeTo(out);
+    }
+
+    /**
+     * @return true for a freeform '----' item named like a ReplayGain, Sound Check or loudness tag
+     */
+    private boolean isLoudnessItem(ByteBuffer movie, int start, int end) throws IOException {
+        if (!"----".equals(new String(mMovie, start + 4, 4, "US-ASCII"))) {
+            return false;
+        }
+        int position = start + 8;
+        while (position + 12 <= end) {
+            int size = movie.getInt(position);
+            if (size < 12 || position + size > end) {
+                return false;
+            }
+            if ("name".equals(new String(mMovie, position + 4, 4, "US-ASCII"))) {
+                // 'name' is a full box holding the bare string
+                String name = new String(mMovie, position + 12, size - 12, "UTF-8").toLowerCase(Locale.US);
+                return name.startsWith("replaygain_") || name.startsWith("loudness_") || name.equals("itunnorm");
+            }
+            position += size;
+        }
+        return false;
+    }
+
+    /**
+     * The sample tables with the appended frames.
+     */
+    private class Tables {
+
+        private final char[] mFrameSizes;
+        private final int mCount;
+        private final long mDataOffset;
+        private final int mFramesPerChunk;
+        private final int mChunkCount;
+
+        Tables(char[] frameSizes, int count, long dataOffset, int framesPerChunk) {
+            mFrameSizes = frameSizes;
+            mCount = count;
+            mDataOffset = dataOffset;
+            mFramesPerChunk = framesPerChunk;
+            mChunkCount = (count + framesPerChunk - 1) / framesPerChunk;
+        }
+
+        byte[] timeToSample() {
+            int entries = mTimeToSample.length / 2;
+            boolean merge = entries > 0 && mTimeToSample[mTimeToSample.length - 1] == SAMPLES_PER_AAC_FRAME;
+            int total = merge || mCount == 0 ? entries : entries + 1;
+            ByteBuffer box = ByteBuffer.allocate(16 + 8 * total);
+            box.putInt(box.capacity()).put(fourCc("stts")).putInt(0).putInt(total);
+            for (int i = 0; i < mTimeToSample.length; i += 2) {
+                boolean last = i == mTimeToSample.length - 2;
+                box.putInt(mTimeToSample[i] + (last && merge ? mCount : 0)).putInt(mTimeToSample[i + 1]);
+            }
+            if (!merge && mCount > 0) {
+                box.putInt(mCount).putInt(SAMPLES_PER_AAC_FRAME);
+            }
+            return box.array();
+        }
+
+        byte[] sampleToChunk() {
+            int oldChunks = mChunkOffsets.length;
+            int[] added = new int[6];
+            int addedCount = 0;
+            if (mChunkCount > 0) {
+                int full = mCount % mFramesPerChunk == 0 ? mChunkCount : mChunkCount - 1;
+                int n = mSampleToChunk.length;
+                boolean continues = n > 0 && mSampleToChunk[n - 2] == mFramesPerChunk && mSampleToChunk[n - 1] == 1;
+                if (full > 0 && !continues) {
+                    added[addedCount++] = oldChunks + 1;
+                    added[addedCount++] = mFramesPerChunk;
+                    added[addedCount++] = 1;
+                }
+                if (full < mChunkCount) {
+                    added[addedCount++] = oldChunks + mChunkCount;
+                    added[addedCount++] = mCount - full * mFramesPerChunk;
+                    added[addedCount++] = 1;
+                }
+            }
+            int total = (mSampleToChunk.length + addedCount) / 3;
+            ByteBuffer box = ByteBuffer.allocate(16 + 12 * total);
+            box.putInt(box.capacity()).put(fourCc("stsc")).putInt(0).putInt(total);
+            for (int value : mSampleToChunk) {
+                box.putInt(value);
+            }
+            for (int i = 0; i < addedCount; i++) {
+                box.putInt(added[i]);
+            }
+            return box.array();
+        }
+
+        byte[] sampleSizes() {
+            int total = mSampleSizes.length + mCount;
+            ByteBuffer box = ByteBuffer.allocate(20 + 4 * total);
+            box.putInt(box.capacity()).put(fourCc("stsz")).putInt(0).putInt(0).putInt(total);
+            for (int size : mSampleSizes) {
+                box.putInt(size);
+            }
+            for (int i = 0; i < mCount; i++) {
+                box.putInt(mFrameSizes[i]);
+            }
+            return box.array();
+        }
+
+        byte[] chunkOffsets() {
+            long[] offsets = Arrays.copyOf(mChunkOffsets, mChunkOffsets.length + mChunkCount);
+            long offset = mDataOffset;
+            for (int i = 0; i < mCount; i++) {
+                if (i % mFramesPerChunk == 0) {
+                    offsets[mChunkOffsets.length + i / mFramesPerChunk] = offset;
+                }
+                offset += mFrameSizes[i];
+            }
+            boolean largeOffsets = offsets.length > 0 && offsets[offsets.length - 1] > 0xFFFFFFFFL;
+            for (int i = 0; !largeOffsets && i < mChunkOffsets.length; i++) {
+                largeOffsets = mChunkOffsets[i] > 0xFFFFFFFFL;
+            }
+            ByteBuffer box = ByteBuffer.allocate(16 + (largeOffsets ? 8 : 4) * offsets.length);
+            box.putInt(box.capacity()).put(fourCc(largeOffsets ? "co64" : "stco")).putInt(0).putInt(offsets.length);
+            for (long chunkOffset : offsets) {
+                if (largeOffsets) {
+                    box.putLong(chunkOffset);
+                } else {
+                    box.putInt((int) chunkOffset);
+                }
+            }
+            return box.array();
+        }
+    }
+
+    private int getMediaTimescale() {
+        ByteBuffer movie = ByteBuffer.wrap(mMovie);
+        return movie.getInt(timescaleOffset(movie, mMediaHeader));
+    }
+
+    /**
+     * @param body start of 'mvhd' or 'mdhd' after the box header
+     */
+    private static int timescaleOffset(ByteBuffer movie, int body) {
+        return body + (movie.get(body) == 1 ? 4 + 8 + 8 : 4 + 4 + 4);
+    }
+
+    private static int durationOffset(ByteBuffer movie, int body) {
+        return timescaleOffset(movie, body) + 4;
+    }
+
+    private static void putDuration(ByteBuffer movie, int body, int offset, long duration) throws IOException {
+        if (movie.get(body) == 1) {
+            movie.putLong(offset, duration);
+        } else if (duration > 0xFFFFFFFFL) {
+            throw new IOException("duration " + duration + " does not fit in a version 0 header");
+        } else {
+            movie.putInt(offset, (int) duration);
+        }
+    }
+
+    private static int[] readTable(ByteBuffer movie, int body, int columns) {
+        int[] table = new int[movie.getInt(body + 4) * columns];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = movie.getInt(body + 8 + 4 * i);
+        }
+        return table;
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("unexpected end of file");
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += out.write(buffer, position);
+        }
+    }
+
+    private static byte[] fourCc(String type) {
+        byte[] bytes = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            bytes[i] = (byte) type.charAt(i);
+        }
+        return bytes;
+    }
+}
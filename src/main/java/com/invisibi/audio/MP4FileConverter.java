@@ -1,24 +1,42 @@
 package com.invisibi.audio;
 
-import android.util.Log;
-
 import com.coremedia.iso.boxes.Container;
 import com.googlecode.mp4parser.FileDataSourceImpl;
 import com.googlecode.mp4parser.authoring.Movie;
 import com.googlecode.mp4parser.authoring.Track;
 import com.googlecode.mp4parser.authoring.builder.DefaultMp4Builder;
 import com.googlecode.mp4parser.authoring.tracks.AACTrackImpl;
+import com.googlecode.mp4parser.util.Logger;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Write data to mp4 file.
+ * Builds the whole mp4parser sample model in memory, the recorder itself uses {@link AdtsRemuxer}.
  */
 public class MP4FileConverter {
 
-    private static final String TAG = "MP4FileConverter";
+    private static final Logger LOG = Logger.getLogger(MP4FileConverter.class);
+    // report progress at most this often while writing, time unit is byte
+    private static final long PROGRESS_STEP = 64 * 1024;
+
+    /**
+     * Interface definition for a callback with the conversion progress, called on the converting thread
+     */
+    public interface ProgressListener {
+        /**
+         * @param progress estimated fraction of the mp4 file written, from 0 to 1
+         * @return false to cancel the conversion
+         */
+        boolean onProgress(float progress);
+    }
+
     private FileOutputStream mFileOutputStream;
     private String mInputFilePath;
 
@@ -28,15 +46,76 @@ public class MP4FileConverter {
     }
 
     public void convert() throws IOException, IllegalArgumentException {
+        convert(null);
+    }
+
+    /**
+     * @param listener receives the progress and may cancel, null for none
+     * @throws InterruptedIOException if the listener cancelled the conversion, the mp4 file is incomplete then
+     */
+    public void convert(ProgressListener listener) throws IOException, IllegalArgumentException {
         double time1 = System.currentTimeMillis();
-        Track audioTrack = new AACTrackImpl(new FileDataSourceImpl(mInputFilePath));
-        Movie movie = new Movie();
-        movie.addTrack(audioTrack);
-        Container output = new DefaultMp4Builder().build(movie);
         FileChannel fileChannel = mFileOutputStream.getChannel();
-        output.writeContainer(fileChannel);
-        fileChannel.close();
+        try {
+            Track audioTrack = new AACTrackImpl(new FileDataSourceImpl(mInputFilePath));
+            Movie movie = new Movie();
+            movie.addTrack(audioTrack);
+            Container output = new DefaultMp4Builder().build(movie);
+            if (listener == null) {
+                output.writeContainer(fileChannel);
+            } else {
+                // the mp4 file is about as large as the adts file, headers are replaced by the sample table
+                ProgressChannel progressChannel = new ProgressChannel(fileChannel, new File(mInputFilePath).length(),
+                        listener);
+                progressChannel.report();
+                output.writeContainer(progressChannel);
+            }
+        } finally {
+            fileChannel.close();
+        }
         double totalTime = System.currentTimeMillis() - time1;
-        Log.d(TAG, "spend " + totalTime + "ms to convert aac to mp4");
+        LOG.logDebug("spend " + totalTime + "ms to convert aac to mp4");
+    }
+
+    private static class ProgressChannel implements WritableByteChannel {
+
+        private final FileChannel mTarget;
+        private final long mExpectedSize;
+        private final ProgressListener mListener;
+        private long mWritten;
+        private long mReported = -PROGRESS_STEP;
+
+        ProgressChannel(FileChannel target, long expectedSize, ProgressListener listener) {
+            mTarget = target;
+            mExpectedSize = Math.max(1, expectedSize);
+            mListener = listener;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int written = mTarget.write(src);
+            mWritten += written;
+            if (mWritten - mReported >= PROGRESS_STEP) {
+                report();
+            }
+            return written;
+        }
+
+        void report() throws InterruptedIOException {
+            mReported = mWritten;
+            if (!mListener.onProgress(Math.min(1f, (float) mWritten / mExpectedSize))) {
+                throw new InterruptedIOException("conversion cancelled");
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return mTarget.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mTarget.close();
+        }
     }
 }
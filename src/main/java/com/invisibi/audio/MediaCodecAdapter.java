@@ -0,0 +1,98 @@
+package com.invisibi.audio;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link AudioCodec} on top of {@link MediaCodec}. The input and output buffer arrays are fetched once after start
+ * and the output array again on {@link MediaCodec#INFO_OUTPUT_BUFFERS_CHANGED}, instead of on every frame.
+ * A codec from {@link MediaCodecPool} can be handed back to the pool on release instead of being destroyed.
+ */
+public class MediaCodecAdapter implements AudioCodec {
+
+    private final MediaCodec mCodec;
+    private final MediaFormat mFormat;
+    private final boolean mRecycle;
+    private boolean mStarted;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private ByteBuffer[] mInputBuffers;
+    private volatile ByteBuffer[] mOutputBuffers;
+
+    /**
+     * @param codec configured codec, owned by the adapter from now on
+     */
+    public MediaCodecAdapter(MediaCodec codec) {
+        this(codec, null, false);
+    }
+
+    /**
+     * @param codec   configured codec, owned by the adapter from now on
+     * @param format  format the codec is configured with
+     * @param recycle true to return the codec to {@link MediaCodecPool} on release
+     */
+    public MediaCodecAdapter(MediaCodec codec, MediaFormat format, boolean recycle) {
+        mCodec = codec;
+        mFormat = format;
+        mRecycle = recycle;
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+        mStarted = true;
+        mInputBuffers = mCodec.getInputBuffers();
+        mOutputBuffers = mCodec.getOutputBuffers();
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mInputBuffers[index];
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+        int index = mCodec.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+            mOutputBuffers = mCodec.getOutputBuffers();
+        } else if (index >= 0) {
+            info.set(mBufferInfo.offset, mBufferInfo.size, mBufferInfo.presentationTimeUs, mBufferInfo.flags);
+        }
+        return index;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mOutputBuffers[index];
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        mCodec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public void stop() {
+        mCodec.stop();
+    }
+
+    @Override
+    public void release() {
+        if (mRecycle) {
+            MediaCodecPool.recycle(mCodec, mFormat, !mStarted);
+        } else {
+            mCodec.release();
+        }
+    }
+}
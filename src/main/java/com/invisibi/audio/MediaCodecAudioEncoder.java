@@ -0,0 +1,52 @@
+package com.invisibi.audio;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+
+/**
+ * Encode PCM to AAC LC with {@link MediaCodec}, driven by {@link AsyncCodecAudioEncoder}.
+ */
+public class MediaCodecAudioEncoder extends AsyncCodecAudioEncoder {
+
+    private static final String DEFAULT_AUDIO_MIME_TYPE = "audio/mp4a-latm";
+
+    /**
+     * @param sampleRate   sample rate of the input
+     * @param channels     channel count of the input
+     * @param bitRate      encoding bitrate
+     * @param maxInputSize max size of one input frame, time unit is byte
+     */
+    public MediaCodecAudioEncoder(int sampleRate, int channels, int bitRate, int maxInputSize) {
+        this(sampleRate, channels, bitRate, maxInputSize, false);
+    }
+
+    /**
+     * @param keepWarm true to hand the codec back to {@link MediaCodecPool} on release for the next recording
+     */
+    public MediaCodecAudioEncoder(int sampleRate, int channels, int bitRate, int maxInputSize, boolean keepWarm) {
+        this(createFormat(sampleRate, channels, bitRate, maxInputSize), sampleRate, channels, keepWarm);
+    }
+
+    private MediaCodecAudioEncoder(MediaFormat format, int sampleRate, int channels, boolean keepWarm) {
+        super(new MediaCodecAdapter(MediaCodecPool.acquire(DEFAULT_AUDIO_MIME_TYPE, format), format, keepWarm),
+                sampleRate, channels);
+    }
+
+    /**
+     * Create and configure an encoder with these settings in the background, a recorder prepared with
+     * the same settings afterwards picks it up from {@link MediaCodecPool}.
+     */
+    public static void prewarm(int sampleRate, int channels, int bitRate, int maxInputSize) {
+        MediaCodecPool.prewarm(DEFAULT_AUDIO_MIME_TYPE, createFormat(sampleRate, channels, bitRate, maxInputSize));
+    }
+
+    private static MediaFormat createFormat(int sampleRate, int channels, int bitRate, int maxInputSize) {
+        MediaFormat mediaFormat = MediaFormat.createAudioFormat(DEFAULT_AUDIO_MIME_TYPE, sampleRate, channels);
+        mediaFormat.setString(MediaFormat.KEY_MIME, DEFAULT_AUDIO_MIME_TYPE);
+        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        mediaFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        mediaFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, maxInputSize);
+        return mediaFormat;
+    }
+}
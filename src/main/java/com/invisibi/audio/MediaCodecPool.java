@@ -0,0 +1,133 @@
+package com.invisibi.audio;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process-wide pool of configured encoders, so a new recording skips creating and configuring a {@link MediaCodec}.
+ * Encoders are kept in the configured state and matched by their format, at most {@link #MAX_IDLE_ENCODERS}
+ * are kept alive at a time.
+ */
+public final class MediaCodecPool {
+
+    private static final String TAG = "MediaCodecPool";
+    private static final int MAX_IDLE_ENCODERS = 2;
+
+    private static final List<PooledEncoder> sIdleEncoders = new ArrayList<PooledEncoder>();
+    private static final ExecutorService sPrewarmExecutor = Executors.newSingleThreadExecutor();
+
+    private static class PooledEncoder {
+        final String mKey;
+        final MediaCodec mCodec;
+
+        PooledEncoder(String key, MediaCodec codec) {
+            mKey = key;
+            mCodec = codec;
+        }
+    }
+
+    private MediaCodecPool() {
+    }
+
+    /**
+     * @return a configured encoder for {@code format}, from the pool if one is idle
+     */
+    public static MediaCodec acquire(String mimeType, MediaFormat format) {
+        String key = keyOf(format);
+        synchronized (sIdleEncoders) {
+            for (int i = 0; i < sIdleEncoders.size(); i++) {
+                if (sIdleEncoders.get(i).mKey.equals(key)) {
+                    return sIdleEncoders.remove(i).mCodec;
+                }
+            }
+        }
+        return create(mimeType, format);
+    }
+
+    /**
+     * Put a stopped encoder back into the pool, it is configured again for {@code format} first.
+     *
+     * @param configured true if the encoder was never started and is still configured
+     */
+    public static void recycle(MediaCodec codec, MediaFormat format, boolean configured) {
+        try {
+            if (!configured) {
+                codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            }
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "cannot reconfigure encoder, release it");
+            codec.release();
+            return;
+        }
+        PooledEncoder evicted = null;
+        synchronized (sIdleEncoders) {
+            sIdleEncoders.add(new PooledEncoder(keyOf(format), codec));
+            if (sIdleEncoders.size() > MAX_IDLE_ENCODERS) {
+                evicted = sIdleEncoders.remove(0);
+            }
+        }
+        if (evicted != null) {
+            evicted.mCodec.release();
+        }
+    }
+
+    /**
+     * Create and configure an encoder for {@code format} in the background, so the next {@link #acquire} is instant.
+     */
+    public static void prewarm(final String mimeType, final MediaFormat format) {
+        sPrewarmExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String key = keyOf(format);
+                synchronized (sIdleEncoders) {
+                    for (PooledEncoder encoder : sIdleEncoders) {
+                        if (encoder.mKey.equals(key)) {
+                            return;
+                        }
+                    }
+                }
+                try {
+                    recycle(create(mimeType, format), format, true);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "cannot prewarm encoder, reason = " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Release every idle encoder, e.g. when the app leaves the recording screen.
+     */
+    public static void clear() {
+        List<PooledEncoder> idle;
+        synchronized (sIdleEncoders) {
+            idle = new ArrayList<PooledEncoder>(sIdleEncoders);
+            sIdleEncoders.clear();
+        }
+        for (PooledEncoder encoder : idle) {
+            encoder.mCodec.release();
+        }
+    }
+
+    private static MediaCodec create(String mimeType, MediaFormat format) {
+        String name = CodecCapabilityCache.getEncoderName(mimeType);
+        if (name == null) {
+            throw new IllegalStateException("no encoder for " + mimeType);
+        }
+        MediaCodec codec = MediaCodec.createByCodecName(name);
+        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        return codec;
+    }
+
+    private static String keyOf(MediaFormat format) {
+        return format.getString(MediaFormat.KEY_MIME) + "/" + format.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+                + "/" + format.getInteger(MediaFormat.KEY_CHANNEL_COUNT) + "/" + format.getInteger(MediaFormat.KEY_BIT_RATE)
+                + "/" + format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
+    }
+}
@@ -0,0 +1,242 @@
+package com.invisibi.audio;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single producer, multiple consumer ring of 16bit PCM for handing captured audio to several consumers at once,
+ * e.g. a speech recognizer and a network uplink next to the encoder.
+ * The producer copies every sample once into the ring and never waits. Each consumer has its own {@link Cursor}
+ * and reads straight out of the ring through a {@link Consumer} callback, without copying.
+ * A consumer the producer laps is handled by its overflow policy. The producer claims the slots it is about to
+ * overwrite before copying into them, so consumers check for laps against the claimed count and skip samples already
+ * being overwritten when a read starts. As the producer never waits, it may still overwrite samples while the consumer
+ * reads them, those are reported right after the read through {@link Consumer#onOverwritten(long, int)}.
+ */
+public class PcmBroadcastBuffer {
+
+    /**
+     * A lapped consumer skips to the oldest samples still in the ring, the skipped samples are counted.
+     */
+    public static final int OVERFLOW_SKIP = 0;
+    /**
+     * A lapped consumer is closed, {@link Cursor#read(Consumer, int)} returns -1 from then on.
+     */
+    public static final int OVERFLOW_CLOSE = 1;
+
+    /**
+     * Receives a contiguous part of the ring, called on the consumer's thread.
+     */
+    public interface Consumer {
+        /**
+         * @param samples  the ring itself, only valid during the call and must not be modified
+         * @param position number of samples written to the ring before the first one passed here
+         */
+        void onSamples(short[] samples, int offset, int count, long position);
+
+        /**
+         * The oldest samples passed in the read which just returned were overwritten while the consumer read them,
+         * they must be discarded.
+         *
+         * @param position number of samples written to the ring before the first overwritten one
+         * @param count    number of overwritten samples
+         */
+        void onOverwritten(long position, int count);
+    }
+
+    private final short[] mBuffer;
+    private final int mMask;
+    private final AtomicLong mWritten = new AtomicLong();
+    // written plus the samples being copied in, slots of positions below mClaimed - capacity are overwritten
+    private final AtomicLong mClaimed = new AtomicLong();
+    private final CopyOnWriteArrayList<Cursor> mCursors = new CopyOnWriteArrayList<Cursor>();
+
+    /**
+     * @param capacity number of samples kept, rounded up to a power of two
+     */
+    public PcmBroadcastBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive, capacity = " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mBuffer = new short[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Append samples and wake up waiting consumers, producer thread only.
+     */
+    public void write(short[] src, int offset, int count) {
+        long written = mWritten.get();
+        if (count > mBuffer.length) {
+            // only the newest samples fit, the older ones are lapped right away
+            offset += count - mBuffer.length;
+            written += count - mBuffer.length;
+            count = mBuffer.length;
+        }
+        mClaimed.set(written + count);
+        int index = (int) (written & mMask);
+        int firstPart = Math.min(count, mBuffer.length - index);
+        System.arraycopy(src, offset, mBuffer, index, firstPart);
+        System.arraycopy(src, offset + firstPart, mBuffer, 0, count - firstPart);
+        mWritten.set(written + count);
+
+        for (Cursor cursor : mCursors) {
+            Thread waiter = cursor.mWaiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    /**
+     * Register a consumer, it starts reading at the next sample written.
+     *
+     * @param overflowPolicy {@link #OVERFLOW_SKIP} or {@link #OVERFLOW_CLOSE}
+     */
+    public Cursor openCursor(int overflowPolicy) {
+        Cursor cursor = new Cursor(overflowPolicy, mWritten.get());
+        mCursors.add(cursor);
+        return cursor;
+    }
+
+    /**
+     * @return number of samples written so far
+     */
+    public long getWrittenCount() {
+        return mWritten.get();
+    }
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+    public int getConsumerCount() {
+        return mCursors.size();
+    }
+
+    /**
+     * Read position of one consumer, used by a single consumer thread.
+     */
+    public class Cursor {
+
+        private final int mOverflowPolicy;
+        private long mPosition;
+        private volatile Thread mWaiter;
+        private volatile boolean mClosed;
+        private final AtomicLong mSkippedSamples = new AtomicLong();
+
+        Cursor(int overflowPolicy, long position) {
+            mOverflowPolicy = overflowPolicy;
+            mPosition = position;
+        }
+
+        /**
+         * Pass up to {@code maxCount} unread samples to {@code consumer}, in one or two calls when the ring wraps,
+         * followed by a call to {@link Consumer#onOverwritten(long, int)} if some of them were torn meanwhile.
+         *
+         * @return number of samples passed, 0 if there are none, -1 once the cursor is closed
+         */
+        public int read(Consumer consumer, int maxCount) {
+            if (mClosed) {
+                return -1;
+            }
+            long written = mWritten.get();
+            if (!checkLapped(mClaimed.get())) {
+                return -1;
+            }
+            int count = (int) Math.min(maxCount, written - mPosition);
+            if (count <= 0) {
+                return 0;
+            }
+            int index = (int) (mPosition & mMask);
+            int firstPart = Math.min(count, mBuffer.length - index);
+            consumer.onSamples(mBuffer, index, firstPart, mPosition);
+            if (count > firstPart) {
+                consumer.onSamples(mBuffer, 0, count - firstPart, mPosition + firstPart);
+            }
+            long position = mPosition;
+            mPosition += count;
+            // samples claimed while the consumer was reading them were already handed out torn
+            long overwritten = mClaimed.get() - mBuffer.length - position;
+            if (overwritten > 0) {
+                int torn = (int) Math.min(overwritten, count);
+                mSkippedSamples.addAndGet(torn);
+                consumer.onOverwritten(position, torn);
+            }
+            return count;
+        }
+
+        private boolean checkLapped(long claimed) {
+            long lapped = claimed - mBuffer.length - mPosition;
+            if (lapped <= 0) {
+                return true;
+            }
+            if (mOverflowPolicy == OVERFLOW_CLOSE) {
+                close();
+                return false;
+            }
+            mSkippedSamples.addAndGet(lapped);
+            mPosition += lapped;
+            return true;
+        }
+
+        /**
+         * Park the calling thread until samples are available, the cursor is closed or {@code timeout} passed.
+         *
+         * @param timeout time unit is ms
+         * @return true if samples are available
+         */
+        public boolean await(long timeout) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            mWaiter = Thread.currentThread();
+            try {
+                while (!mClosed && mWritten.get() == mPosition) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || Thread.interrupted()) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+            } finally {
+                mWaiter = null;
+            }
+            return !mClosed && mWritten.get() != mPosition;
+        }
+
+        /**
+         * @return number of unread samples, more than {@link #capacity()} means the cursor was lapped
+         */
+        public long getBacklog() {
+            return mWritten.get() - mPosition;
+        }
+
+        /**
+         * @return number of samples this consumer lost by being lapped, skipped or reported as overwritten
+         */
+        public long getSkippedCount() {
+            return mSkippedSamples.get();
+        }
+
+        public boolean isClosed() {
+            return mClosed;
+        }
+
+        /**
+         * Unregister the consumer, any thread.
+         */
+        public void close() {
+            mClosed = true;
+            mCursors.remove(this);
+            Thread waiter = mWaiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+}
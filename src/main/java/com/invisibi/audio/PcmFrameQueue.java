@@ -0,0 +1,130 @@
+package com.invisibi.audio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer/single-consumer queue of PCM frames.
+ * Frame slots are allocated up front and reused, {@link #offer(short[], int, int)} must only be called
+ * from the capture thread and {@link #poll(short[], int)} only from the encoder thread.
+ * When the queue is full the new frame is dropped instead of blocking the producer.
+ */
+public class PcmFrameQueue {
+
+    private final short[][] mFrames;
+    private final int[] mFrameLengths;
+    private final int mMask;
+    private final int mFrameSize;
+
+    // next slot to read, written by consumer only
+    private final AtomicLong mHead = new AtomicLong();
+    // next slot to write, written by producer only
+    private final AtomicLong mTail = new AtomicLong();
+    private long mCachedHead; // producer's view of head
+    private long mCachedTail; // consumer's view of tail
+
+    // producer side counters
+    private final AtomicLong mOfferedFrames = new AtomicLong();
+    private final AtomicLong mDroppedFrames = new AtomicLong();
+    private final AtomicLong mMaxDepth = new AtomicLong();
+
+    /**
+     * @param capacity  number of frame slots, rounded up to a power of two
+     * @param frameSize max number of samples in one frame
+     */
+    public PcmFrameQueue(int capacity, int frameSize) {
+        int slots = 1;
+        while (slots < capacity) {
+            slots <<= 1;
+        }
+        mMask = slots - 1;
+        mFrameSize = frameSize;
+        mFrames = new short[slots][frameSize];
+        mFrameLengths = new int[slots];
+    }
+
+    /**
+     * Copy a frame into the queue, producer thread only.
+     *
+     * @return false if the queue is full and the frame is dropped
+     */
+    public boolean offer(short[] src, int offset, int count) {
+        if (count > mFrameSize) {
+            throw new IllegalArgumentException("frame of " + count + " samples exceeds slot size " + mFrameSize);
+        }
+        mOfferedFrames.lazySet(mOfferedFrames.get() + 1);
+        long tail = mTail.get();
+        if (tail - mCachedHead > mMask) {
+            mCachedHead = mHead.get();
+            if (tail - mCachedHead > mMask) {
+                mDroppedFrames.lazySet(mDroppedFrames.get() + 1);
+                return false;
+            }
+        }
+        int slot = (int) (tail & mMask);
+        System.arraycopy(src, offset, mFrames[slot], 0, count);
+        mFrameLengths[slot] = count;
+        mTail.lazySet(tail + 1);
+
+        // the cached head is stale, only pay for a fresh read when it could be a new maximum
+        if (tail + 1 - mCachedHead > mMaxDepth.get()) {
+            long depth = tail + 1 - mHead.get();
+            if (depth > mMaxDepth.get()) {
+                mMaxDepth.lazySet(depth);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Move the oldest frame into {@code dst}, consumer thread only.
+     *
+     * @return number of samples copied, -1 if the queue is empty
+     */
+    public int poll(short[] dst, int offset) {
+        long head = mHead.get();
+        if (head >= mCachedTail) {
+            mCachedTail = mTail.get();
+            if (head >= mCachedTail) {
+                return -1;
+            }
+        }
+        int slot = (int) (head & mMask);
+        int count = mFrameLengths[slot];
+        System.arraycopy(mFrames[slot], 0, dst, offset, count);
+        mHead.lazySet(head + 1);
+        return count;
+    }
+
+    /**
+     * @return number of frames waiting, may be stale by the time it returns
+     */
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    public long getOfferedFrameCount() {
+        return mOfferedFrames.get();
+    }
+
+    /**
+     * @return number of frames the producer dropped because the consumer fell behind
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrames.get();
+    }
+
+    /**
+     * @return the deepest the queue has been, a value close to {@link #capacity()} means backpressure
+     */
+    public long getMaxDepth() {
+        return mMaxDepth.get();
+    }
+}
@@ -0,0 +1,84 @@
+package com.invisibi.audio;
+
+/**
+ * Fixed capacity circular buffer of 16bit PCM samples.
+ * All storage is allocated in the constructor, writing and reading only move indexes, so the
+ * capture loop does not create any garbage. When the buffer is full the oldest samples are overwritten.
+ * Not thread safe, producer and consumer must run on the same thread.
+ */
+public class PcmRingBuffer {
+
+    private final short[] mBuffer;
+    private int mReadIndex;
+    private int mSize;
+
+    public PcmRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive, capacity = " + capacity);
+        }
+        mBuffer = new short[capacity];
+    }
+
+    /**
+     * Append samples, overwriting the oldest ones if there is not enough space left.
+     *
+     * @return number of old samples dropped to make room
+     */
+    public int write(short[] src, int offset, int count) {
+        int capacity = mBuffer.length;
+        int dropped = 0;
+        if (count > capacity) {
+            // only the newest samples fit
+            dropped = count - capacity;
+            offset += dropped;
+            count = capacity;
+        }
+
+        int overflow = mSize + count - capacity;
+        if (overflow > 0) {
+            mReadIndex = (mReadIndex + overflow) % capacity;
+            mSize -= overflow;
+            dropped += overflow;
+        }
+
+        int writeIndex = (mReadIndex + mSize) % capacity;
+        int firstPart = Math.min(count, capacity - writeIndex);
+        System.arraycopy(src, offset, mBuffer, writeIndex, firstPart);
+        System.arraycopy(src, offset + firstPart, mBuffer, 0, count - firstPart);
+        mSize += count;
+        return dropped;
+    }
+
+    /**
+     * Move up to {@code count} of the oldest samples into {@code dst}.
+     *
+     * @return number of samples read, 0 if the buffer is empty
+     */
+    public int read(short[] dst, int offset, int count) {
+        int capacity = mBuffer.length;
+        count = Math.min(count, mSize);
+        int firstPart = Math.min(count, capacity - mReadIndex);
+        System.arraycopy(mBuffer, mReadIndex, dst, offset, firstPart);
+        System.arraycopy(mBuffer, 0, dst, offset + firstPart, count - firstPart);
+        mReadIndex = (mReadIndex + count) % capacity;
+        mSize -= count;
+        return count;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public void clear() {
+        mReadIndex = 0;
+        mSize = 0;
+    }
+}
@@ -0,0 +1,33 @@
+package com.invisibi.audio;
+
+/**
+ * Capture stage of the recording pipeline, delivers 16bit PCM samples.
+ */
+public interface PcmSource {
+
+    void start();
+
+    /**
+     * Read samples, blocking until some are available.
+     *
+     * @param buffer destination
+     * @param offset offset of the first sample in {@code buffer}
+     * @param count  max number of samples to read
+     * @return number of samples read, or a negative error code
+     */
+    int read(short[] buffer, int offset, int count);
+
+    void stop();
+
+    /**
+     * @return true while the source is capturing, while false the capture thread does not read but parks
+     * and checks again, it only exits when the pipeline is stopped
+     */
+    boolean isActive();
+
+    void release();
+
+    int getSampleRate();
+
+    int getChannels();
+}
@@ -0,0 +1,319 @@
+package com.invisibi.audio;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shares resources between {@link EnhanceAudioRecorder} instances of a process.
+ * Every recording gets its own scratch directory, so recorders running at the same time or a recorder started
+ * while the previous one is still converting never write to the same temporary file.
+ * At most {@link #getMaxConcurrentFinalizations()} output files are finalized at a time, aac files are converted
+ * on the shared {@link FinalizationQueue}. Write buffers and configured encoders are kept for the next recording.
+ * Recordings interrupted by a crash are recovered from their {@link AdtsFrameIndex} when the manager is created
+ * and finalized in the background, see {@link #getRecoveredJobs()}. An open session holds a lock file in its scratch
+ * directory, so managers of other processes sharing the directory leave it alone.
+ */
+public class RecorderManager {
+
+    public static final int DEFAULT_MAX_CONCURRENT_FINALIZATIONS = 2;
+
+    private static final String TAG = "RecorderManager";
+    private static final String ROOT_DIR = "recorder";
+    private static final String SESSIONS_DIR = "sessions";
+    private static final String FINALIZE_DIR = "finalize";
+    private static final int MAX_IDLE_BUFFERS = 4;
+
+    private static RecorderManager sInstance;
+
+    private final File mSessionsDir;
+    private final int mMaxConcurrentFinalizations;
+    private final Semaphore mFinalizePermits;
+    private final ExecutorService mFinalizeExecutor;
+    private final FinalizationQueue mFinalizationQueue;
+    private final DirectBufferPool mBufferPool = new DirectBufferPool(MAX_IDLE_BUFFERS);
+    private final AtomicInteger mSessionCount = new AtomicInteger();
+    private final Set<Session> mActiveSessions = new HashSet<Session>();
+    private final List<FinalizationQueue.Job> mRecoveredJobs = new ArrayList<FinalizationQueue.Job>();
+    private volatile boolean mReuseEncoders = true;
+
+    /**
+     * @return the manager shared by all recorders of the process, its scratch directories are under the app's data dir
+     */
+    public static synchronized RecorderManager getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new RecorderManager(new File(context.getApplicationInfo().dataDir, ROOT_DIR),
+                    DEFAULT_MAX_CONCURRENT_FINALIZATIONS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param directory                  where scratch directories and queued conversions are kept, recordings
+     *                                   left over in scratch directories are recovered and left over
+     *                                   conversions resumed
+     * @param maxConcurrentFinalizations max number of output files finalized at a time
+     */
+    public RecorderManager(File directory, int maxConcurrentFinalizations) {
+        if (maxConcurrentFinalizations <= 0) {
+            throw new IllegalArgumentException("max concurrent finalizations must be positive, value = "
+                    + maxConcurrentFinalizations);
+        }
+        mSessionsDir = new File(directory, SESSIONS_DIR);
+        mMaxConcurrentFinalizations = maxConcurrentFinalizations;
+        mFinalizePermits = new Semaphore(maxConcurrentFinalizations, true);
+        mFinalizeExecutor = Executors.newFixedThreadPool(maxConcurrentFinalizations);
+        mFinalizationQueue = new FinalizationQueue(new File(directory, FINALIZE_DIR), maxConcurrentFinalizations);
+        recoverStaleSessions();
+    }
+
+    /**
+     * @return a recorder using this manager
+     */
+    public EnhanceAudioRecorder createRecorder(Context context) {
+        return new EnhanceAudioRecorder(context, this);
+    }
+
+    /**
+     * Create the scratch directory of a new recording session.
+     */
+    public Session openSession() throws IOException {
+        File directory = new File(mSessionsDir, "session_" + Long.toString(System.currentTimeMillis(), 36)
+                + "_" + mSessionCount.incrementAndGet());
+        if (!directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("cannot create session directory " + directory);
+        }
+        DirectoryLock lock = DirectoryLock.tryLock(directory);
+        if (lock == null) {
+            throw new IOException("session directory " + directory + " is in use");
+        }
+        Session session = new Session(directory, lock);
+        synchronized (mActiveSessions) {
+            mActiveSessions.add(session);
+        }
+        return session;
+    }
+
+    /**
+     * Scratch directories only live as long as their session, any one found at startup whose lock nobody holds belongs
+     * to a dead process. Its indexed recordings are queued for finalization into the file they were meant for, then
+     * it is deleted. Sessions of other processes are locked and skipped.
+     */
+    private void recoverStaleSessions() {
+        File[] stale = mSessionsDir.listFiles();
+        if (stale == null) {
+            return;
+        }
+        for (File directory : stale) {
+            if (!directory.isDirectory()) {
+                directory.delete();
+                continue;
+            }
+            DirectoryLock lock;
+            try {
+                lock = DirectoryLock.tryLock(directory);
+            } catch (IOException e) {
+                Log.w(TAG, "cannot lock session " + directory + ", reason = " + e.getMessage());
+                continue;
+            }
+            if (lock == null) {
+                Log.d(TAG, "session " + directory + " is in use");
+                continue;
+            }
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    String path = file.getPath();
+                    if (path.endsWith(AdtsFrameIndex.EXTENSION)) {
+                        recover(path.substring(0, path.length() - AdtsFrameIndex.EXTENSION.length()), file);
+                    }
+                }
+            }
+            if (!deleteRecursively(directory)) {
+                Log.w(TAG, "cannot delete stale session " + directory);
+            }
+            lock.release();
+        }
+    }
+
+    private void recover(String adtsFilePath, File indexFile) {
+        if (!new File(adtsFilePath).exists()) {
+            return;
+        }
+        try {
+            String outputFilePath = AdtsFrameIndex.readOutputPath(indexFile);
+            Log.i(TAG, "recover interrupted recording " + outputFilePath);
+            FinalizeOptions options = new FinalizeOptions();
+            options.setAppendFrameCount(AdtsFrameIndex.readAppendFrameCount(indexFile));
+            FinalizationQueue.Job job = mFinalizationQueue.submit(adtsFilePath, outputFilePath, options,
+                    FinalizationQueue.PRIORITY_BACKGROUND, null);
+            synchronized (mRecoveredJobs) {
+                mRecoveredJobs.add(job);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "cannot recover " + adtsFilePath + ", reason = " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return finalizations of the recordings interrupted by the crash of a previous process, queued when this
+     * manager was created. Conversions which were already queued at the crash are resumed by
+     * {@link FinalizationQueue} itself and not listed
+     */
+    public List<FinalizationQueue.Job> getRecoveredJobs() {
+        synchronized (mRecoveredJobs) {
+            return Collections.unmodifiableList(new ArrayList<FinalizationQueue.Job>(mRecoveredJobs));
+        }
+    }
+
+    private static boolean deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        return file.delete() || !file.exists();
+    }
+
+    /**
+     * Bound how many output files are finalized at a time, closing the returned sink waits for a free slot
+     * before closing {@code sink}. Not needed for sinks converting on {@link #getFinalizationQueue()}.
+     */
+    public EncodedFrameSink limitFinalization(EncodedFrameSink sink) {
+        return new FinalizationLimitedSink(sink);
+    }
+
+    /**
+     * @return executor for finalizing in the background, e.g. finished segments, shared by all recorders
+     */
+    public Executor getFinalizeExecutor() {
+        return mFinalizeExecutor;
+    }
+
+    /**
+     * @return queue converting the aac files of all recorders, including conversions resumed after a crash
+     */
+    public FinalizationQueue getFinalizationQueue() {
+        return mFinalizationQueue;
+    }
+
+    public int getMaxConcurrentFinalizations() {
+        return mMaxConcurrentFinalizations;
+    }
+
+    /**
+     * @return pool of the direct write buffers of the output files
+     */
+    public DirectBufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    public boolean isReuseEncoders() {
+        return mReuseEncoders;
+    }
+
+    /**
+     * Keep the encoder of a finished recording configured in {@link MediaCodecPool}, so back to back recordings
+     * with the same parameters skip creating one. Enabled by default.
+     *
+     * @param reuseEncoders false to release encoders after every recording unless the recording parameters say otherwise
+     */
+    public void setReuseEncoders(boolean reuseEncoders) {
+        mReuseEncoders = reuseEncoders;
+    }
+
+    /**
+     * Release idle encoders and buffers, e.g. from {@link android.content.ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public void trimMemory() {
+        MediaCodecPool.clear();
+        mBufferPool.clear();
+    }
+
+    /**
+     * @return number of recording sessions open right now
+     */
+    public int getActiveSessionCount() {
+        synchronized (mActiveSessions) {
+            return mActiveSessions.size();
+        }
+    }
+
+    /**
+     * Scratch directory of one recording, deleted with everything in it on {@link #close()}.
+     */
+    public class Session {
+
+        private final File mDirectory;
+        private final DirectoryLock mLock;
+        private boolean mClosed;
+
+        Session(File directory, DirectoryLock lock) {
+            mDirectory = directory;
+            mLock = lock;
+        }
+
+        public File getDirectory() {
+            return mDirectory;
+        }
+
+        /**
+         * @return path of a file in the scratch directory
+         */
+        public String getScratchPath(String name) {
+            return new File(mDirectory, name).getPath();
+        }
+
+        public void close() {
+            synchronized (mActiveSessions) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                mActiveSessions.remove(this);
+            }
+            if (!deleteRecursively(mDirectory)) {
+                Log.w(TAG, "cannot delete session " + mDirectory);
+            }
+            mLock.release();
+        }
+    }
+
+    private class FinalizationLimitedSink implements EncodedFrameSink {
+
+        private final EncodedFrameSink mTarget;
+
+        FinalizationLimitedSink(EncodedFrameSink target) {
+            mTarget = target;
+        }
+
+        @Override
+        public void writeFrame(ByteBuffer frame, long presentationTimeUs) throws IOException {
+            mTarget.writeFrame(frame, presentationTimeUs);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFinalizePermits.acquireUninterruptibly();
+            try {
+                mTarget.close();
+            } finally {
+                mFinalizePermits.release();
+            }
+        }
+    }
+}
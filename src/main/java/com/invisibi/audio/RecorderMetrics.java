@@ -0,0 +1,218 @@
+package com.invisibi.audio;
+
+/**
+ * Counters and per-stage latencies of a recording, filled by {@link RecorderPipeline#readMetrics(RecorderMetrics)}.
+ * Mutable so a listener polling at a fixed rate can keep reusing one instance. Every value is copied from
+ * lock-free counters, values of different stages may be a buffer apart from each other.
+ */
+public class RecorderMetrics {
+
+    public static final int STAGE_READ = 0;
+    public static final int STAGE_METER = 1;
+    public static final int STAGE_VOICE_DETECT = 2;
+    public static final int STAGE_ENCODE = 3;
+    public static final int STAGE_MUX = 4;
+    public static final int STAGE_RESUME = 5;
+    static final int STAGE_COUNT = 6;
+
+    long mCapturedSamples;
+    long mReadCount;
+    long mReadErrors;
+    long mReadSizeP50;
+    long mReadSizeMin;
+    long mEvictedSamples;
+    long mGatedSamples;
+    int mQueueDepth;
+    long mMaxQueueDepth;
+    int mQueueCapacity;
+    long mQueueDroppedFrames;
+    long mEncoderDroppedFrames;
+    long mSlowFrames;
+    long mEncodedBytes;
+    long mDrainTime = -1;
+    long mFinalizeTime = -1;
+
+    final long[] mStageCounts = new long[STAGE_COUNT];
+    final long[] mStageP50 = new long[STAGE_COUNT];
+    final long[] mStageP99 = new long[STAGE_COUNT];
+    final long[] mStageMax = new long[STAGE_COUNT];
+
+    void setStage(int stage, StageTimer timer) {
+        mStageCounts[stage] = timer.getCount();
+        mStageP50[stage] = timer.getPercentileNanos(50);
+        mStageP99[stage] = timer.getPercentileNanos(99);
+        mStageMax[stage] = timer.getMaxNanos();
+    }
+
+    void setStopReport(StopReport report) {
+        mDrainTime = report.getDrainTime();
+        mFinalizeTime = report.getFinalizeTime();
+    }
+
+    void copyFrom(RecorderMetrics from) {
+        mCapturedSamples = from.mCapturedSamples;
+        mReadCount = from.mReadCount;
+        mReadErrors = from.mReadErrors;
+        mReadSizeP50 = from.mReadSizeP50;
+        mReadSizeMin = from.mReadSizeMin;
+        mEvictedSamples = from.mEvictedSamples;
+        mGatedSamples = from.mGatedSamples;
+        mQueueDepth = from.mQueueDepth;
+        mMaxQueueDepth = from.mMaxQueueDepth;
+        mQueueCapacity = from.mQueueCapacity;
+        mQueueDroppedFrames = from.mQueueDroppedFrames;
+        mEncoderDroppedFrames = from.mEncoderDroppedFrames;
+        mSlowFrames = from.mSlowFrames;
+        mEncodedBytes = from.mEncodedBytes;
+        mDrainTime = from.mDrainTime;
+        mFinalizeTime = from.mFinalizeTime;
+        System.arraycopy(from.mStageCounts, 0, mStageCounts, 0, STAGE_COUNT);
+        System.arraycopy(from.mStageP50, 0, mStageP50, 0, STAGE_COUNT);
+        System.arraycopy(from.mStageP99, 0, mStageP99, 0, STAGE_COUNT);
+        System.arraycopy(from.mStageMax, 0, mStageMax, 0, STAGE_COUNT);
+    }
+
+    public long getCapturedSamples() {
+        return mCapturedSamples;
+    }
+
+    /**
+     * @return number of reads from the audio source, failed ones included
+     */
+    public long getReadCount() {
+        return mReadCount;
+    }
+
+    /**
+     * @return number of reads returning an error code, e.g. after an overrun of the source
+     */
+    public long getReadErrors() {
+        return mReadErrors;
+    }
+
+    /**
+     * @return median number of samples per successful read
+     */
+    public long getReadSizeP50() {
+        return mReadSizeP50;
+    }
+
+    /**
+     * @return smallest number of samples returned by a successful read, short reads mean the source is starving
+     */
+    public long getReadSizeMin() {
+        return mReadSizeMin;
+    }
+
+    /**
+     * @return number of samples overwritten in the pending buffer before they reached the encoder queue
+     */
+    public long getEvictedSamples() {
+        return mEvictedSamples;
+    }
+
+    /**
+     * @return number of samples not encoded because no voice was detected
+     */
+    public long getGatedSamples() {
+        return mGatedSamples;
+    }
+
+    public int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    public long getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    public int getQueueCapacity() {
+        return mQueueCapacity;
+    }
+
+    /**
+     * @return number of frames dropped because the encoder queue was full
+     */
+    public long getQueueDroppedFrames() {
+        return mQueueDroppedFrames;
+    }
+
+    /**
+     * @return number of frames the encoder rejected
+     */
+    public long getEncoderDroppedFrames() {
+        return mEncoderDroppedFrames;
+    }
+
+    /**
+     * @return number of frames which took longer than their own duration to encode
+     */
+    public long getSlowFrames() {
+        return mSlowFrames;
+    }
+
+    /**
+     * @return number of encoded bytes passed to the output, container overhead excluded
+     */
+    public long getEncodedBytes() {
+        return mEncodedBytes;
+    }
+
+    /**
+     * @return drain time of the stop, time unit is ms, -1 while recording
+     */
+    public long getDrainTime() {
+        return mDrainTime;
+    }
+
+    /**
+     * @return time spent finalizing the output file, time unit is ms, -1 while recording
+     */
+    public long getFinalizeTime() {
+        return mFinalizeTime;
+    }
+
+    /**
+     * @param stage one of the STAGE_ constants
+     * @return number of passes through the stage
+     */
+    public long getStageCount(int stage) {
+        return mStageCounts[stage];
+    }
+
+    /**
+     * @param stage one of the STAGE_ constants
+     * @return median processing time of the stage, time unit is ns
+     */
+    public long getStageP50Nanos(int stage) {
+        return mStageP50[stage];
+    }
+
+    /**
+     * @param stage one of the STAGE_ constants
+     * @return 99th percentile processing time of the stage, time unit is ns
+     */
+    public long getStageP99Nanos(int stage) {
+        return mStageP99[stage];
+    }
+
+    /**
+     * @param stage one of the STAGE_ constants
+     * @return longest processing time of the stage, time unit is ns
+     */
+    public long getStageMaxNanos(int stage) {
+        return mStageMax[stage];
+    }
+
+    @Override
+    public String toString() {
+        return "RecorderMetrics{captured=" + mCapturedSamples + ", reads=" + mReadCount + ", readErrors=" + mReadErrors
+                + ", readSizeP50=" + mReadSizeP50 + ", readSizeMin=" + mReadSizeMin + ", evicted=" + mEvictedSamples
+                + ", gated=" + mGatedSamples + ", queue=" + mQueueDepth + "/" + mQueueCapacity
+                + ", maxQueue=" + mMaxQueueDepth + ", queueDropped=" + mQueueDroppedFrames
+                + ", encoderDropped=" + mEncoderDroppedFrames + ", slow=" + mSlowFrames
+                + ", encodedBytes=" + mEncodedBytes + ", drain=" + mDrainTime + "ms, finalize=" + mFinalizeTime
+                + "ms, encodeP99=" + mStageP99[STAGE_ENCODE] / 1000 + "us, muxP99=" + mStageP99[STAGE_MUX] / 1000
+                + "us}";
+    }
+}
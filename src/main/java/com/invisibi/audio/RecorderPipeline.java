@@ -0,0 +1,883 @@
+package com.invisibi.audio;
+
+import com.googlecode.mp4parser.util.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The capture -> meter -> voice detection -> encode -> mux path behind {@link EnhanceAudioRecorder}.
+ * It only talks to {@link PcmSource}, {@link AudioEncoder} and {@link EncodedFrameSink}, so with the
+ * JVM implementations of those it runs off device under load tests and profilers.
+ * Every stage records its processing time in a {@link StageTimer}.
+ */
+public class RecorderPipeline {
+
+    public static final double MIN_DB = LevelMeter.MIN_DB;
+    public static final int MAX_DURATION_INFINITE = -1;
+    public static final double DEFAULT_VOICE_THRESHOLD = 0.02;
+
+    private static final Logger LOG = Logger.getLogger(RecorderPipeline.class);
+    private static final double FILTER_FACTOR = 0.05;
+    private static final double PENDING_AUDIO_LENGTH = 0.8;
+    private static final double ENCODER_QUEUE_LENGTH = 2.0;
+    private static final long ABORT_GRACE_TIME = 500; // ms
+    private static final long PAUSE_CHECK_INTERVAL = 10; // ms
+    private static final long ROLLBACK_OFFER_TIMEOUT = 1000; // ms
+    private static final int SAMPLES_PER_AAC_FRAME = 1024;
+
+    /**
+     * Interface definition for callbacks from the capture thread.
+     */
+    public interface Listener {
+        /**
+         * Called once when the captured audio reaches the max duration, later samples are discarded.
+         */
+        void onMaxDurationReached(RecorderPipeline pipeline);
+
+        /**
+         * Called when the voice activity detector starts or stops detecting voice.
+         */
+        void onVoiceActivityChanged(RecorderPipeline pipeline, boolean voice);
+    }
+
+    private final PcmSource mSource;
+    private final AudioEncoder mEncoder;
+    private final EncodedFrameSink mSink;
+    private final TimedSink mTimedSink; // what the encoder writes to, null without a sink
+    private volatile int mReadSize;
+    private final int mSamplesPerSecond;
+
+    private final PcmRingBuffer mPendingSamples;
+    private final PcmFrameQueue mEncoderQueue;
+    private final EncoderThread mEncoderThread;
+    private final LevelMeter mLevelMeter;
+    private final VoiceActivityDetector mVoiceDetector;
+    private PcmRingBuffer mPreRollSamples;
+    private WaveformPyramid mWaveform;
+    private long mWaveformStart; // samples the waveform held before this recording
+    private LoudnessMeter mLoudnessMeter;
+    private FrameEnergyIndex mEnergyIndex;
+    private RollbackFrameSink mRollbackSink;
+    private PcmBroadcastBuffer mBroadcast;
+    private final short[] mInputPCMBuffer;
+    private final short[] mEncodePCMBuffer;
+    private Thread mCaptureThread;
+
+    // pause handshake between callers and the capture thread, which lives from start() to stop()
+    private final Object mPauseLock = new Object();
+    private volatile boolean mPaused;
+    private volatile boolean mStopRequested;
+    private boolean mCapturePaused; // guarded by mPauseLock
+    private boolean mKeepSourceActiveOnPause;
+    private volatile long mResumeRequestTime;
+
+    private int mDelayStart;
+    private volatile int mMaxDuration = MAX_DURATION_INFINITE;
+    private int mVoiceDetectionMode = VoiceActivityDetector.MODE_OFF;
+    private VoiceActivityDetector.Listener mVoiceActivityListener;
+    private boolean mVoiceActive;
+    private Listener mListener;
+    private boolean mMaxDurationReported;
+
+    private volatile long mCapturedSamples;
+    // samples handed to the encoder, and how many of them the output holds after rollbacks
+    private long mOfferedSamples;
+    private long mKeptSamples;
+    // samples the encoder thread dropped which were already taken off mKeptSamples and mCapturedSamples
+    private long mDiscountedSamples;
+    private volatile long mGatedSamples;
+    private volatile long mEvictedSamples;
+    private volatile long mReadCount;
+    private volatile long mReadErrors;
+    private final LogHistogram mReadSizes = new LogHistogram();
+    private final AtomicLong mEncodedBytes = new AtomicLong();
+    private double mVoiceFilteredResults;
+
+    private final StageTimer mReadTimer = new StageTimer("read");
+    private final StageTimer mMeterTimer = new StageTimer("meter");
+    private final StageTimer mVoiceDetectTimer = new StageTimer("voice detect");
+    private final StageTimer mMuxTimer = new StageTimer("mux");
+    private final StageTimer mResumeTimer = new StageTimer("resume");
+
+    /**
+     * @param source   where the samples come from
+     * @param encoder  encoder, its sink is set by the pipeline
+     * @param sink     receives the encoded frames, null to discard them
+     * @param readSize number of samples per read from {@code source}, also the size of the frames passed to the encoder
+     */
+    public RecorderPipeline(PcmSource source, AudioEncoder encoder, EncodedFrameSink sink, int readSize) {
+        this(source, encoder, sink, readSize, readSize);
+    }
+
+    /**
+     * @param maxReadSize largest read size {@link #setReadSize(int)} may set later
+     */
+    public RecorderPipeline(PcmSource source, AudioEncoder encoder, EncodedFrameSink sink, int readSize,
+                            int maxReadSize) {
+        mSource = source;
+        mEncoder = encoder;
+        mSink = sink;
+        mReadSize = readSize;
+        mSamplesPerSecond = source.getSampleRate() * source.getChannels();
+
+        int queueLength = (int) Math.ceil(PENDING_AUDIO_LENGTH / (readSize / (double) mSamplesPerSecond));
+        // a whole read has to fit next to what the encoder queue did not take yet
+        mPendingSamples = new PcmRingBuffer(Math.max(queueLength * readSize, 2 * maxReadSize));
+        mInputPCMBuffer = new short[Math.max(readSize, maxReadSize)];
+        mEncodePCMBuffer = new short[readSize];
+
+        int encoderQueueLength = (int) Math.ceil(ENCODER_QUEUE_LENGTH / (readSize / (double) mSamplesPerSecond));
+        mEncoderQueue = new PcmFrameQueue(encoderQueueLength, readSize);
+        mTimedSink = sink == null ? null : new TimedSink(sink);
+        mEncoder.setSink(mTimedSink);
+        mEncoderThread = new EncoderThread(mEncoderQueue, mEncoder, mSamplesPerSecond);
+        mEncoderThread.setListener(new EncoderThread.Listener() {
+            @Override
+            public void onEncoded(short[] pcm, int offset, int count) {
+                analyzeEncoded(pcm, offset, count);
+            }
+        });
+        mLevelMeter = new LevelMeter(mSamplesPerSecond);
+        mVoiceDetector = new VoiceActivityDetector(source.getSampleRate(), source.getChannels());
+        mVoiceDetector.setListener(new VoiceActivityDetector.Listener() {
+            @Override
+            public void onFrame(short[] frame, int offset, int count, long frameIndex, boolean voice) {
+                onVoiceFrame(frame, offset, count, frameIndex, voice);
+            }
+        });
+    }
+
+    /**
+     * Change the number of samples per read, any thread. Takes effect with the next read of the capture thread,
+     * the captured stream is not interrupted and frames passed to the encoder keep their size.
+     *
+     * @param readSize number of samples per read, at most the max read size given to the constructor
+     */
+    public void setReadSize(int readSize) {
+        if (readSize <= 0 || readSize > mInputPCMBuffer.length) {
+            throw new IllegalArgumentException("read size must be between 1 and " + mInputPCMBuffer.length
+                    + ", readSize = " + readSize);
+        }
+        mReadSize = readSize;
+    }
+
+    public int getReadSize() {
+        return mReadSize;
+    }
+
+    /**
+     * @param delayStart length of audio discarded at the beginning, time unit is ms
+     */
+    public void setDelayStart(int delayStart) {
+        mDelayStart = delayStart;
+    }
+
+    /**
+     * @param maxDuration max length of captured audio including the delay start, time unit is ms
+     */
+    public void setMaxDuration(int maxDuration) {
+        mMaxDuration = maxDuration;
+    }
+
+    /**
+     * Only encode audio while voice is detected, the pre-roll before the voice is kept.
+     */
+    public void setVoiceDetecting(boolean voiceDetecting) {
+        setVoiceDetectionMode(voiceDetecting ? VoiceActivityDetector.MODE_GATE : VoiceActivityDetector.MODE_OFF);
+    }
+
+    /**
+     * @param voiceDetectionMode one of {@link VoiceActivityDetector#MODE_OFF}, {@link VoiceActivityDetector#MODE_DETECT}
+     *                           or {@link VoiceActivityDetector#MODE_GATE}, set before {@link #start()}
+     */
+    public void setVoiceDetectionMode(int voiceDetectionMode) {
+        mVoiceDetectionMode = voiceDetectionMode;
+        if (voiceDetectionMode == VoiceActivityDetector.MODE_GATE && mPreRollSamples == null
+                && mVoiceDetector.getPreRollSize() > 0) {
+            mPreRollSamples = new PcmRingBuffer(mVoiceDetector.getPreRollSize());
+        }
+    }
+
+    public int getVoiceDetectionMode() {
+        return mVoiceDetectionMode;
+    }
+
+    /**
+     * @param listener receives every classified frame on the capture thread, it must not block
+     */
+    public void setVoiceActivityListener(VoiceActivityDetector.Listener listener) {
+        mVoiceActivityListener = listener;
+    }
+
+    public VoiceActivityDetector getVoiceDetector() {
+        return mVoiceDetector;
+    }
+
+    /**
+     * @param waveform receives every sample the encoder took on the encoder thread, finished when the pipeline stops,
+     *                 null to disable
+     */
+    public void setWaveform(WaveformPyramid waveform) {
+        mWaveform = waveform;
+        mWaveformStart = waveform == null ? 0 : waveform.getSampleCount();
+    }
+
+    public WaveformPyramid getWaveform() {
+        return mWaveform;
+    }
+
+    /**
+     * @param loudnessMeter measures every sample the encoder took on the encoder thread, invalidated by
+     *                      {@link #rollback(int)}, null to disable
+     */
+    public void setLoudnessMeter(LoudnessMeter loudnessMeter) {
+        mLoudnessMeter = loudnessMeter;
+    }
+
+    public LoudnessMeter getLoudnessMeter() {
+        return mLoudnessMeter;
+    }
+
+    /**
+     * @param energyIndex receives every sample the encoder took on the encoder thread, null to disable
+     */
+    public void setFrameEnergyIndex(FrameEnergyIndex energyIndex) {
+        mEnergyIndex = energyIndex;
+    }
+
+    /**
+     * @param rollbackSink the sink given to the constructor or one wrapped by it, enables {@link #rollback(int)}
+     */
+    public void setRollbackSink(RollbackFrameSink rollbackSink) {
+        mRollbackSink = rollbackSink;
+    }
+
+    /**
+     * @param broadcast receives every captured sample before delay start, voice gating and encoding, null to disable
+     */
+    public void setPcmBroadcast(PcmBroadcastBuffer broadcast) {
+        mBroadcast = broadcast;
+    }
+
+    public PcmBroadcastBuffer getPcmBroadcast() {
+        return mBroadcast;
+    }
+
+    /**
+     * @param keepSourceActiveOnPause true to keep the source capturing and discard its samples while paused,
+     *                                resuming then takes one read instead of restarting the source
+     */
+    public void setKeepSourceActiveOnPause(boolean keepSourceActiveOnPause) {
+        mKeepSourceActiveOnPause = keepSourceActiveOnPause;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Start capturing, or resume if already started.
+     */
+    public void start() {
+        if (mCaptureThread != null) {
+            resume();
+            return;
+        }
+        mSource.start();
+        mEncoder.start();
+
+        if (mEncoderThread.getState() == Thread.State.NEW) {
+            mEncoderThread.start();
+        }
+
+        mCaptureThread = new Thread("RecordingThread") {
+            @Override
+            public void run() {
+                capture();
+                LOG.logDebug("recording thread stopped");
+            }
+        };
+        mCaptureThread.start();
+    }
+
+    /**
+     * Stop capturing and wait until the capture thread has parked, the encoder keeps its state to be resumed.
+     * Samples read after the pause request are discarded.
+     */
+    public void pause() {
+        Thread captureThread = mCaptureThread;
+        synchronized (mPauseLock) {
+            if (mPaused || captureThread == null) {
+                return;
+            }
+            mPaused = true;
+        }
+        if (!mKeepSourceActiveOnPause) {
+            mSource.stop(); // also wakes up a blocked read
+        }
+        synchronized (mPauseLock) {
+            while (!mCapturePaused && !mStopRequested && captureThread.isAlive()) {
+                try {
+                    mPauseLock.wait(PAUSE_CHECK_INTERVAL);
+                } catch (InterruptedException e) {
+                    LOG.logWarn("interrupted while waiting for recording thread");
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Wake up the parked capture thread, the encoder timeline continues where it paused.
+     */
+    public void resume() {
+        synchronized (mPauseLock) {
+            if (!mPaused) {
+                return;
+            }
+            mResumeRequestTime = System.nanoTime();
+            if (!mKeepSourceActiveOnPause) {
+                mSource.start();
+            }
+            mCapturePaused = false;
+            mPaused = false;
+            mPauseLock.notifyAll();
+        }
+    }
+
+    /**
+     * Discard the last {@code duration} of the encoded audio and go on recording right after what is kept.
+     * Capturing is paused meanwhile, the audio queued for the encoder is drained and what the encoder took is padded
+     * with silence to a whole AAC frame, then the output is cut back to the frame boundary at or before
+     * {@code duration} ago, without re-encoding.
+     * The current position moves back by the removed audio.
+     *
+     * @param duration length of audio to discard, time unit is ms
+     * @return length of audio actually discarded, time unit is ms
+     * @throws IllegalStateException if no rollback sink is set or the pipeline is stopping
+     */
+    public int rollback(int duration) throws IOException {
+        if (mRollbackSink == null) {
+            throw new IllegalStateException("rollback needs a rollback sink");
+        }
+        if (mStopRequested) {
+            throw new IllegalStateException("pipeline is stopping");
+        }
+        boolean capturing = isCapturing();
+        pause();
+        try {
+            int frameSamples = SAMPLES_PER_AAC_FRAME * mSource.getChannels();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ROLLBACK_OFFER_TIMEOUT);
+            awaitEncoderInput(deadline);
+            discountDroppedSamples();
+            long keptSamples = mKeptSamples;
+            long encodedSamples = padToFrame(frameSamples, deadline);
+            long target = Math.max(0, keptSamples - (long) duration * mSamplesPerSecond / 1000);
+            long keepFrames = target / frameSamples;
+            long removed = keptSamples - keepFrames * frameSamples;
+            // encoder frames are counted from what the encoder took, frames it dropped never produced output
+            mRollbackSink.rollback(encodedSamples / frameSamples, keepFrames);
+            mKeptSamples = keepFrames * frameSamples;
+            mCapturedSamples = Math.max(0, mCapturedSamples - removed);
+            mMaxDurationReported = false;
+            // the analyses saw what the encoder took, the padding included, so they cut where the output does
+            if (mWaveform != null) {
+                mWaveform.truncate(mWaveformStart + mKeptSamples);
+            }
+            if (mEnergyIndex != null) {
+                mEnergyIndex.truncate((int) keepFrames);
+            }
+            if (mLoudnessMeter != null && removed > 0) {
+                mLoudnessMeter.invalidate();
+            }
+            LOG.logDebug("rolled back " + removed + " samples, kept " + keepFrames + " frames");
+            return (int) (removed * 1000 / mSamplesPerSecond);
+        } finally {
+            if (capturing) {
+                resume();
+            }
+        }
+    }
+
+    /**
+     * Fill the last frame the encoder took with silence, capture thread paused and encoder input drained.
+     * Padding the encoder drops is offered again.
+     *
+     * @return number of samples the encoder took, a whole number of frames
+     */
+    private long padToFrame(int frameSamples, long deadline) throws IOException {
+        long encoded = mEncoderThread.getEncodedSampleCount();
+        int padding;
+        while ((padding = (int) ((frameSamples - encoded % frameSamples) % frameSamples)) > 0) {
+            int count = Math.min(padding, mEncodePCMBuffer.length);
+            Arrays.fill(mEncodePCMBuffer, 0, count, (short) 0);
+            if (mEncoderQueue.offer(mEncodePCMBuffer, 0, count)) {
+                mEncoderThread.signal();
+                mOfferedSamples += count;
+                awaitEncoderInput(deadline);
+                encoded = mEncoderThread.getEncodedSampleCount();
+            } else if (System.nanoTime() < deadline) {
+                mEncoderThread.signal();
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(PAUSE_CHECK_INTERVAL));
+            } else {
+                throw new IOException("encoder queue did not take the padding in " + ROLLBACK_OFFER_TIMEOUT + "ms");
+            }
+        }
+        // dropped padding was never counted in mKeptSamples or mCapturedSamples
+        mDiscountedSamples = mEncoderThread.getDroppedSampleCount();
+        return encoded;
+    }
+
+    /**
+     * Wait until the encoder thread took or dropped every sample offered, capture thread paused.
+     */
+    private void awaitEncoderInput(long deadline) throws IOException {
+        while (mEncoderThread.getEncodedSampleCount() + mEncoderThread.getDroppedSampleCount() < mOfferedSamples) {
+            if (System.nanoTime() >= deadline) {
+                throw new IOException("encoder did not take the queued audio in " + ROLLBACK_OFFER_TIMEOUT + "ms");
+            }
+            mEncoderThread.signal();
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(PAUSE_CHECK_INTERVAL));
+        }
+    }
+
+    /**
+     * Take audio the encoder thread dropped off the kept samples and the position, it never reaches the output.
+     */
+    private void discountDroppedSamples() {
+        long dropped = mEncoderThread.getDroppedSampleCount();
+        if (dropped != mDiscountedSamples) {
+            long lost = dropped - mDiscountedSamples;
+            mDiscountedSamples = dropped;
+            mKeptSamples -= lost;
+            mCapturedSamples = Math.max(0, mCapturedSamples - lost);
+        }
+    }
+
+    public boolean isCapturing() {
+        Thread captureThread = mCaptureThread;
+        return captureThread != null && captureThread.isAlive() && !mPaused;
+    }
+
+    /**
+     * Stop capturing, let the encoder thread drain the queued frames and finalize the sink.
+     * If the threads have not drained within {@code timeout} the frames still queued are dropped,
+     * finalizing the sink is not bounded by the timeout. If the encoder thread does not even stop then, the encoder
+     * is aborted and cut off from the sink, the sink is only finalized if no frame is being written to it.
+     *
+     * @param timeout max time to wait for the capture and encoder threads, time unit is ms
+     * @return measured drain and finalize time
+     */
+    public StopReport stop(long timeout) {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+        boolean timedOut = false;
+
+        synchronized (mPauseLock) {
+            mStopRequested = true;
+            mPauseLock.notifyAll();
+        }
+        mSource.stop();
+        if (!joinUntil(mCaptureThread, deadline)) {
+            LOG.logWarn("recording thread did not stop in " + timeout + "ms");
+            timedOut = true;
+        }
+
+        boolean encoderStopped = true;
+        if (mEncoderThread.getState() != Thread.State.NEW) {
+            mEncoderThread.finish();
+            if (!joinUntil(mEncoderThread, deadline)) {
+                LOG.logWarn("encoder thread did not drain in " + timeout + "ms, drop queued frames");
+                timedOut = true;
+                mEncoderThread.abort();
+                encoderStopped = joinUntil(mEncoderThread, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ABORT_GRACE_TIME));
+            }
+        }
+        if (encoderStopped && mWaveform != null) {
+            mWaveform.finish();
+        }
+        boolean sinkDetached = true;
+        if (!encoderStopped) {
+            // the encoder threads must not reach the sink or the codec once they are closed or reused by others
+            LOG.logError("encoder thread is stuck, abort the encoder");
+            mEncoder.abort();
+            sinkDetached = mTimedSink == null || mTimedSink.detach(ABORT_GRACE_TIME);
+        }
+        long drained = System.nanoTime();
+
+        Exception error = null;
+        try {
+            if (encoderStopped) {
+                mEncoder.flush();
+            }
+            if (mSink != null && sinkDetached) {
+                mSink.close();
+            } else if (mSink != null) {
+                // closing would hand the sink's buffers back to the pool while the encoder writes to them
+                error = new IOException("encoder is still writing, the output is left unfinished");
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (IllegalArgumentException e) {
+            error = e;
+        }
+        long finalized = System.nanoTime();
+
+        LOG.logDebug(getStatistics());
+        return new StopReport(TimeUnit.NANOSECONDS.toMillis(drained - start),
+                TimeUnit.NANOSECONDS.toMillis(finalized - drained), timedOut, getDroppedFrameCount(), error);
+    }
+
+    /**
+     * @return true if the thread is not running anymore
+     */
+    private static boolean joinUntil(Thread thread, long deadline) {
+        if (thread == null || thread.getState() == Thread.State.NEW) {
+            return true;
+        }
+        long remaining = deadline - System.nanoTime();
+        try {
+            while (thread.isAlive() && remaining > 0) {
+                TimeUnit.NANOSECONDS.timedJoin(thread, remaining);
+                remaining = deadline - System.nanoTime();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !thread.isAlive();
+    }
+
+    public void release() {
+        mEncoder.release();
+        mSource.release();
+        mPendingSamples.clear();
+        if (mPreRollSamples != null) {
+            mPreRollSamples.clear();
+        }
+    }
+
+    /**
+     * Tell pause() the capture thread has stopped consuming samples, then wait for resume or stop
+     * unless the source keeps capturing while paused.
+     */
+    private void parkWhilePaused() {
+        synchronized (mPauseLock) {
+            mCapturePaused = true;
+            mPauseLock.notifyAll();
+            while (mPaused && !mStopRequested && !mKeepSourceActiveOnPause) {
+                try {
+                    mPauseLock.wait();
+                } catch (InterruptedException e) {
+                    LOG.logWarn("recording thread interrupted while paused");
+                    return;
+                }
+            }
+        }
+    }
+
+    private void capture() {
+        int read;
+        while (!mStopRequested) {
+            if (mPaused) {
+                parkWhilePaused();
+                if (!mKeepSourceActiveOnPause) {
+                    continue;
+                }
+            }
+            if (!mSource.isActive()) {
+                // the source is restarting or failed, wait instead of spinning on failed reads
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(PAUSE_CHECK_INTERVAL));
+                continue;
+            }
+
+            long start = System.nanoTime();
+            read = mSource.read(mInputPCMBuffer, 0, mReadSize);
+            long readDone = System.nanoTime();
+            mReadTimer.record(readDone - start);
+            mReadCount++;
+            if (read < 0) {
+                mReadErrors++;
+                continue;
+            }
+            mReadSizes.record(read);
+            if (read == 0 || mPaused) {
+                continue;
+            }
+            long resumeRequestTime = mResumeRequestTime;
+            if (resumeRequestTime != 0) {
+                mResumeRequestTime = 0;
+                mResumeTimer.record(readDone - resumeRequestTime);
+            }
+
+            mLevelMeter.update(mInputPCMBuffer, 0, read);
+            long meterDone = System.nanoTime();
+            mMeterTimer.record(meterDone - readDone);
+
+            if (mBroadcast != null) {
+                mBroadcast.write(mInputPCMBuffer, 0, read);
+            }
+
+            if (mVoiceDetectionMode == VoiceActivityDetector.MODE_OFF) {
+                mEvictedSamples += mPendingSamples.write(mInputPCMBuffer, 0, read);
+            } else {
+                // whole frames reach mPendingSamples through onVoiceFrame
+                mVoiceDetector.process(mInputPCMBuffer, 0, read);
+                mVoiceDetectTimer.record(System.nanoTime() - meterDone);
+            }
+
+            //it may cause jitter in current position here if pending buffer is long.
+            discountDroppedSamples();
+            while (!mPendingSamples.isEmpty()) {
+                int count = mPendingSamples.read(mEncodePCMBuffer, 0, mEncodePCMBuffer.length);
+                mCapturedSamples += count;
+                int position = getCurrentPosition();
+                if (position < mDelayStart) {
+                    continue;
+                }
+
+                if (mMaxDuration != MAX_DURATION_INFINITE && position >= mMaxDuration) {
+                    if (!mMaxDurationReported) {
+                        mMaxDurationReported = true;
+                        if (mListener != null) {
+                            mListener.onMaxDurationReached(this);
+                        }
+                    }
+                    continue;
+                }
+
+                if (mEncoderQueue.offer(mEncodePCMBuffer, 0, count)) {
+                    mEncoderThread.signal();
+                    mOfferedSamples += count;
+                    mKeptSamples += count;
+                } else {
+                    // the queue is full, this audio never reaches the output
+                    mCapturedSamples -= count;
+                }
+            }
+        }
+    }
+
+    /**
+     * Feed the analyses of the output, encoder thread only.
+     */
+    private void analyzeEncoded(short[] pcm, int offset, int count) {
+        if (mWaveform != null) {
+            mWaveform.append(pcm, offset, count);
+        }
+        if (mLoudnessMeter != null) {
+            mLoudnessMeter.update(pcm, offset, count);
+        }
+        if (mEnergyIndex != null) {
+            mEnergyIndex.update(pcm, offset, count);
+        }
+    }
+
+    private void onVoiceFrame(short[] frame, int offset, int count, long frameIndex, boolean voice) {
+        if (voice != mVoiceActive) {
+            mVoiceActive = voice;
+            if (mListener != null) {
+                mListener.onVoiceActivityChanged(this, voice);
+            }
+        }
+        if (mVoiceActivityListener != null) {
+            mVoiceActivityListener.onFrame(frame, offset, count, frameIndex, voice);
+        }
+
+        if (mVoiceDetectionMode != VoiceActivityDetector.MODE_GATE) {
+            mEvictedSamples += mPendingSamples.write(frame, offset, count);
+        } else if (voice) {
+            if (mPreRollSamples != null) {
+                while (!mPreRollSamples.isEmpty()) {
+                    int preRoll = mPreRollSamples.read(mEncodePCMBuffer, 0, mEncodePCMBuffer.length);
+                    mEvictedSamples += mPendingSamples.write(mEncodePCMBuffer, 0, preRoll);
+                }
+            }
+            mEvictedSamples += mPendingSamples.write(frame, offset, count);
+        } else if (mPreRollSamples != null) {
+            mGatedSamples += mPreRollSamples.write(frame, offset, count);
+        } else {
+            mGatedSamples += count;
+        }
+    }
+
+    /**
+     * Level based voice detection for blow-into-the-mic style UI, the capture path uses {@link VoiceActivityDetector}.
+     */
+    public boolean detectVoice(final double volume) {
+        //Use the detect user blow algorithm from http://mobileorchard.com/tutorial-detecting-when-a-user-blows-into-the-mic/
+        final double factorOfPower = Math.pow(10, 0.05 /* Is the constant convert db to ampl level 1/20 not FILTER_FACTOR */ * volume);
+        mVoiceFilteredResults = FILTER_FACTOR * factorOfPower + (1.0 - FILTER_FACTOR) * mVoiceFilteredResults;
+        return mVoiceFilteredResults > DEFAULT_VOICE_THRESHOLD;
+    }
+
+    /**
+     * Get current recording position, time unit is millisecond
+     *
+     * @return current position
+     */
+    public int getCurrentPosition() {
+        return (int) (mCapturedSamples * 1000 / mSamplesPerSecond);
+    }
+
+    public double getPeakVolumeDb() {
+        return mLevelMeter.getPeakDb();
+    }
+
+    public double getRMSVolumeDb() {
+        return mLevelMeter.getRmsDb();
+    }
+
+    /**
+     * @return meter of the captured audio, safe to poll from the UI thread
+     */
+    public LevelMeter getLevelMeter() {
+        return mLevelMeter;
+    }
+
+    /**
+     * @return true if the voice activity detector reported voice for the last frame
+     */
+    public boolean isVoiceActive() {
+        return mVoiceDetectionMode != VoiceActivityDetector.MODE_OFF && mVoiceDetector.isVoice();
+    }
+
+    /**
+     * @return number of samples skipped because no voice was detected
+     */
+    public long getGatedSampleCount() {
+        return mGatedSamples;
+    }
+
+    /**
+     * @return frames dropped by the capture thread plus frames rejected by the encoder
+     */
+    public long getDroppedFrameCount() {
+        return mEncoderQueue.getDroppedFrameCount() + mEncoderThread.getDroppedFrameCount();
+    }
+
+    /**
+     * Copy the current counters and stage latencies into {@code metrics} without locking, any thread.
+     */
+    public void readMetrics(RecorderMetrics metrics) {
+        metrics.mCapturedSamples = mCapturedSamples;
+        metrics.mReadCount = mReadCount;
+        metrics.mReadErrors = mReadErrors;
+        metrics.mReadSizeP50 = mReadSizes.getValueAtPercentile(50);
+        metrics.mReadSizeMin = mReadSizes.getValueAtPercentile(0);
+        metrics.mEvictedSamples = mEvictedSamples;
+        metrics.mGatedSamples = mGatedSamples;
+        metrics.mQueueDepth = mEncoderQueue.size();
+        metrics.mMaxQueueDepth = mEncoderQueue.getMaxDepth();
+        metrics.mQueueCapacity = mEncoderQueue.capacity();
+        metrics.mQueueDroppedFrames = mEncoderQueue.getDroppedFrameCount();
+        metrics.mEncoderDroppedFrames = mEncoderThread.getDroppedFrameCount();
+        metrics.mSlowFrames = mEncoderThread.getSlowFrameCount();
+        metrics.mEncodedBytes = mEncodedBytes.get();
+        metrics.mDrainTime = -1;
+        metrics.mFinalizeTime = -1;
+        metrics.setStage(RecorderMetrics.STAGE_READ, mReadTimer);
+        metrics.setStage(RecorderMetrics.STAGE_METER, mMeterTimer);
+        metrics.setStage(RecorderMetrics.STAGE_VOICE_DETECT, mVoiceDetectTimer);
+        metrics.setStage(RecorderMetrics.STAGE_ENCODE, getEncodeTimer());
+        metrics.setStage(RecorderMetrics.STAGE_MUX, mMuxTimer);
+        metrics.setStage(RecorderMetrics.STAGE_RESUME, mResumeTimer);
+    }
+
+    public StageTimer getReadTimer() {
+        return mReadTimer;
+    }
+
+    public StageTimer getMeterTimer() {
+        return mMeterTimer;
+    }
+
+    public StageTimer getVoiceDetectTimer() {
+        return mVoiceDetectTimer;
+    }
+
+    public StageTimer getEncodeTimer() {
+        return mEncoderThread.getEncodeTimer();
+    }
+
+    public StageTimer getMuxTimer() {
+        return mMuxTimer;
+    }
+
+    /**
+     * @return time from each resume request until the first samples are read again
+     */
+    public StageTimer getResumeTimer() {
+        return mResumeTimer;
+    }
+
+    public String getStatistics() {
+        return "captured " + mCapturedSamples + " samples, encoded " + mEncoderThread.getEncodedFrameCount()
+                + " frames, gated " + mGatedSamples + " samples, evicted " + mEvictedSamples
+                + " samples, read errors " + mReadErrors + ", dropped " + mEncoderQueue.getDroppedFrameCount() + " in queue and "
+                + mEncoderThread.getDroppedFrameCount() + " in encoder, slow frames "
+                + mEncoderThread.getSlowFrameCount() + ", max queue depth " + mEncoderQueue.getMaxDepth()
+                + ", " + mReadTimer + ", " + mMeterTimer + ", " + mVoiceDetectTimer + ", "
+                + getEncodeTimer() + ", " + mMuxTimer + ", " + mResumeTimer;
+    }
+
+    private class TimedSink implements EncodedFrameSink {
+        private final EncodedFrameSink mTarget;
+        private final ReentrantLock mLock = new ReentrantLock();
+        private boolean mDetached; // guarded by mLock
+
+        TimedSink(EncodedFrameSink target) {
+            mTarget = target;
+        }
+
+        @Override
+        public void writeFrame(ByteBuffer frame, long presentationTimeUs) throws IOException {
+            mLock.lock();
+            try {
+                if (mDetached) {
+                    return;
+                }
+                long start = System.nanoTime();
+                mEncodedBytes.lazySet(mEncodedBytes.get() + frame.remaining());
+                mTarget.writeFrame(frame, presentationTimeUs);
+                mMuxTimer.record(System.nanoTime() - start);
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        /**
+         * Drop every later frame instead of writing it to the target.
+         *
+         * @param timeout max time to wait for a frame being written, time unit is ms
+         * @return false if a frame was still being written to the target after {@code timeout}
+         */
+        boolean detach(long timeout) {
+            try {
+                if (!mLock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            try {
+                mDetached = true;
+            } finally {
+                mLock.unlock();
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mTarget.close();
+        }
+    }
+}
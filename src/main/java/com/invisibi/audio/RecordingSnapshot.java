@@ -0,0 +1,200 @@
+package com.invisibi.audio;
+
+import com.googlecode.mp4parser.DataSource;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The part of a recording in progress which is in its ADTS file, for playing back and scrubbing while recording.
+ * Published by {@link AdtsFileSink} after every write to the file, so taking one costs the writer no lock.
+ * The file only grows past {@link #getByteLength()} while recording, the frames of a snapshot stay as they are
+ * unless the recording is rolled back before its end, see {@link #isStale()}, or the sink is closed.
+ * Readers open the file themselves, e.g. with {@link #openDataSource()} for
+ * {@link com.googlecode.mp4parser.authoring.tracks.AACTrackImpl}, or give MediaPlayer its path with offset 0
+ * and {@link #getByteLength()} as length.
+ */
+public class RecordingSnapshot {
+
+    private static final int SAMPLES_PER_AAC_FRAME = 1024;
+
+    private final AdtsFileSink mSink;
+    private final String mFilePath;
+    private final int mSampleRate;
+    private final int mFrameCount;
+    private final long mByteLength;
+    private final long[] mFrameOffsets; // shared with the sink, only entries below mFrameCount are read
+    private final int mGeneration;
+
+    RecordingSnapshot(AdtsFileSink sink, String filePath, int sampleRate, int frameCount, long byteLength,
+                      long[] frameOffsets, int generation) {
+        mSink = sink;
+        mFilePath = filePath;
+        mSampleRate = sampleRate;
+        mFrameCount = frameCount;
+        mByteLength = byteLength;
+        mFrameOffsets = frameOffsets;
+        mGeneration = generation;
+    }
+
+    /**
+     * @return the ADTS file being recorded, it is moved or deleted when the recording stops
+     */
+    public String getFilePath() {
+        return mFilePath;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * @return number of complete frames in the file
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return length of the complete frames, headers included, later bytes of the file must not be read
+     */
+    public long getByteLength() {
+        return mByteLength;
+    }
+
+    /**
+     * @return file offset of the ADTS header of a frame
+     */
+    public long getFrameOffset(int frame) {
+        if (frame < 0 || frame >= mFrameCount) {
+            throw new IndexOutOfBoundsException("frame " + frame + " of " + mFrameCount);
+        }
+        return mFrameOffsets[frame];
+    }
+
+    /**
+     * @return length of a frame, header included
+     */
+    public int getFrameLength(int frame) {
+        long end = frame + 1 < mFrameCount ? mFrameOffsets[frame + 1] : mByteLength;
+        return (int) (end - getFrameOffset(frame));
+    }
+
+    /**
+     * @return duration of the complete frames, time unit is ms
+     */
+    public long getDuration() {
+        return (long) mFrameCount * SAMPLES_PER_AAC_FRAME * 1000 / mSampleRate;
+    }
+
+    /**
+     * @param position time unit is ms
+     * @return the frame playing at {@code position}, the last frame beyond the end
+     */
+    public int getFrameAt(long position) {
+        long frame = Math.max(0, position) * mSampleRate / 1000 / SAMPLES_PER_AAC_FRAME;
+        return (int) Math.min(frame, Math.max(0, mFrameCount - 1));
+    }
+
+    /**
+     * Check after reading, if still false what was read belongs to this snapshot.
+     *
+     * @return true if the recording was rolled back since, frames of this snapshot may have been overwritten then
+     */
+    public boolean isStale() {
+        return mSink.getGeneration() != mGeneration;
+    }
+
+    /**
+     * Open the file limited to the frames of this snapshot. Reads go through a file channel of their own,
+     * nothing is memory mapped since a rollback truncates the file.
+     */
+    public DataSource openDataSource() throws IOException {
+        return new SnapshotDataSource(new FileInputStream(mFilePath).getChannel(), mByteLength, mFilePath);
+    }
+
+    @Override
+    public String toString() {
+        return "RecordingSnapshot{frames=" + mFrameCount + ", bytes=" + mByteLength + ", duration=" + getDuration()
+                + "ms}";
+    }
+
+    private static class SnapshotDataSource implements DataSource {
+
+        private final FileChannel mChannel;
+        private final long mSize;
+        private final String mName;
+
+        SnapshotDataSource(FileChannel channel, long size, String name) {
+            mChannel = channel;
+            mSize = size;
+            mName = name;
+        }
+
+        @Override
+        public int read(ByteBuffer byteBuffer) throws IOException {
+            long remaining = mSize - mChannel.position();
+            if (remaining <= 0) {
+                return -1;
+            }
+            if (byteBuffer.remaining() <= remaining) {
+                return mChannel.read(byteBuffer);
+            }
+            int limit = byteBuffer.limit();
+            byteBuffer.limit(byteBuffer.position() + (int) remaining);
+            try {
+                return mChannel.read(byteBuffer);
+            } finally {
+                byteBuffer.limit(limit);
+            }
+        }
+
+        @Override
+        public long size() {
+            return mSize;
+        }
+
+        @Override
+        public long position() throws IOException {
+            return mChannel.position();
+        }
+
+        @Override
+        public void position(long nuPos) throws IOException {
+            mChannel.position(nuPos);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return mChannel.transferTo(position, Math.max(0, Math.min(count, mSize - position)), target);
+        }
+
+        @Override
+        public ByteBuffer map(long startPosition, long size) throws IOException {
+            if (startPosition < 0 || size < 0 || startPosition + size > mSize) {
+                throw new IOException("cannot map " + size + " bytes at " + startPosition + " of " + mSize);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (mChannel.read(buffer, startPosition + buffer.position()) < 0) {
+                    throw new IOException(mName + " was truncated");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mChannel.close();
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.invisibi.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Lets a recording discard its last frames while it goes on, see {@link RecorderPipeline#rollback(int)}.
+ * Frames are numbered in the order the encoder emits them. A rollback truncates what the target already holds
+ * and drops frames the encoder has yet to emit for audio captured before the rollback, then later frames are
+ * appended right after the kept ones with their presentation time moved back accordingly.
+ */
+public class RollbackFrameSink implements EncodedFrameSink {
+
+    private static final int SAMPLES_PER_AAC_FRAME = 1024;
+
+    private final TruncatableFrameSink mTarget;
+    private final int mSampleRate;
+    // ranges of encoder frames to drop on arrival, ascending, {start, end}
+    private final List<long[]> mDropRanges = new ArrayList<long[]>();
+    private long mIncomingFrames;
+    private long mDroppedFrames;
+
+    public RollbackFrameSink(TruncatableFrameSink target, int sampleRate) {
+        mTarget = target;
+        mSampleRate = sampleRate;
+    }
+
+    @Override
+    public synchronized void writeFrame(ByteBuffer frame, long presentationTimeUs) throws IOException {
+        long index = mIncomingFrames++;
+        while (!mDropRanges.isEmpty() && mDropRanges.get(0)[1] <= index) {
+            mDropRanges.remove(0);
+        }
+        if (!mDropRanges.isEmpty() && mDropRanges.get(0)[0] <= index) {
+            mDroppedFrames++;
+            return;
+        }
+        mTarget.writeFrame(frame, mTarget.getFrameCount() * SAMPLES_PER_AAC_FRAME * 1000000L / mSampleRate);
+    }
+
+    /**
+     * Keep only the first {@code keepFrames} of the frames up to encoder frame {@code encoderFrame}, frames the
+     * encoder emits from {@code encoderFrame} on are appended after them.
+     *
+     * @param encoderFrame number of frames the encoder will have emitted for the audio before the rollback
+     * @param keepFrames   number of frames the output keeps of that audio
+     */
+    public synchronized void rollback(long encoderFrame, long keepFrames) throws IOException {
+        encoderFrame = Math.max(encoderFrame, mIncomingFrames);
+        long written = mTarget.getFrameCount();
+        long pendingKept = encoderFrame - mIncomingFrames;
+        for (long[] range : mDropRanges) {
+            pendingKept -= Math.max(0, Math.min(range[1], encoderFrame) - Math.max(range[0], mIncomingFrames));
+        }
+        if (keepFrames >= written + pendingKept) {
+            return;
+        }
+        long firstDropped;
+        if (keepFrames <= written) {
+            mTarget.truncate(Math.max(0, keepFrames));
+            firstDropped = mIncomingFrames;
+        } else {
+            // skip the pending frames still kept, already dropped ones do not count
+            firstDropped = mIncomingFrames;
+            long kept = 0;
+            Iterator<long[]> ranges = mDropRanges.iterator();
+            long[] range = ranges.hasNext() ? ranges.next() : null;
+            while (true) {
+                if (range != null && firstDropped >= range[0]) {
+                    firstDropped = Math.max(firstDropped, range[1]);
+                    range = ranges.hasNext() ? ranges.next() : null;
+                    continue;
+                }
+                if (kept == keepFrames - written) {
+                    break;
+                }
+                firstDropped++;
+                kept++;
+            }
+        }
+        Iterator<long[]> ranges = mDropRanges.iterator();
+        while (ranges.hasNext()) {
+            if (ranges.next()[1] > firstDropped) {
+                ranges.remove();
+            }
+        }
+        mDropRanges.add(new long[]{firstDropped, encoderFrame});
+    }
+
+    /**
+     * @return number of frames written to the target
+     */
+    public synchronized long getFrameCount() {
+        return mTarget.getFrameCount();
+    }
+
+    /**
+     * @return number of frames dropped on arrival, frames truncated from the target are not counted
+     */
+    public synchronized long getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mTarget.close();
+    }
+}
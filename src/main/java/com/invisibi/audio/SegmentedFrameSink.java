@@ -0,0 +1,223 @@
+package com.invisibi.audio;
+
+import com.googlecode.mp4parser.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Split the encoded audio into consecutive segments, each written by its own {@link EncodedFrameSink}.
+ * A segment is closed once it reaches the max duration or size, always between two AAC frames, and the next frame
+ * already goes to the next segment, so segments play back to back without a gap.
+ * Closing a finished segment, e.g. converting its aac file to mp4, runs on the finalize executor while
+ * recording continues, only the last segment is finalized by {@link #close()}.
+ */
+public class SegmentedFrameSink implements EncodedFrameSink {
+
+    private static final Logger LOG = Logger.getLogger(SegmentedFrameSink.class);
+
+    /**
+     * Creates the sink of every segment, called on the thread writing frames.
+     */
+    public interface SegmentFactory {
+        /**
+         * @param index number of segments created before this one
+         */
+        EncodedFrameSink createSegment(int index) throws IOException;
+    }
+
+    /**
+     * Interface definition for a callback when a segment is finalized, called on the finalize executor
+     * or the thread calling {@link #close()}.
+     */
+    public interface Listener {
+        /**
+         * @param index     index of the segment
+         * @param startTime presentation time of the first frame of the segment within the recording, time unit is microsecond
+         * @param duration  duration of the segment, time unit is microsecond
+         * @param error     the error closing the segment, null if it was finalized
+         */
+        void onSegmentFinished(int index, long startTime, long duration, IOException error);
+    }
+
+    private final SegmentFactory mFactory;
+    private final Executor mFinalizeExecutor;
+    private final long mMaxDurationUs;
+    private final long mMaxSize;
+    private final long mFrameDurationUs;
+    private final List<FutureTask<Void>> mFinalizing = new ArrayList<FutureTask<Void>>();
+    private volatile Listener mListener;
+
+    private EncodedFrameSink mSegment;
+    private int mSegmentIndex = -1;
+    private long mSegmentStartUs;
+    private long mSegmentSize;
+    private long mLastPresentationTimeUs;
+    private boolean mClosed;
+
+    /**
+     * @param maxDuration      max duration of a segment, time unit is ms, 0 for no limit
+     * @param maxSize          max encoded size of a segment, time unit is byte, container overhead excluded,
+     *                         0 for no limit
+     * @param finalizeExecutor runs the close of every segment but the last one
+     */
+    public SegmentedFrameSink(SegmentFactory factory, int sampleRate, long maxDuration, long maxSize,
+                              Executor finalizeExecutor) {
+        mFactory = factory;
+        mFinalizeExecutor = finalizeExecutor;
+        mMaxDurationUs = maxDuration > 0 ? maxDuration * 1000 : Long.MAX_VALUE;
+        mMaxSize = maxSize > 0 ? maxSize : Long.MAX_VALUE;
+        mFrameDurationUs = AsyncCodecAudioEncoder.SAMPLES_PER_AAC_FRAME * 1000000L / sampleRate;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Write one raw AAC frame to the current segment, presentation times restart at 0 in every segment.
+     */
+    @Override
+    public void writeFrame(ByteBuffer frame, long presentationTimeUs) throws IOException {
+        if (mClosed) {
+            throw new IllegalStateException("segmented sink is already closed");
+        }
+        int size = frame.remaining();
+        if (mSegment == null) {
+            openSegment(presentationTimeUs);
+        } else if (presentationTimeUs - mSegmentStartUs >= mMaxDurationUs || mSegmentSize + size > mMaxSize) {
+            finishSegment(false);
+            openSegment(presentationTimeUs);
+        }
+        mSegment.writeFrame(frame, presentationTimeUs - mSegmentStartUs);
+        mSegmentSize += size;
+        mLastPresentationTimeUs = presentationTimeUs;
+    }
+
+    private void openSegment(long presentationTimeUs) throws IOException {
+        mSegmentIndex++;
+        mSegment = mFactory.createSegment(mSegmentIndex);
+        mSegmentStartUs = presentationTimeUs;
+        mSegmentSize = 0;
+        LOG.logDebug("segment " + mSegmentIndex + " started at " + presentationTimeUs / 1000 + "ms");
+    }
+
+    /**
+     * Close the current segment, in the background unless it is the last one.
+     */
+    private void finishSegment(boolean last) throws IOException {
+        final EncodedFrameSink segment = mSegment;
+        final int index = mSegmentIndex;
+        final long startUs = mSegmentStartUs;
+        final long durationUs = mLastPresentationTimeUs - mSegmentStartUs + mFrameDurationUs;
+        mSegment = null;
+        if (last) {
+            closeSegment(segment, index, startUs, durationUs);
+            return;
+        }
+        FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    closeSegment(segment, index, startUs, durationUs);
+                } catch (IOException e) {
+                    LOG.logError("cannot finalize segment " + index + ", reason = " + e.getMessage());
+                }
+            }
+        }, null);
+        synchronized (mFinalizing) {
+            for (Iterator<FutureTask<Void>> it = mFinalizing.iterator(); it.hasNext(); ) {
+                if (it.next().isDone()) {
+                    it.remove();
+                }
+            }
+            mFinalizing.add(task);
+        }
+        mFinalizeExecutor.execute(task);
+    }
+
+    private void closeSegment(EncodedFrameSink segment, int index, long startUs, long durationUs) throws IOException {
+        long time = System.currentTimeMillis();
+        IOException error = null;
+        try {
+            segment.close();
+        } catch (IOException e) {
+            error = e;
+            throw e;
+        } finally {
+            LOG.logDebug("segment " + index + " finalized in " + (System.currentTimeMillis() - time) + "ms");
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onSegmentFinished(index, startUs, durationUs, error);
+            }
+        }
+    }
+
+    /**
+     * Wait until the earlier segments are finalized, then finalize the last one, so segments finish in order.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        awaitFinalizing();
+        if (mSegment != null) {
+            finishSegment(true);
+        }
+    }
+
+    private void awaitFinalizing() {
+        List<FutureTask<Void>> tasks;
+        synchronized (mFinalizing) {
+            tasks = new ArrayList<FutureTask<Void>>(mFinalizing);
+            mFinalizing.clear();
+        }
+        boolean interrupted = false;
+        for (FutureTask<Void> task : tasks) {
+            while (true) {
+                try {
+                    task.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    LOG.logError("segment finalizing failed, " + e.getCause());
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return number of segments started so far
+     */
+    public int getSegmentCount() {
+        return mSegmentIndex + 1;
+    }
+
+    /**
+     * Path of one segment derived from the output path, e.g. "talk.m4a" becomes "talk_002.m4a" for index 2.
+     */
+    public static String getSegmentPath(String outputFilePath, int index) {
+        String suffix = String.format(Locale.US, "_%03d", index);
+        int separator = outputFilePath.lastIndexOf(File.separatorChar);
+        int dot = outputFilePath.lastIndexOf('.');
+        if (dot <= separator + 1) {
+            return outputFilePath + suffix;
+        }
+        return outputFilePath.substring(0, dot) + suffix + outputFilePath.substring(dot);
+    }
+}
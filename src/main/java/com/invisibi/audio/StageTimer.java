@@ -0,0 +1,68 @@
+package com.invisibi.audio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processing time of one pipeline stage, with a {@link LogHistogram} for percentiles.
+ * Written by a single thread without locks, readable from any thread.
+ */
+public class StageTimer {
+
+    private final String mName;
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+    private final LogHistogram mHistogram = new LogHistogram();
+
+    public StageTimer(String name) {
+        mName = name;
+    }
+
+    /**
+     * Record one pass through the stage, owner thread only.
+     */
+    public void record(long nanos) {
+        mCount.lazySet(mCount.get() + 1);
+        mTotalNanos.lazySet(mTotalNanos.get() + nanos);
+        if (nanos > mMaxNanos.get()) {
+            mMaxNanos.lazySet(nanos);
+        }
+        mHistogram.record(nanos);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getTotalNanos() {
+        return mTotalNanos.get();
+    }
+
+    public long getMaxNanos() {
+        return mMaxNanos.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return processing time not exceeded by {@code percentile} percent of the passes, within 1/8
+     */
+    public long getPercentileNanos(double percentile) {
+        return Math.min(mHistogram.getValueAtPercentile(percentile), mMaxNanos.get());
+    }
+
+    public long getAverageNanos() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mTotalNanos.get() / count;
+    }
+
+    @Override
+    public String toString() {
+        return mName + "{count=" + getCount() + ", avg=" + getAverageNanos() / 1000 + "us, p50="
+                + getPercentileNanos(50) / 1000 + "us, p99=" + getPercentileNanos(99) / 1000 + "us, max="
+                + getMaxNanos() / 1000 + "us}";
+    }
+}
@@ -0,0 +1,96 @@
+package com.invisibi.audio;
+
+import com.googlecode.mp4parser.util.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Stand-in for the AAC encoder when running the pipeline off device. It cuts the input into
+ * 1024 sample frames and emits one frame per 1024 samples with the size a real encoder would
+ * produce at the configured bitrate, so muxing and disk load match a real recording.
+ * The payload is not decodable audio.
+ */
+public class StandInAACEncoder implements AudioEncoder {
+
+    private static final Logger LOG = Logger.getLogger(StandInAACEncoder.class);
+    private static final int SAMPLES_PER_AAC_FRAME = 1024;
+
+    private final int mSampleRate;
+    private final short[] mFrame;
+    private final ByteBuffer mOutput;
+    private EncodedFrameSink mSink;
+    private int mFrameFill;
+    private long mEncodedFrames;
+
+    public StandInAACEncoder(int sampleRate, int channels, int bitRate) {
+        mSampleRate = sampleRate;
+        mFrame = new short[SAMPLES_PER_AAC_FRAME * channels];
+        mOutput = ByteBuffer.allocate(Math.max(8, (int) ((long) bitRate * SAMPLES_PER_AAC_FRAME / 8 / sampleRate)));
+    }
+
+    @Override
+    public void setSink(EncodedFrameSink sink) {
+        mSink = sink;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public int encode(short[] pcm, int offset, int count) {
+        int taken = count;
+        while (count > 0) {
+            int copy = Math.min(count, mFrame.length - mFrameFill);
+            System.arraycopy(pcm, offset, mFrame, mFrameFill, copy);
+            mFrameFill += copy;
+            offset += copy;
+            count -= copy;
+            if (mFrameFill == mFrame.length) {
+                emitFrame();
+            }
+        }
+        return taken;
+    }
+
+    private void emitFrame() {
+        mOutput.clear();
+        int stride = Math.max(1, mFrame.length / mOutput.capacity());
+        for (int i = 0; mOutput.hasRemaining(); i = (i + stride) % mFrame.length) {
+            mOutput.put((byte) (mFrame[i] >> 8));
+        }
+        mOutput.flip();
+        long presentationTimeUs = mEncodedFrames * SAMPLES_PER_AAC_FRAME * 1000000L / mSampleRate;
+        mEncodedFrames++;
+        mFrameFill = 0;
+        if (mSink != null) {
+            try {
+                mSink.writeFrame(mOutput, presentationTimeUs);
+            } catch (IOException e) {
+                LOG.logError("cannot write audio data");
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (mFrameFill > 0) {
+            // pad the last partial frame with silence like an encoder would
+            for (int i = mFrameFill; i < mFrame.length; i++) {
+                mFrame[i] = 0;
+            }
+            emitFrame();
+        }
+    }
+
+    @Override
+    public void abort() {
+        // nothing is shared, the frame buffers stay with this encoder
+    }
+
+    @Override
+    public void release() {
+        mSink = null;
+    }
+}
@@ -0,0 +1,218 @@
+package com.invisibi.audio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for an AAC {@link AudioCodec} when running {@link AsyncCodecAudioEncoder} off device.
+ * It has a fixed number of input and output buffers like MediaCodec and emits one frame per 1024 samples
+ * per channel with the size a real encoder would produce at the configured bitrate, preceded by a format change
+ * and a codec config buffer. The payload is not decodable audio.
+ */
+public class StandInAudioCodec implements AudioCodec {
+
+    private static final int DEFAULT_BUFFER_COUNT = 4;
+    private static final int CODEC_CONFIG_SIZE = 2;
+
+    private final int mFrameSize; // samples, all channels
+    private final ByteBuffer[] mInputBuffers;
+    private final ByteBuffer[] mOutputBuffers;
+    private final BufferInfo[] mOutputInfos;
+    private final ArrayDeque<Integer> mFreeInputs = new ArrayDeque<Integer>();
+    private final ArrayDeque<Integer> mQueuedInputs = new ArrayDeque<Integer>();
+    private final ArrayDeque<Integer> mFreeOutputs = new ArrayDeque<Integer>();
+    private final ArrayDeque<Integer> mReadyOutputs = new ArrayDeque<Integer>();
+
+    private int mPendingSamples;
+    private boolean mFormatReported;
+    private boolean mConfigEmitted;
+    private boolean mEndOfStreamQueued;
+    private boolean mEndOfStreamEmitted;
+    private boolean mStarted;
+
+    public StandInAudioCodec(int sampleRate, int channels, int bitRate, int maxInputSize) {
+        this(sampleRate, channels, bitRate, maxInputSize, DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * @param maxInputSize size of each input buffer, time unit is byte
+     * @param bufferCount  number of input and of output buffers
+     */
+    public StandInAudioCodec(int sampleRate, int channels, int bitRate, int maxInputSize, int bufferCount) {
+        mFrameSize = AsyncCodecAudioEncoder.SAMPLES_PER_AAC_FRAME * channels;
+        int outputSize = Math.max(8, (int) ((long) bitRate * AsyncCodecAudioEncoder.SAMPLES_PER_AAC_FRAME / 8 / sampleRate));
+        mInputBuffers = new ByteBuffer[bufferCount];
+        mOutputBuffers = new ByteBuffer[bufferCount];
+        mOutputInfos = new BufferInfo[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            mInputBuffers[i] = ByteBuffer.allocateDirect(maxInputSize);
+            mOutputBuffers[i] = ByteBuffer.allocateDirect(outputSize);
+            mOutputInfos[i] = new BufferInfo();
+        }
+    }
+
+    @Override
+    public synchronized void start() {
+        if (mStarted) {
+            throw new IllegalStateException("codec is already started");
+        }
+        mStarted = true;
+        for (int i = 0; i < mInputBuffers.length; i++) {
+            mFreeInputs.add(i);
+            mFreeOutputs.add(i);
+        }
+    }
+
+    @Override
+    public synchronized int dequeueInputBuffer(long timeoutUs) {
+        checkStarted();
+        long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(timeoutUs);
+        while (mFreeInputs.isEmpty()) {
+            if (!await(deadline)) {
+                return INFO_TRY_AGAIN_LATER;
+            }
+        }
+        return mFreeInputs.poll();
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mInputBuffers[index];
+    }
+
+    @Override
+    public synchronized void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        checkStarted();
+        if (mEndOfStreamQueued) {
+            throw new IllegalStateException("input queued after end of stream");
+        }
+        mInputBuffers[index].position(offset).limit(offset + size);
+        mQueuedInputs.add(index);
+        mEndOfStreamQueued = (flags & BUFFER_FLAG_END_OF_STREAM) != 0;
+        process();
+    }
+
+    @Override
+    public synchronized int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+        checkStarted();
+        if (!mFormatReported) {
+            mFormatReported = true;
+            return INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(timeoutUs);
+        while (mReadyOutputs.isEmpty()) {
+            if (!await(deadline)) {
+                return INFO_TRY_AGAIN_LATER;
+            }
+        }
+        int index = mReadyOutputs.poll();
+        BufferInfo ready = mOutputInfos[index];
+        info.set(ready.offset, ready.size, ready.presentationTimeUs, ready.flags);
+        return index;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mOutputBuffers[index];
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index) {
+        mFreeOutputs.add(index);
+        process();
+    }
+
+    /**
+     * Turn queued input into output frames while output buffers are free, input buffers are freed once consumed.
+     */
+    private void process() {
+        if (!mConfigEmitted && !emit(CODEC_CONFIG_SIZE, BUFFER_FLAG_CODEC_CONFIG)) {
+            return;
+        }
+        mConfigEmitted = true;
+        while (!mQueuedInputs.isEmpty()) {
+            int input = mQueuedInputs.peek();
+            ByteBuffer buffer = mInputBuffers[input];
+            while (true) {
+                if (mPendingSamples == mFrameSize) {
+                    if (!emit(mOutputBuffers[0].capacity(), 0)) {
+                        return;
+                    }
+                    mPendingSamples = 0;
+                }
+                if (buffer.remaining() < 2) {
+                    break;
+                }
+                int samples = Math.min(buffer.remaining() / 2, mFrameSize - mPendingSamples);
+                buffer.position(buffer.position() + 2 * samples);
+                mPendingSamples += samples;
+            }
+            mQueuedInputs.poll();
+            mFreeInputs.add(input);
+            notifyAll();
+        }
+        if (mEndOfStreamQueued && !mEndOfStreamEmitted) {
+            // pad the last partial frame with silence like an encoder would
+            if (mPendingSamples > 0) {
+                if (!emit(mOutputBuffers[0].capacity(), 0)) {
+                    return;
+                }
+                mPendingSamples = 0;
+            }
+            if (emit(0, BUFFER_FLAG_END_OF_STREAM)) {
+                mEndOfStreamEmitted = true;
+            }
+        }
+    }
+
+    private boolean emit(int size, int flags) {
+        if (mFreeOutputs.isEmpty()) {
+            return false;
+        }
+        int index = mFreeOutputs.poll();
+        ByteBuffer output = mOutputBuffers[index];
+        output.clear();
+        for (int i = 0; i < size; i++) {
+            output.put(i, (byte) i);
+        }
+        mOutputInfos[index].set(0, size, 0, flags);
+        mReadyOutputs.add(index);
+        notifyAll();
+        return true;
+    }
+
+    private boolean await(long deadline) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            return false;
+        }
+        try {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    private void checkStarted() {
+        if (!mStarted) {
+            throw new IllegalStateException("codec is not started");
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        mStarted = false;
+        mFreeInputs.clear();
+        mQueuedInputs.clear();
+        mFreeOutputs.clear();
+        mReadyOutputs.clear();
+        notifyAll();
+    }
+
+    @Override
+    public void release() {
+    }
+}
@@ -0,0 +1,66 @@
+package com.invisibi.audio;
+
+/**
+ * Timing of a stop, from the stop request until the output file is finalized.
+ */
+public class StopReport {
+
+    private final long mDrainTime;
+    private final long mFinalizeTime;
+    private final boolean mTimedOut;
+    private final long mDroppedFrames;
+    private final Exception mError;
+
+    public StopReport(long drainTime, long finalizeTime, boolean timedOut, long droppedFrames, Exception error) {
+        mDrainTime = drainTime;
+        mFinalizeTime = finalizeTime;
+        mTimedOut = timedOut;
+        mDroppedFrames = droppedFrames;
+        mError = error;
+    }
+
+    /**
+     * @return time spent waiting for the capture and encoder threads to drain, time unit is ms
+     */
+    public long getDrainTime() {
+        return mDrainTime;
+    }
+
+    /**
+     * @return time spent flushing the encoder and finalizing the output file, time unit is ms
+     */
+    public long getFinalizeTime() {
+        return mFinalizeTime;
+    }
+
+    public long getTotalTime() {
+        return mDrainTime + mFinalizeTime;
+    }
+
+    /**
+     * @return true if the threads did not drain within the stop timeout and queued audio was dropped
+     */
+    public boolean isTimedOut() {
+        return mTimedOut;
+    }
+
+    /**
+     * @return frames lost during the whole recording, including the ones abandoned at stop
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * @return the error which prevented the output file from being written, null on success
+     */
+    public Exception getError() {
+        return mError;
+    }
+
+    @Override
+    public String toString() {
+        return "StopReport{drain=" + mDrainTime + "ms, finalize=" + mFinalizeTime + "ms, timedOut=" + mTimedOut
+                + ", dropped=" + mDroppedFrames + (mError == null ? "" : ", error=" + mError) + "}";
+    }
+}
@@ -0,0 +1,119 @@
+package com.invisibi.audio;
+
+import java.util.Random;
+
+/**
+ * Generate a sine tone mixed with white noise, for running the recording pipeline without a device.
+ * By default samples are produced as fast as they are read, {@link #setRealTime(boolean)} paces reads
+ * to the sample rate like a microphone.
+ */
+public class SyntheticPcmSource implements PcmSource {
+
+    private final int mSampleRate;
+    private final int mChannels;
+    private final double mPhaseStep;
+    private final double mToneAmplitude;
+    private final double mNoiseAmplitude;
+    private final Random mRandom = new Random(0);
+    private final long mTotalFrames;
+
+    private volatile boolean mActive;
+    private boolean mRealTime;
+    private long mGeneratedFrames;
+    private long mStartNanos;
+    private long mStartFrames;
+    private double mPhase;
+
+    /**
+     * @param sampleRate     sample rate
+     * @param channels       channel count, samples are interleaved
+     * @param frequency      tone frequency in Hz
+     * @param toneAmplitude  tone amplitude, 0.0 to 1.0 of full scale
+     * @param noiseAmplitude noise amplitude, 0.0 to 1.0 of full scale
+     * @param duration       length of the generated signal, time unit is ms, -1 for endless
+     */
+    public SyntheticPcmSource(int sampleRate, int channels, double frequency, double toneAmplitude,
+                              double noiseAmplitude, long duration) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mPhaseStep = 2 * Math.PI * frequency / sampleRate;
+        mToneAmplitude = toneAmplitude * Short.MAX_VALUE;
+        mNoiseAmplitude = noiseAmplitude * Short.MAX_VALUE;
+        mTotalFrames = duration < 0 ? -1 : duration * sampleRate / 1000;
+    }
+
+    public void setRealTime(boolean realTime) {
+        mRealTime = realTime;
+    }
+
+    @Override
+    public void start() {
+        mStartNanos = System.nanoTime();
+        mStartFrames = mGeneratedFrames;
+        mActive = true;
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int count) {
+        int frames = count / mChannels;
+        if (mTotalFrames >= 0) {
+            frames = (int) Math.min(frames, mTotalFrames - mGeneratedFrames);
+            if (frames <= 0) {
+                mActive = false;
+                return 0;
+            }
+        }
+
+        if (mRealTime) {
+            long due = mStartNanos + (mGeneratedFrames - mStartFrames + frames) * 1000000000L / mSampleRate;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        int index = offset;
+        for (int i = 0; i < frames; i++) {
+            double value = mToneAmplitude * Math.sin(mPhase) + mNoiseAmplitude * (2 * mRandom.nextDouble() - 1);
+            short sample = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+            for (int c = 0; c < mChannels; c++) {
+                buffer[index++] = sample;
+            }
+            mPhase += mPhaseStep;
+            if (mPhase > 2 * Math.PI) {
+                mPhase -= 2 * Math.PI;
+            }
+        }
+        mGeneratedFrames += frames;
+        return frames * mChannels;
+    }
+
+    @Override
+    public void stop() {
+        mActive = false;
+    }
+
+    @Override
+    public boolean isActive() {
+        return mActive;
+    }
+
+    @Override
+    public void release() {
+        mActive = false;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getChannels() {
+        return mChannels;
+    }
+}
@@ -0,0 +1,19 @@
+package com.invisibi.audio;
+
+import java.io.IOException;
+
+/**
+ * Sink which can drop the frames it was given last, see {@link RollbackFrameSink}.
+ */
+public interface TruncatableFrameSink extends EncodedFrameSink {
+
+    /**
+     * @return number of frames written so far
+     */
+    long getFrameCount();
+
+    /**
+     * Drop every frame after the first {@code frameCount}, the next frame is written in their place.
+     */
+    void truncate(long frameCount) throws IOException;
+}
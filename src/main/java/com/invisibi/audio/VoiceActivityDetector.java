@@ -0,0 +1,236 @@
+package com.invisibi.audio;
+
+/**
+ * Frame based voice activity detection of 16bit PCM.
+ * Captured audio is cut into fixed frames (20ms by default), each frame is classified from its short-term energy
+ * against an adaptive noise floor and its zero-crossing rate, so steady noise and hiss are not taken for voice.
+ * A voice decision is held for a hangover time after the last voiced frame to bridge pauses between words,
+ * the pre-roll before voice starts is kept by the consumer, see {@link #getPreRollSize()}.
+ * Runs on the capture thread only and does not allocate after construction.
+ */
+public class VoiceActivityDetector {
+
+    /**
+     * Voice activity detection disabled.
+     */
+    public static final int MODE_OFF = 0;
+    /**
+     * Frames are classified, all of them are encoded.
+     */
+    public static final int MODE_DETECT = 1;
+    /**
+     * Frames are classified, frames without voice are not encoded apart from the pre-roll.
+     */
+    public static final int MODE_GATE = 2;
+
+    public static final int DEFAULT_FRAME_DURATION = 20;
+    public static final int DEFAULT_HANGOVER_TIME = 400;
+    public static final int DEFAULT_PRE_ROLL_TIME = 300;
+    public static final double DEFAULT_ENERGY_THRESHOLD = -50.0;
+    public static final double DEFAULT_NOISE_MARGIN = 9.0;
+
+    private static final double FULL_SCALE_POWER = (double) Short.MAX_VALUE * Short.MAX_VALUE;
+    // zero crossings per sample, voiced speech stays well below while broadband noise is around 0.5
+    private static final double MAX_VOICED_ZCR = 0.3;
+    // frames louder than this above the noise floor count as voice whatever their zero-crossing rate, e.g. fricatives
+    private static final double LOUD_MARGIN = 6.0;
+    private static final double NOISE_FLOOR_FALL = 0.5;
+    private static final double NOISE_FLOOR_RISE = 0.05;
+    private static final double NOISE_FLOOR_RISE_IN_VOICE = 0.0002;
+
+    /**
+     * Interface definition for a callback with every classified frame, called on the capture thread.
+     */
+    public interface Listener {
+        /**
+         * @param frame      samples of the frame, only valid during the call
+         * @param frameIndex number of frames classified before this one
+         * @param voice      true if the frame is voice or within the hangover time after voice
+         */
+        void onFrame(short[] frame, int offset, int count, long frameIndex, boolean voice);
+    }
+
+    private final int mChannels;
+    private final int mFrameSize;
+    private final int mHangoverFrames;
+    private final int mPreRollSize;
+    private final double mEnergyThreshold;
+    private final double mNoiseMargin;
+    private final double mLoudMargin;
+
+    private final short[] mFrame;
+    private int mFrameFill;
+    private double mNoiseFloor;
+    private int mHangoverRemaining;
+    private Listener mListener;
+
+    private volatile boolean mVoice;
+    private volatile double mLastEnergyDb = -LevelMeter.MIN_DB;
+    private volatile double mLastZeroCrossingRate;
+    private volatile long mFrameCount;
+    private volatile long mVoiceFrameCount;
+
+    public VoiceActivityDetector(int sampleRate, int channels) {
+        this(sampleRate, channels, DEFAULT_FRAME_DURATION, DEFAULT_HANGOVER_TIME, DEFAULT_PRE_ROLL_TIME,
+                DEFAULT_ENERGY_THRESHOLD, DEFAULT_NOISE_MARGIN);
+    }
+
+    /**
+     * @param frameDuration   length of each classified frame, time unit is ms, 10 to 20ms is typical
+     * @param hangoverTime    how long voice is still reported after the last voiced frame, time unit is ms
+     * @param preRollTime     how much audio before the first voiced frame should be kept, time unit is ms
+     * @param energyThreshold frames quieter than this are never voice, in dBFS
+     * @param noiseMargin     how far above the noise floor a frame must be to be voice, in dB
+     */
+    public VoiceActivityDetector(int sampleRate, int channels, int frameDuration, int hangoverTime, int preRollTime,
+                                 double energyThreshold, double noiseMargin) {
+        if (frameDuration <= 0) {
+            throw new IllegalArgumentException("frame duration must be positive, frameDuration = " + frameDuration);
+        }
+        mChannels = channels;
+        mFrameSize = Math.max(1, sampleRate * frameDuration / 1000) * channels;
+        mHangoverFrames = hangoverTime / frameDuration;
+        mPreRollSize = (preRollTime / frameDuration) * mFrameSize;
+        mEnergyThreshold = dbToPower(energyThreshold);
+        mNoiseMargin = Math.pow(10, noiseMargin / 10);
+        mLoudMargin = Math.pow(10, (noiseMargin + LOUD_MARGIN) / 10);
+        mFrame = new short[mFrameSize];
+        mNoiseFloor = mEnergyThreshold;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Add captured samples, every frame they complete is classified and passed to the listener.
+     * Samples of an incomplete frame are kept until the next call.
+     */
+    public void process(short[] data, int offset, int count) {
+        int end = offset + count;
+        while (offset < end) {
+            int length = Math.min(end - offset, mFrameSize - mFrameFill);
+            System.arraycopy(data, offset, mFrame, mFrameFill, length);
+            mFrameFill += length;
+            offset += length;
+            if (mFrameFill == mFrameSize) {
+                mFrameFill = 0;
+                boolean voice = classify(mFrame);
+                long frameIndex = mFrameCount;
+                mFrameCount = frameIndex + 1;
+                if (voice) {
+                    mVoiceFrameCount++;
+                }
+                mVoice = voice;
+                if (mListener != null) {
+                    mListener.onFrame(mFrame, 0, mFrameSize, frameIndex, voice);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return decision of one frame with the hangover applied
+     */
+    private boolean classify(short[] frame) {
+        long sumOfSquares = 0;
+        int crossings = 0;
+        int previous = frame[0];
+        for (int i = 0; i < mFrameSize; i++) {
+            int sample = frame[i];
+            sumOfSquares += sample * sample;
+        }
+        // zero crossings of the first channel
+        for (int i = mChannels; i < mFrameSize; i += mChannels) {
+            int sample = frame[i];
+            if ((sample ^ previous) < 0) {
+                crossings++;
+            }
+            previous = sample;
+        }
+
+        double energy = (double) sumOfSquares / mFrameSize;
+        double zeroCrossingRate = (double) crossings / (mFrameSize / mChannels);
+        boolean aboveNoise = energy >= mEnergyThreshold && energy >= mNoiseFloor * mNoiseMargin;
+        boolean voiced = aboveNoise && (zeroCrossingRate <= MAX_VOICED_ZCR || energy >= mNoiseFloor * mLoudMargin);
+
+        if (energy < mNoiseFloor) {
+            mNoiseFloor += (energy - mNoiseFloor) * NOISE_FLOOR_FALL;
+        } else {
+            // quiet frames between syllables are still speech while the hangover holds voice, the floor only
+            // keeps rising slowly then so a louder background is learned even if it looks like voice
+            boolean inVoice = voiced || mHangoverRemaining > 0;
+            mNoiseFloor += (energy - mNoiseFloor) * (inVoice ? NOISE_FLOOR_RISE_IN_VOICE : NOISE_FLOOR_RISE);
+        }
+        mLastEnergyDb = powerToDb(energy);
+        mLastZeroCrossingRate = zeroCrossingRate;
+
+        if (voiced) {
+            mHangoverRemaining = mHangoverFrames;
+            return true;
+        }
+        if (mHangoverRemaining > 0) {
+            mHangoverRemaining--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return decision of the last classified frame, any thread
+     */
+    public boolean isVoice() {
+        return mVoice;
+    }
+
+    /**
+     * @return energy of the last classified frame in dBFS, any thread
+     */
+    public double getLastEnergyDb() {
+        return mLastEnergyDb;
+    }
+
+    /**
+     * @return zero crossings per sample of the last classified frame, any thread
+     */
+    public double getLastZeroCrossingRate() {
+        return mLastZeroCrossingRate;
+    }
+
+    public double getNoiseFloorDb() {
+        return powerToDb(mNoiseFloor);
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getVoiceFrameCount() {
+        return mVoiceFrameCount;
+    }
+
+    /**
+     * @return number of samples per frame, all channels included
+     */
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    /**
+     * @return number of samples to keep before voice starts, a whole number of frames
+     */
+    public int getPreRollSize() {
+        return mPreRollSize;
+    }
+
+    private static double dbToPower(double db) {
+        return Math.pow(10, db / 10) * FULL_SCALE_POWER;
+    }
+
+    private static double powerToDb(double power) {
+        if (power <= 0) {
+            return -LevelMeter.MIN_DB;
+        }
+        return Math.max(-LevelMeter.MIN_DB, 10 * Math.log10(power / FULL_SCALE_POWER));
+    }
+}
@@ -0,0 +1,411 @@
+package com.invisibi.audio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Min/max peaks of a recording at several bucket sizes, built incrementally while recording so a waveform
+ * can be drawn without decoding the output file. Each level is made from whole buckets of the level below,
+ * drawing any range then reads at most a few buckets per pixel.
+ * Channels are not separated, interleaved samples are folded into the same buckets.
+ * Written by one thread at a time, read it after the recording stopped.
+ */
+public class WaveformPyramid {
+
+    public static final String SIDECAR_EXTENSION = ".wfm";
+    public static final int[] DEFAULT_BUCKET_SIZES = {256, 4096, 65536};
+
+    private static final int MAGIC = 0x57465059; // "WFPY"
+    private static final int VERSION = 1;
+    private static final int INITIAL_BUCKETS = 1024;
+
+    private final int mSamplesPerSecond;
+    private final int[] mBucketSizes;
+    private final short[][] mMins;
+    private final short[][] mMaxs;
+    private final int[] mBucketCounts;
+
+    // bucket being filled on each level, level 0 counts samples, the others count buckets of the level below
+    private final int[] mPartialMins;
+    private final int[] mPartialMaxs;
+    private final int[] mPartialCounts;
+    private long mSampleCount;
+    private boolean mFinished;
+
+    /**
+     * @param samplesPerSecond sample rate multiplied by channel count
+     */
+    public WaveformPyramid(int samplesPerSecond) {
+        this(samplesPerSecond, DEFAULT_BUCKET_SIZES);
+    }
+
+    /**
+     * @param samplesPerSecond sample rate multiplied by channel count
+     * @param bucketSizes      samples per bucket of each level, ascending and each a multiple of the previous one
+     */
+    public WaveformPyramid(int samplesPerSecond, int[] bucketSizes) {
+        if (bucketSizes.length == 0 || bucketSizes[0] <= 0) {
+            throw new IllegalArgumentException("invalid bucket sizes " + Arrays.toString(bucketSizes));
+        }
+        for (int i = 1; i < bucketSizes.length; i++) {
+            if (bucketSizes[i] <= bucketSizes[i - 1] || bucketSizes[i] % bucketSizes[i - 1] != 0) {
+                throw new IllegalArgumentException("bucket size " + bucketSizes[i] + " is not a multiple of "
+                        + bucketSizes[i - 1]);
+            }
+        }
+        int levels = bucketSizes.length;
+        mSamplesPerSecond = samplesPerSecond;
+        mBucketSizes = bucketSizes.clone();
+        mMins = new short[levels][];
+        mMaxs = new short[levels][];
+        mBucketCounts = new int[levels];
+        mPartialMins = new int[levels];
+        mPartialMaxs = new int[levels];
+        mPartialCounts = new int[levels];
+        for (int level = 0; level < levels; level++) {
+            mMins[level] = new short[INITIAL_BUCKETS];
+            mMaxs[level] = new short[INITIAL_BUCKETS];
+            resetPartial(level);
+        }
+    }
+
+    /**
+     * Add recorded samples, one thread at a time.
+     */
+    public void append(short[] data, int offset, int count) {
+        if (mFinished) {
+            throw new IllegalStateException("waveform is already finished");
+        }
+        int bucketSize = mBucketSizes[0];
+        int end = offset + count;
+        int i = offset;
+        while (i < end) {
+            int chunkEnd = Math.min(end, i + bucketSize - mPartialCounts[0]);
+            int min = mPartialMins[0];
+            int max = mPartialMaxs[0];
+            for (int j = i; j < chunkEnd; j++) {
+                int sample = data[j];
+                if (sample < min) {
+                    min = sample;
+                }
+                if (sample > max) {
+                    max = sample;
+                }
+            }
+            mPartialMins[0] = min;
+            mPartialMaxs[0] = max;
+            mPartialCounts[0] += chunkEnd - i;
+            if (mPartialCounts[0] == bucketSize) {
+                closeBucket(0);
+            }
+            i = chunkEnd;
+        }
+        mSampleCount += count;
+    }
+
+    /**
+     * Close the partially filled buckets so the end of the recording is included, no samples can be appended afterwards.
+     */
+    public void finish() {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+        for (int level = 0; level < mBucketSizes.length; level++) {
+            if (mPartialCounts[level] > 0) {
+                closeBucket(level);
+            }
+        }
+    }
+
+    /**
+     * Discard the samples from {@code sampleCount} on, e.g. after a rollback, writing thread idle.
+     * The samples of a bucket cut in the middle are gone, the part kept has the min/max of the whole bucket.
+     */
+    public void truncate(long sampleCount) {
+        if (mFinished) {
+            throw new IllegalStateException("waveform is already finished");
+        }
+        sampleCount = Math.max(0, sampleCount);
+        if (sampleCount < mSampleCount) {
+            cut(sampleCount);
+        }
+    }
+
+    /**
+     * Continue a finished waveform, e.g. one loaded by {@link #readFrom(File)} for a recording appended to.
+     * It is cut back or filled with silence to {@code sampleCount} first, where the appended samples start.
+     */
+    public void reopen(long sampleCount) {
+        if (mFinished) {
+            mFinished = false;
+            // the buckets finish() closed early are partially filled again
+            cut(mSampleCount);
+        }
+        sampleCount = Math.max(0, sampleCount);
+        if (sampleCount < mSampleCount) {
+            cut(sampleCount);
+        } else if (sampleCount > mSampleCount) {
+            short[] silence = new short[(int) Math.min(sampleCount - mSampleCount, mBucketSizes[0])];
+            while (mSampleCount < sampleCount) {
+                append(silence, 0, (int) Math.min(sampleCount - mSampleCount, silence.length));
+            }
+        }
+    }
+
+    /**
+     * Discard the samples in [{@code fromSample}, {@code toSample}) of a finished waveform, e.g. the frames cut from
+     * the file when it was trimmed. Both ends are rounded down to a level 0 bucket, AAC frames are whole buckets
+     * of the default sizes. The coarser levels are rebuilt from level 0.
+     *
+     * @param toSample {@link Long#MAX_VALUE} to discard the tail
+     */
+    public void delete(long fromSample, long toSample) {
+        if (!mFinished) {
+            throw new IllegalStateException("waveform is not finished");
+        }
+        int bucketSize = mBucketSizes[0];
+        int count = mBucketCounts[0];
+        int from = (int) Math.min(count, Math.max(0, fromSample) / bucketSize);
+        int to = (int) Math.min(count, Math.max(0, toSample) / bucketSize);
+        if (toSample >= mSampleCount) {
+            to = count;
+        }
+        if (to <= from) {
+            return;
+        }
+        long removed = Math.min(mSampleCount, toSample) - (long) from * bucketSize;
+        System.arraycopy(mMins[0], to, mMins[0], from, count - to);
+        System.arraycopy(mMaxs[0], to, mMaxs[0], from, count - to);
+        mBucketCounts[0] = count - (to - from);
+        mSampleCount -= Math.min(mSampleCount, removed);
+        for (int level = 1; level < mBucketSizes.length; level++) {
+            int ratio = mBucketSizes[level] / mBucketSizes[level - 1];
+            int below = mBucketCounts[level - 1];
+            int buckets = (below + ratio - 1) / ratio;
+            for (int i = 0; i < buckets; i++) {
+                int min = Short.MAX_VALUE;
+                int max = Short.MIN_VALUE;
+                for (int j = i * ratio, end = Math.min(below, j + ratio); j < end; j++) {
+                    min = Math.min(min, mMins[level - 1][j]);
+                    max = Math.max(max, mMaxs[level - 1][j]);
+                }
+                mMins[level][i] = (short) min;
+                mMaxs[level][i] = (short) max;
+            }
+            mBucketCounts[level] = buckets;
+        }
+    }
+
+    private void cut(long sampleCount) {
+        int full = (int) (sampleCount / mBucketSizes[0]);
+        int rest = (int) (sampleCount - (long) full * mBucketSizes[0]);
+        if (rest == 0) {
+            resetPartial(0);
+        } else if (full < mBucketCounts[0]) {
+            mPartialMins[0] = mMins[0][full];
+            mPartialMaxs[0] = mMaxs[0][full];
+        }
+        // else cut in the partially filled bucket, which keeps its min/max
+        mPartialCounts[0] = rest;
+        mBucketCounts[0] = full;
+        for (int level = 1; level < mBucketSizes.length; level++) {
+            int ratio = mBucketSizes[level] / mBucketSizes[level - 1];
+            int below = mBucketCounts[level - 1];
+            resetPartial(level);
+            for (int i = below - below % ratio; i < below; i++) {
+                mPartialMins[level] = Math.min(mPartialMins[level], mMins[level - 1][i]);
+                mPartialMaxs[level] = Math.max(mPartialMaxs[level], mMaxs[level - 1][i]);
+                mPartialCounts[level]++;
+            }
+            mBucketCounts[level] = below / ratio;
+        }
+        mSampleCount = sampleCount;
+    }
+
+    private void closeBucket(int level) {
+        short min = (short) mPartialMins[level];
+        short max = (short) mPartialMaxs[level];
+        int index = mBucketCounts[level];
+        if (index == mMins[level].length) {
+            mMins[level] = Arrays.copyOf(mMins[level], index * 2);
+            mMaxs[level] = Arrays.copyOf(mMaxs[level], index * 2);
+        }
+        mMins[level][index] = min;
+        mMaxs[level][index] = max;
+        mBucketCounts[level] = index + 1;
+        resetPartial(level);
+
+        int parent = level + 1;
+        if (parent < mBucketSizes.length) {
+            mPartialMins[parent] = Math.min(mPartialMins[parent], min);
+            mPartialMaxs[parent] = Math.max(mPartialMaxs[parent], max);
+            mPartialCounts[parent]++;
+            if (mPartialCounts[parent] == mBucketSizes[parent] / mBucketSizes[level] && !mFinished) {
+                closeBucket(parent);
+            }
+        }
+    }
+
+    private void resetPartial(int level) {
+        mPartialMins[level] = Short.MAX_VALUE;
+        mPartialMaxs[level] = Short.MIN_VALUE;
+        mPartialCounts[level] = 0;
+    }
+
+    /**
+     * Fill one min/max pair per pixel for samples in [{@code startSample}, {@code endSample}),
+     * reading the coarsest level that still has at least one bucket per pixel.
+     *
+     * @param mins receives the lowest sample of each pixel, its length is the number of pixels
+     * @param maxs receives the highest sample of each pixel, at least as long as {@code mins}
+     * @return number of pixels filled, less than requested if the range goes past the end of the recording
+     */
+    public int render(long startSample, long endSample, short[] mins, short[] maxs) {
+        int pixels = mins.length;
+        long span = endSample - startSample;
+        if (pixels == 0 || span <= 0) {
+            return 0;
+        }
+        long samplesPerPixel = Math.max(1, span / pixels);
+        int level = 0;
+        while (level + 1 < mBucketSizes.length && mBucketSizes[level + 1] <= samplesPerPixel) {
+            level++;
+        }
+
+        int bucketSize = mBucketSizes[level];
+        int bucketCount = mBucketCounts[level];
+        short[] levelMins = mMins[level];
+        short[] levelMaxs = mMaxs[level];
+        for (int pixel = 0; pixel < pixels; pixel++) {
+            long first = (startSample + span * pixel / pixels) / bucketSize;
+            long last = (startSample + span * (pixel + 1) / pixels - 1) / bucketSize;
+            if (first >= bucketCount) {
+                return pixel;
+            }
+            last = Math.min(Math.max(first, last), bucketCount - 1);
+            short min = Short.MAX_VALUE;
+            short max = Short.MIN_VALUE;
+            for (int bucket = (int) first; bucket <= last; bucket++) {
+                if (levelMins[bucket] < min) {
+                    min = levelMins[bucket];
+                }
+                if (levelMaxs[bucket] > max) {
+                    max = levelMaxs[bucket];
+                }
+            }
+            mins[pixel] = min;
+            maxs[pixel] = max;
+        }
+        return pixels;
+    }
+
+    /**
+     * @return true once {@link #finish()} was called, the waveform does not change afterwards
+     */
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    public int getSamplesPerSecond() {
+        return mSamplesPerSecond;
+    }
+
+    /**
+     * @return number of samples appended, all channels included
+     */
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    public int getLevelCount() {
+        return mBucketSizes.length;
+    }
+
+    public int getBucketSize(int level) {
+        return mBucketSizes[level];
+    }
+
+    public int getBucketCount(int level) {
+        return mBucketCounts[level];
+    }
+
+    /**
+     * Save as a sidecar file, usually the recording path plus {@link #SIDECAR_EXTENSION}.
+     * Partially filled buckets are only included after {@link #finish()}.
+     */
+    public void writeTo(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(mSamplesPerSecond);
+            out.writeLong(mSampleCount);
+            out.writeByte(mBucketSizes.length);
+            for (int level = 0; level < mBucketSizes.length; level++) {
+                out.writeInt(mBucketSizes[level]);
+                out.writeInt(mBucketCounts[level]);
+                short[] mins = mMins[level];
+                short[] maxs = mMaxs[level];
+                for (int i = 0; i < mBucketCounts[level]; i++) {
+                    out.writeShort(mins[i]);
+                    out.writeShort(maxs[i]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Load a sidecar file written by {@link #writeTo(File)}.
+     */
+    public static WaveformPyramid readFrom(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a waveform file");
+            }
+            int version = in.readShort();
+            if (version != VERSION) {
+                throw new IOException("unsupported waveform version " + version);
+            }
+            int samplesPerSecond = in.readInt();
+            long sampleCount = in.readLong();
+            int levels = in.readUnsignedByte();
+            int[] bucketSizes = new int[levels];
+            short[][] mins = new short[levels][];
+            short[][] maxs = new short[levels][];
+            int[] bucketCounts = new int[levels];
+            for (int level = 0; level < levels; level++) {
+                bucketSizes[level] = in.readInt();
+                bucketCounts[level] = in.readInt();
+                mins[level] = new short[Math.max(1, bucketCounts[level])];
+                maxs[level] = new short[Math.max(1, bucketCounts[level])];
+                for (int i = 0; i < bucketCounts[level]; i++) {
+                    mins[level][i] = in.readShort();
+                    maxs[level][i] = in.readShort();
+                }
+            }
+
+            WaveformPyramid pyramid = new WaveformPyramid(samplesPerSecond, bucketSizes);
+            for (int level = 0; level < levels; level++) {
+                pyramid.mMins[level] = mins[level];
+                pyramid.mMaxs[level] = maxs[level];
+                pyramid.mBucketCounts[level] = bucketCounts[level];
+            }
+            pyramid.mSampleCount = sampleCount;
+            pyramid.mFinished = true;
+            return pyramid;
+        } finally {
+            in.close();
+        }
+    }
+}